@@ -0,0 +1,51 @@
+package com.github.wrossmorrow.extproc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Maintaining the x-extproc-duration-ns header as it passes through a chain of processors, with
+ * this processor's entry absent (appended) or present at the end of the chain (replaced), and for
+ * a two-processor in-process chain updated in one pass.
+ */
+@State(Scope.Thread)
+public class DurationHeaderBenchmark {
+
+  @Param({"1", "6", "12"})
+  int chainLength;
+
+  @Param({"false", "true"})
+  boolean present;
+
+  String existing;
+  String[] names = {"noop", "timer"};
+  long[] nanos = {123456L, 654321L};
+  StringBuilder out = new StringBuilder(64);
+
+  @Setup
+  public void setup() {
+    StringBuilder header = new StringBuilder();
+    for (int i = 0; i < chainLength; i++) {
+      if (i > 0) {
+        header.append(',');
+      }
+      boolean last = i == chainLength - 1;
+      header.append(present && last ? "noop" : "processor" + i);
+      header.append('=').append(1000 + i);
+    }
+    existing = header.toString();
+  }
+
+  @Benchmark
+  public String durationHeaderValue() {
+    return DurationHeader.update(out, existing, "noop", 123456L).toString();
+  }
+
+  @Benchmark
+  public String chainedDurationHeaderValue() {
+    return DurationHeader.update(out, existing, names, nanos).toString();
+  }
+}
@@ -0,0 +1,77 @@
+package com.github.wrossmorrow.extproc;
+
+import build.buf.gen.envoy.config.core.v3.HeaderMap;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A full request (headers, body, response headers, response body) through processPhase for each
+ * built-in processor, with duration headers on as in the compose setup.
+ */
+@State(Scope.Thread)
+public class ExternalProcessorBenchmark {
+
+  @Param({
+    "NoOpRequestProcessor",
+    "TrivialRequestProcessor",
+    "TimerRequestProcessor",
+    "ThrowingRequestProcessor",
+    "EchoRequestProcessor",
+    "DigestRequestProcessor",
+    "DedupRequestProcessor"
+  })
+  String processor;
+
+  @Param({"1024"})
+  int bodySize;
+
+  ExternalProcessor service;
+  ProcessingRequest requestHeaders;
+  ProcessingRequest requestBody;
+  ProcessingRequest responseHeaders;
+  ProcessingRequest responseBody;
+
+  @Setup
+  public void setup() throws Exception {
+    System.setProperty("extproc.upstream.headers.duration", "true");
+    System.setProperty("extproc.downstream.headers.duration", "true");
+    RequestProcessor instance =
+        (RequestProcessor)
+            Class.forName("com.github.wrossmorrow.extproc.processors." + processor)
+                .getConstructor()
+                .newInstance();
+    service = new ExternalProcessor(instance, null);
+
+    HeaderMap headers = BenchmarkData.requestHeaders(30, false, "/api/v1/resources?id=12345");
+    ByteString body = BenchmarkData.body(bodySize);
+    requestHeaders = BenchmarkData.requestHeadersMessage(headers, false);
+    requestBody = BenchmarkData.requestBodyMessage(body);
+    responseHeaders =
+        BenchmarkData.responseHeadersMessage(BenchmarkData.responseHeaders(10, false), false);
+    responseBody = BenchmarkData.responseBodyMessage(body);
+  }
+
+  @Benchmark
+  public void fullRequest(Blackhole bh) {
+    RequestContext ctx = new RequestContext();
+    bh.consume(service.processPhase(requestHeaders, ctx));
+    bh.consume(service.processPhase(requestBody, ctx));
+    bh.consume(service.processPhase(responseHeaders, ctx));
+    bh.consume(service.processPhase(responseBody, ctx));
+    ctx.close();
+  }
+
+  /** just the request headers phase, to isolate the per-phase overhead (timing, headers) */
+  @Benchmark
+  public void requestHeadersPhase(Blackhole bh) {
+    RequestContext ctx = new RequestContext();
+    bh.consume(service.processPhase(requestHeaders, ctx));
+    ctx.close();
+  }
+}
@@ -0,0 +1,69 @@
+package com.github.wrossmorrow.extproc;
+
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Path and query parsing, against the earlier split-and-decode-everything parser */
+@State(Scope.Thread)
+public class PathBenchmark {
+
+  RequestContext ctx = new RequestContext();
+
+  @Benchmark
+  public Map<String, ?> parsePathLongQuery() {
+    ctx.parsePath(BenchmarkData.LONG_QUERY_PATH);
+    return ctx.getParams();
+  }
+
+  @Benchmark
+  public String parsePathLongQueryOneParam() {
+    ctx.parsePath(BenchmarkData.LONG_QUERY_PATH);
+    return ctx.getParam("param35");
+  }
+
+  @Benchmark
+  public String parsePathLongQueryUnread() {
+    ctx.parsePath(BenchmarkData.LONG_QUERY_PATH);
+    return ctx.getPath();
+  }
+
+  @Benchmark
+  public Map<String, ?> legacyParsePathLongQuery() throws Exception {
+    return legacyParsePath(BenchmarkData.LONG_QUERY_PATH);
+  }
+
+  @Benchmark
+  public String parsePathNoQuery() {
+    ctx.parsePath("/api/v1/resources/0123456789");
+    return ctx.getPath();
+  }
+
+  /** the parser this replaced: regex split, decode the whole query, split again, eager map */
+  static Map<String, List<String>> legacyParsePath(String path) throws Exception {
+    Map<String, List<String>> params = new HashMap<String, List<String>>();
+    if (path.contains("?")) {
+      String[] parts = path.split("\\?");
+      if (parts.length > 1) {
+        String query = URLDecoder.decode(parts[1], "UTF-8");
+        for (String param : query.split("&")) {
+          String[] keyValuePair = param.split("=");
+          String key = keyValuePair[0];
+          String value = keyValuePair.length == 1 ? "" : keyValuePair[1];
+          if (!params.containsKey(key)) {
+            params.put(key, new ArrayList<String>());
+          }
+          if (!value.isEmpty()) {
+            params.get(key).add(value);
+          }
+        }
+      }
+    }
+    return params;
+  }
+}
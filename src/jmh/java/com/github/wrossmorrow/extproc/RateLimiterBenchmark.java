@@ -0,0 +1,77 @@
+package com.github.wrossmorrow.extproc;
+
+import com.github.wrossmorrow.extproc.processors.RateLimiter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Rate limit checks shared by 1 to 8 threads, over one hot key (every thread contending on the
+ * same bucket) up to a million keys (threads almost never touching the same bucket). With many
+ * keys, throughput should grow about linearly with threads, up to the number of cores.
+ */
+@State(Scope.Benchmark)
+public class RateLimiterBenchmark {
+
+  @Param({"1", "1000", "1000000"})
+  int keyCount;
+
+  RateLimiter limiter;
+  String[] keys;
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next = ThreadLocalRandom.current().nextInt(1 << 20);
+  }
+
+  @Setup
+  public void setup() {
+    // a high rate, so most checks take a token (a CAS) rather than just reading
+    limiter = new RateLimiter(1e6, 1000, 60, TimeUnit.SECONDS, 2 * keyCount);
+    keys = new String[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = "10.0." + (i >> 8) + "." + (i & 0xff);
+      limiter.acquire(keys[i]);
+    }
+  }
+
+  @TearDown
+  public void teardown() {
+    limiter.close();
+  }
+
+  long acquire(Cursor cursor) {
+    final int i = cursor.next++;
+    return limiter.acquire(keys[(i * 0x9E3779B1 >>> 1) % keyCount]);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public long acquire1(Cursor cursor) {
+    return acquire(cursor);
+  }
+
+  @Benchmark
+  @Threads(2)
+  public long acquire2(Cursor cursor) {
+    return acquire(cursor);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public long acquire4(Cursor cursor) {
+    return acquire(cursor);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public long acquire8(Cursor cursor) {
+    return acquire(cursor);
+  }
+}
@@ -0,0 +1,49 @@
+package com.github.wrossmorrow.extproc;
+
+import build.buf.gen.envoy.config.core.v3.HeaderMap;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Context initialization from envoy's header messages */
+@State(Scope.Thread)
+public class RequestContextBenchmark {
+
+  @Param({"30", "100"})
+  int headerCount;
+
+  @Param({"false", "true"})
+  boolean rawValues;
+
+  HeaderMap requestHeaders;
+  HeaderMap responseHeaders;
+
+  @Setup
+  public void setup() {
+    requestHeaders = BenchmarkData.requestHeaders(headerCount, rawValues, "/api/v1/resources");
+    responseHeaders = BenchmarkData.responseHeaders(headerCount, rawValues);
+  }
+
+  @Benchmark
+  public Map<String, String> initializeRequest() {
+    return new RequestContext().initializeRequest(requestHeaders);
+  }
+
+  @Benchmark
+  public Map<String, String> initializeResponse() {
+    return new RequestContext().initializeResponse(responseHeaders);
+  }
+
+  /** initialize, then read a few headers the way a processor would */
+  @Benchmark
+  public String initializeRequestAndRead() {
+    RequestContext ctx = new RequestContext();
+    ctx.initializeRequest(requestHeaders);
+    ctx.getRequestHeader("authorization");
+    ctx.getRequestHeader("Content-Type");
+    return ctx.getRequestHeader("x-missing");
+  }
+}
@@ -0,0 +1,39 @@
+package com.github.wrossmorrow.extproc;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Building the response for each phase, with and without header mutations */
+@State(Scope.Thread)
+public class ResponseBenchmark {
+
+  @Param({
+    "REQUEST_HEADERS",
+    "REQUEST_BODY",
+    "REQUEST_TRAILERS",
+    "RESPONSE_HEADERS",
+    "RESPONSE_BODY",
+    "RESPONSE_TRAILERS"
+  })
+  RequestCase phase;
+
+  @Param({"0", "3"})
+  int mutations;
+
+  RequestContext ctx = new RequestContext();
+
+  @Benchmark
+  public ProcessingResponse getResponse() {
+    // any phase but REQUEST_HEADERS clears mutations from the last invocation
+    ctx.reset(RequestCase.RESPONSE_TRAILERS);
+    ctx.reset(phase);
+    for (int i = 0; i < mutations; i++) {
+      ctx.addHeader("x-benchmark-header", "value");
+    }
+    return ctx.getResponse(phase);
+  }
+}
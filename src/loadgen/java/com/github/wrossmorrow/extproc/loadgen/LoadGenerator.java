@@ -0,0 +1,236 @@
+package com.github.wrossmorrow.extproc.loadgen;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ExternalProcessorGrpc;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
+import com.github.wrossmorrow.extproc.AsyncRequestProcessor;
+import com.github.wrossmorrow.extproc.ExternalProcessor;
+import com.github.wrossmorrow.extproc.ExternalProcessorServer;
+import com.github.wrossmorrow.extproc.RequestProcessor;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives an {@link ExternalProcessor} the way envoy would, without envoy: concurrent streams, each
+ * sending one request's phases and waiting for each response before sending the next message.
+ * Streams go over gRPC's in-process transport (just the SDK and processor) or a loopback socket to
+ * an {@link ExternalProcessorServer} (adding serialization, netty, and the server's executor and
+ * event loop settings).
+ *
+ * <p>With a target rate, requests are scheduled at fixed intervals and latency is measured from
+ * when each request was scheduled to start, not from when a worker got to it, so a stall shows up
+ * in every request it delayed rather than only the one it hit (coordinated omission). Without a
+ * rate, workers run flat out and there is no schedule to correct against.
+ *
+ * <p>Configured with system properties, like the server; see the README.
+ */
+public class LoadGenerator {
+
+  /** bodies are capped under gRPC's default 4 MiB message limit */
+  static final int MAX_BODY_BYTES = 1 << 20;
+
+  private static final Object COMPLETED = new Object();
+  private static final long RESPONSE_TIMEOUT_SECONDS = 10L;
+
+  private final ExternalProcessorGrpc.ExternalProcessorStub stub;
+  private final Workload workload;
+  private final LoadReport report = new LoadReport();
+  private final AtomicLong tickets = new AtomicLong();
+  private final long interval; // between scheduled request starts; 0 for none
+  private volatile long started;
+  private volatile long ends;
+  private long elapsed;
+
+  LoadGenerator(ManagedChannel channel, Workload workload, double rate) {
+    this.stub = ExternalProcessorGrpc.newStub(channel);
+    this.workload = workload;
+    this.interval = rate > 0 ? (long) (1e9 / rate) : 0L;
+  }
+
+  /** run for a warmup and then a measured period, returning what was measured */
+  LoadReport run(int concurrency, long warmupNanos, long durationNanos)
+      throws InterruptedException {
+    started = System.nanoTime();
+    ends = started + warmupNanos + durationNanos;
+    final Thread[] workers = new Thread[concurrency];
+    for (int i = 0; i < concurrency; i++) {
+      final long seed = i;
+      workers[i] = new Thread(() -> work(new Random(seed)), "loadgen-" + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+    TimeUnit.NANOSECONDS.sleep(warmupNanos);
+    report.reset();
+    final long measuring = System.nanoTime();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    elapsed = System.nanoTime() - measuring;
+    return report;
+  }
+
+  /** how long the measured period lasted */
+  long getElapsedNanos() {
+    return elapsed;
+  }
+
+  private void work(Random random) {
+    while (true) {
+      long scheduled = System.nanoTime();
+      if (interval > 0) {
+        scheduled = started + tickets.getAndIncrement() * interval;
+        long wait;
+        while ((wait = scheduled - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+      }
+      // a saturated processor falls behind the schedule; stop on time anyway
+      if (scheduled - ends >= 0 || System.nanoTime() - ends >= 0) {
+        return;
+      }
+      try {
+        request(workload.next(random), scheduled);
+      } catch (Exception e) {
+        report.recordError();
+      }
+    }
+  }
+
+  /** send one request's phases, each after the response to the last */
+  private void request(ProcessingRequest[] messages, long scheduled) throws Exception {
+    final BlockingQueue<Object> responses = new ArrayBlockingQueue<Object>(messages.length + 2);
+    final StreamObserver<ProcessingRequest> stream =
+        stub.process(
+            new StreamObserver<ProcessingResponse>() {
+              public void onNext(ProcessingResponse response) {
+                responses.offer(response);
+              }
+
+              public void onError(Throwable t) {
+                responses.offer(t);
+              }
+
+              public void onCompleted() {
+                responses.offer(COMPLETED);
+              }
+            });
+    final long begun = System.nanoTime();
+    boolean immediate = false;
+    try {
+      for (int i = 0; i < messages.length && !immediate; i++) {
+        final long sent = System.nanoTime();
+        stream.onNext(messages[i]);
+        final Object response = responses.poll(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        final long received = System.nanoTime();
+        if (!(response instanceof ProcessingResponse)) {
+          throw new IOException("No response to " + messages[i].getRequestCase() + ": " + response);
+        }
+        // only the first message waits on the schedule; envoy sends the rest on each response
+        report.recordPhase(messages[i].getRequestCase(), received - (i == 0 ? scheduled : sent));
+        immediate = ((ProcessingResponse) response).hasImmediateResponse();
+      }
+    } catch (Exception e) {
+      stream.onError(Status.CANCELLED.withDescription("loadgen").asRuntimeException());
+      throw e;
+    }
+    stream.onCompleted();
+    final long finished = System.nanoTime();
+    report.recordRequest(finished - scheduled, finished - begun, immediate);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    final String transport = System.getProperty("loadgen.transport", "inprocess");
+    final int concurrency = Integer.getInteger("loadgen.concurrency", 16);
+    final double rate = Double.parseDouble(System.getProperty("loadgen.rate", "0"));
+    final long warmup = TimeUnit.SECONDS.toNanos(Long.getLong("loadgen.warmup.seconds", 5L));
+    final long duration = TimeUnit.SECONDS.toNanos(Long.getLong("loadgen.duration.seconds", 30L));
+    final Workload workload =
+        new Workload(
+            Workload.Mode.valueOf(System.getProperty("loadgen.mode", "buffered").toUpperCase()),
+            SizeDistribution.parse(System.getProperty("loadgen.headers", "lognormal:24:0.5"), 200),
+            SizeDistribution.parse(
+                System.getProperty("loadgen.request.body", "lognormal:1024:1"), MAX_BODY_BYTES),
+            SizeDistribution.parse(
+                System.getProperty("loadgen.response.body", "lognormal:4096:1"), MAX_BODY_BYTES),
+            Integer.getInteger("loadgen.chunk.bytes", 16384),
+            Boolean.getBoolean("loadgen.trailers"),
+            Integer.getInteger("loadgen.variants", 1024),
+            Long.getLong("loadgen.seed", 1L));
+
+    final Object processor =
+        ExternalProcessorServer.processorFromProperties(System.getProperty("loadgen.route"));
+    Server server = null;
+    ExternalProcessorServer loopback = null;
+    final ManagedChannel channel;
+    if (transport.equals("loopback")) {
+      final int port = freePort();
+      loopback = new ExternalProcessorServer().builder(port);
+      if (processor instanceof AsyncRequestProcessor) {
+        loopback.addRequestProcessor((AsyncRequestProcessor) processor);
+      } else {
+        loopback.addRequestProcessor((RequestProcessor) processor);
+      }
+      loopback.start();
+      channel = ManagedChannelBuilder.forAddress("127.0.0.1", port).usePlaintext().build();
+    } else if (transport.equals("inprocess")) {
+      final String name = InProcessServerBuilder.generateName();
+      final ExternalProcessor service =
+          processor instanceof AsyncRequestProcessor
+              ? new ExternalProcessor((AsyncRequestProcessor) processor, null)
+              : new ExternalProcessor((RequestProcessor) processor, null);
+      server = InProcessServerBuilder.forName(name).addService(service).build().start();
+      channel = InProcessChannelBuilder.forName(name).build();
+    } else {
+      throw new IllegalArgumentException("Unknown loadgen.transport \"" + transport + "\"");
+    }
+
+    System.out.printf(
+        "loadgen: %s over %s, concurrency=%d rate=%s warmup=%ds duration=%ds%n",
+        processor.getClass().getSimpleName(),
+        transport,
+        concurrency,
+        rate > 0 ? rate + "/s" : "unlimited",
+        TimeUnit.NANOSECONDS.toSeconds(warmup),
+        TimeUnit.NANOSECONDS.toSeconds(duration));
+    System.out.println("workload: " + workload);
+    if (rate <= 0) {
+      System.out.println("(no rate set, so latencies are not corrected for coordinated omission)");
+    }
+
+    final LoadGenerator generator = new LoadGenerator(channel, workload, rate);
+    final LoadReport report = generator.run(concurrency, warmup, duration);
+    report.print(System.out, generator.getElapsedNanos());
+
+    channel.shutdownNow();
+    if (server != null) {
+      server.shutdownNow();
+      if (processor instanceof AsyncRequestProcessor) {
+        ((AsyncRequestProcessor) processor).shutdown();
+      } else {
+        ((RequestProcessor) processor).shutdown();
+      }
+    }
+    if (loopback != null) {
+      loopback.stop();
+    }
+  }
+}
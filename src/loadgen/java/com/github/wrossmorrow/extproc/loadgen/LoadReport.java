@@ -0,0 +1,109 @@
+package com.github.wrossmorrow.extproc.loadgen;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import com.github.wrossmorrow.extproc.metrics.LatencyHistogram;
+import com.github.wrossmorrow.extproc.metrics.ProcessorMetrics;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a load run measured: latency histograms for each phase and for whole requests, and request
+ * counts by outcome. Recording is lock-free, so every worker records into the one report.
+ */
+final class LoadReport {
+
+  private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+  private final LatencyHistogram[] phases = new LatencyHistogram[ProcessorMetrics.PHASES.length];
+  private final LatencyHistogram requests = new LatencyHistogram();
+  private final LatencyHistogram uncorrected = new LatencyHistogram();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder immediate = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+
+  LoadReport() {
+    for (int i = 0; i < phases.length; i++) {
+      phases[i] = new LatencyHistogram();
+    }
+  }
+
+  void recordPhase(RequestCase phase, long nanos) {
+    final int i = ProcessorMetrics.phaseIndex(phase);
+    if (i >= 0) {
+      phases[i].record(nanos);
+    }
+  }
+
+  /** a finished request: from when it should have started, and from when it did */
+  void recordRequest(long nanos, long uncorrectedNanos, boolean immediateResponse) {
+    requests.record(nanos);
+    uncorrected.record(uncorrectedNanos);
+    completed.increment();
+    if (immediateResponse) {
+      immediate.increment();
+    }
+  }
+
+  void recordError() {
+    errors.increment();
+  }
+
+  long getCompleted() {
+    return completed.sum();
+  }
+
+  /** forget everything, e.g. after warming up */
+  void reset() {
+    for (LatencyHistogram phase : phases) {
+      phase.reset();
+    }
+    requests.reset();
+    uncorrected.reset();
+    completed.reset();
+    immediate.reset();
+    errors.reset();
+  }
+
+  void print(PrintStream out, long elapsedNanos) {
+    final long count = completed.sum();
+    out.printf(
+        Locale.ROOT,
+        "throughput: %.1f requests/s (%d requests, %d immediate responses, %d errors)%n",
+        count * 1e9 / Math.max(1, elapsedNanos),
+        count,
+        immediate.sum(),
+        errors.sum());
+    out.printf(
+        Locale.ROOT,
+        "%-22s %10s %10s %10s %10s %10s%n",
+        "latency (ms)",
+        "p50",
+        "p99",
+        "p99.9",
+        "max",
+        "count");
+    for (int i = 0; i < phases.length; i++) {
+      row(out, ProcessorMetrics.PHASES[i].name().toLowerCase(Locale.ROOT), phases[i]);
+    }
+    row(out, "request", requests);
+    row(out, "request (uncorrected)", uncorrected);
+  }
+
+  private static void row(PrintStream out, String name, LatencyHistogram h) {
+    final long count = h.getCount();
+    if (count == 0) {
+      return; // phases the workload doesn't send
+    }
+    final long[] values = h.getValuesAtQuantiles(QUANTILES);
+    out.printf(
+        Locale.ROOT,
+        "%-22s %10.3f %10.3f %10.3f %10.3f %10d%n",
+        name,
+        values[0] / 1e6,
+        values[1] / 1e6,
+        values[2] / 1e6,
+        h.getMax() / 1e6,
+        count);
+  }
+}
@@ -0,0 +1,79 @@
+package com.github.wrossmorrow.extproc.loadgen;
+
+import java.util.Random;
+
+/**
+ * A distribution of sizes (header counts, body bytes), parsed from a spec: {@code fixed:N}, {@code
+ * uniform:MIN:MAX}, or {@code lognormal:MEDIAN:SIGMA}. Lognormal sizes have the long tail real
+ * bodies do; a sigma of 1 puts the 99th percentile at about ten times the median.
+ */
+final class SizeDistribution {
+
+  private enum Kind {
+    FIXED,
+    UNIFORM,
+    LOGNORMAL
+  }
+
+  private final String spec;
+  private final Kind kind;
+  private final double a;
+  private final double b;
+  private final int max;
+
+  private SizeDistribution(String spec, Kind kind, double a, double b, int max) {
+    this.spec = spec;
+    this.kind = kind;
+    this.a = a;
+    this.b = b;
+    this.max = max;
+  }
+
+  /** parse a spec, capping sampled sizes at {@code max} */
+  static SizeDistribution parse(String spec, int max) {
+    final String[] parts = spec.trim().split(":");
+    try {
+      switch (parts[0].toLowerCase()) {
+        case "fixed":
+          return new SizeDistribution(spec, Kind.FIXED, Double.parseDouble(parts[1]), 0, max);
+        case "uniform":
+          return new SizeDistribution(
+              spec, Kind.UNIFORM, Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), max);
+        case "lognormal":
+          return new SizeDistribution(
+              spec,
+              Kind.LOGNORMAL,
+              Math.log(Double.parseDouble(parts[1])),
+              Double.parseDouble(parts[2]),
+              max);
+        default:
+          break;
+      }
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      // fall through
+    }
+    throw new IllegalArgumentException(
+        "Bad size distribution \"" + spec + "\"; use fixed:N, uniform:MIN:MAX, or lognormal:M:S");
+  }
+
+  int sample(Random random) {
+    final double size;
+    switch (kind) {
+      case UNIFORM:
+        size = a + random.nextDouble() * (b - a);
+        break;
+      case LOGNORMAL:
+        size = Math.exp(a + b * random.nextGaussian());
+        break;
+      default:
+        size = a;
+        break;
+    }
+    return (int) Math.max(0, Math.min(max, Math.round(size)));
+  }
+
+  @Override
+  public String toString() {
+    return spec;
+  }
+}
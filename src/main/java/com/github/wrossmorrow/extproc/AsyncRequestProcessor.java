@@ -0,0 +1,53 @@
+package com.github.wrossmorrow.extproc;
+
+import com.google.protobuf.ByteString;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking analog of {@link RequestProcessor}. Each phase method returns a stage that
+ * completes when the phase has finished mutating the {@link RequestContext}; the response for the
+ * phase is sent to envoy only then. Phases for one stream are run in order, so a phase method is
+ * not called until the stage from the previous phase has completed. A stage that completes
+ * exceptionally fails the stream just as an exception thrown from a {@link RequestProcessor}
+ * would.
+ *
+ * <p>Phase methods are called on a gRPC thread and should return quickly, doing any I/O
+ * asynchronously (e.g., with a non-blocking client or a separate executor).
+ */
+public interface AsyncRequestProcessor {
+
+  /** Supplies a name for this processor */
+  public String getName();
+
+  /** Supplies options for this processor, as read/set in the customized processor */
+  public ProcessingOptions getOptions();
+
+  /** Provides a "health manager" for the customized processor to declare state */
+  public void setHealthManager(RequestProcessorHealthManager health);
+
+  /** Called on server/JVM shutdown to facilitate any cleanup */
+  public void shutdown();
+
+  /** Method for processing request headers */
+  public CompletionStage<Void> processRequestHeaders(
+      RequestContext ctx, Map<String, String> headers);
+
+  /** Method for processing request body (chunks) */
+  public CompletionStage<Void> processRequestBody(RequestContext ctx, ByteString body);
+
+  /** Method for processing request trailers */
+  public CompletionStage<Void> processRequestTrailers(
+      RequestContext ctx, Map<String, String> trailers);
+
+  /** Method for processing response headers */
+  public CompletionStage<Void> processResponseHeaders(
+      RequestContext ctx, Map<String, String> headers);
+
+  /** Method for processing response body (chunks) */
+  public CompletionStage<Void> processResponseBody(RequestContext ctx, ByteString body);
+
+  /** Method for processing response trailers */
+  public CompletionStage<Void> processResponseTrailers(
+      RequestContext ctx, Map<String, String> trailers);
+}
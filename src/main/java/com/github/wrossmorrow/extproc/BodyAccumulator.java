@@ -0,0 +1,81 @@
+package com.github.wrossmorrow.extproc;
+
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Bounded buffer for body chunks, for processors that need more than one chunk at a time when
+ * envoy sends bodies {@code STREAMED} or {@code BUFFERED_PARTIAL}. Chunks are concatenated without
+ * copying (a {@code ByteString} rope), and appending stops at a byte limit so a large upload can't
+ * exhaust memory; processors that can work chunk by chunk (like hashing) shouldn't buffer at all.
+ *
+ * <p>The limit defaults to the {@code extproc.body.buffer.limit} property, or 4MiB (envoy's and
+ * gRPC's default maximum message size). Not thread-safe; use one per request and direction, e.g.
+ * {@link RequestContext#getRequestBodyBuffer()}.
+ */
+public class BodyAccumulator {
+
+  public static final long DEFAULT_LIMIT =
+      Long.getLong("extproc.body.buffer.limit", 4L * 1024 * 1024);
+
+  private final long limit;
+  private ByteString body = ByteString.EMPTY;
+  private int chunks;
+  private boolean overflowed;
+
+  public BodyAccumulator() {
+    this(DEFAULT_LIMIT);
+  }
+
+  public BodyAccumulator(long limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * add a chunk, returning false if that would exceed the limit; once a chunk has been refused
+   * the buffer is overflowed and no more are added, so the body is never silently partial
+   */
+  public boolean append(ByteString chunk) {
+    if (overflowed || body.size() + (long) chunk.size() > limit) {
+      overflowed = true;
+      return false;
+    }
+    body = body.concat(chunk);
+    chunks++;
+    return true;
+  }
+
+  /** the chunks appended so far, as one {@code ByteString} (not copied) */
+  public ByteString getBody() {
+    return body;
+  }
+
+  /** the chunks appended so far as buffer views, without copying */
+  public List<ByteBuffer> getBuffers() {
+    return body.asReadOnlyByteBufferList();
+  }
+
+  public int size() {
+    return body.size();
+  }
+
+  public int getChunks() {
+    return chunks;
+  }
+
+  public long getLimit() {
+    return limit;
+  }
+
+  /** true if a chunk was refused because it would exceed the limit */
+  public boolean isOverflowed() {
+    return overflowed;
+  }
+
+  public void clear() {
+    body = ByteString.EMPTY;
+    chunks = 0;
+    overflowed = false;
+  }
+}
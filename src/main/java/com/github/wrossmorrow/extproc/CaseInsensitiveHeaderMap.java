@@ -0,0 +1,397 @@
+package com.github.wrossmorrow.extproc;
+
+import build.buf.gen.envoy.config.core.v3.HeaderValue;
+import com.google.protobuf.ByteString;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Case-insensitive {@code Map<String, String>} for HTTP headers, built to be cheap to fill from
+ * envoy's header lists. Entries are kept in flat arrays in insertion order, indexed by an
+ * open-addressed table of slots keyed by a lower-cased hash of the name, so there is no per-entry
+ * node allocation (unlike a {@code TreeMap}). Headers envoy sends as {@code raw_value} bytes are
+ * kept as the {@code ByteString} and only decoded the first time they are read. Names of common
+ * headers are replaced by shared constants, so lookups with string literals usually match by
+ * reference before falling back to {@code equalsIgnoreCase}.
+ *
+ * <p>Iteration is in insertion order. Not thread-safe for writes, like the maps it replaces.
+ */
+public final class CaseInsensitiveHeaderMap extends AbstractMap<String, String> {
+
+  private static final int EMPTY = -1;
+  private static final int DELETED = -2;
+
+  private static final String[] WELL_KNOWN_NAMES = {
+    "accept",
+    "accept-encoding",
+    "accept-language",
+    "authorization",
+    "cache-control",
+    "connection",
+    "content-encoding",
+    "content-length",
+    "content-type",
+    "cookie",
+    "date",
+    "etag",
+    "host",
+    "if-modified-since",
+    "if-none-match",
+    "last-modified",
+    "location",
+    "origin",
+    "pragma",
+    "referer",
+    "server",
+    "set-cookie",
+    "transfer-encoding",
+    "user-agent",
+    "vary",
+    "x-envoy-expected-rq-timeout-ms",
+    "x-envoy-upstream-service-time",
+    "x-extproc-duration-ns",
+    "x-forwarded-for",
+    "x-forwarded-proto",
+    "x-request-id",
+  };
+
+  // open-addressed by hash, like the instance index
+  private static final String[] WELL_KNOWN = new String[128];
+
+  static {
+    for (String name : WELL_KNOWN_NAMES) {
+      int i = hash(name) & (WELL_KNOWN.length - 1);
+      while (WELL_KNOWN[i] != null) {
+        i = (i + 1) & (WELL_KNOWN.length - 1);
+      }
+      WELL_KNOWN[i] = name;
+    }
+  }
+
+  private String[] keys;
+  private Object[] values; // String, or ByteString not yet decoded
+  private int[] hashes;
+  private int[] index; // slot in keys/values/hashes, or EMPTY/DELETED
+  private int used; // slots used in keys/values/hashes, including removed ones
+  private int size;
+  private int modCount;
+  private Set<Map.Entry<String, String>> entrySet;
+
+  public CaseInsensitiveHeaderMap() {
+    this(16);
+  }
+
+  public CaseInsensitiveHeaderMap(int expectedSize) {
+    allocate(Math.max(expectedSize, 4));
+  }
+
+  private void allocate(int capacity) {
+    keys = new String[capacity];
+    values = new Object[capacity];
+    hashes = new int[capacity];
+    index = new int[tableSizeFor(capacity)];
+    Arrays.fill(index, EMPTY);
+  }
+
+  /** a power of two at least twice the capacity, so the table is at most half full */
+  private static int tableSizeFor(int capacity) {
+    return Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+  }
+
+  /** a hash of the lower-cased name, without lower-casing it */
+  static int hash(String name) {
+    int h = 0;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      } else if (c >= 0x80) {
+        c = Character.toLowerCase(Character.toUpperCase(c));
+      }
+      h = 31 * h + c;
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static String canonicalName(String name, int h) {
+    for (int i = h & (WELL_KNOWN.length - 1); WELL_KNOWN[i] != null; ) {
+      if (WELL_KNOWN[i].equals(name)) {
+        return WELL_KNOWN[i];
+      }
+      i = (i + 1) & (WELL_KNOWN.length - 1);
+    }
+    return name;
+  }
+
+  private int find(String name, int h) {
+    final int mask = index.length - 1;
+    for (int i = h & mask; ; i = (i + 1) & mask) {
+      final int slot = index[i];
+      if (slot == EMPTY) {
+        return -1;
+      }
+      if (slot >= 0 && hashes[slot] == h) {
+        final String key = keys[slot];
+        if (key == name || key.equalsIgnoreCase(name)) {
+          return slot;
+        }
+      }
+    }
+  }
+
+  private String valueAt(int slot) {
+    final Object value = values[slot];
+    if (value instanceof String) {
+      return (String) value;
+    }
+    final String decoded = ((ByteString) value).toStringUtf8();
+    values[slot] = decoded;
+    return decoded;
+  }
+
+  private Object putValue(String name, Object value) {
+    final int h = hash(name);
+    final int existing = find(name, h);
+    if (existing >= 0) {
+      final Object previous = values[existing];
+      values[existing] = value;
+      return previous;
+    }
+    if (used == keys.length) {
+      grow();
+    }
+    final int slot = used++;
+    keys[slot] = canonicalName(name, h);
+    values[slot] = value;
+    hashes[slot] = h;
+    final int mask = index.length - 1;
+    int i = h & mask;
+    while (index[i] >= 0) {
+      i = (i + 1) & mask;
+    }
+    index[i] = slot;
+    size++;
+    modCount++;
+    return null;
+  }
+
+  /** double capacity (if needed) and rebuild, dropping removed slots */
+  private void grow() {
+    final String[] oldKeys = keys;
+    final Object[] oldValues = values;
+    final int[] oldHashes = hashes;
+    final int oldUsed = used;
+    allocate(size * 2 >= oldKeys.length ? oldKeys.length * 2 : oldKeys.length);
+    used = 0;
+    final int mask = index.length - 1;
+    for (int s = 0; s < oldUsed; s++) {
+      if (oldKeys[s] != null) {
+        keys[used] = oldKeys[s];
+        values[used] = oldValues[s];
+        hashes[used] = oldHashes[s];
+        int i = oldHashes[s] & mask;
+        while (index[i] != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        index[i] = used++;
+      }
+    }
+  }
+
+  /** add a header from envoy, leaving a raw value undecoded until it is read */
+  public void putHeaderValue(HeaderValue hv) {
+    final String value = hv.getValue();
+    final ByteString raw = hv.getRawValue();
+    if (value.isEmpty() && !raw.isEmpty()) {
+      putValue(hv.getKey(), raw);
+    } else {
+      putValue(hv.getKey(), value);
+    }
+  }
+
+  @Override
+  public String get(Object name) {
+    if (!(name instanceof String)) {
+      return null;
+    }
+    final String key = (String) name;
+    final int slot = find(key, hash(key));
+    return slot < 0 ? null : valueAt(slot);
+  }
+
+  @Override
+  public boolean containsKey(Object name) {
+    if (!(name instanceof String)) {
+      return false;
+    }
+    final String key = (String) name;
+    return find(key, hash(key)) >= 0;
+  }
+
+  @Override
+  public String put(String name, String value) {
+    final Object previous = putValue(name, value);
+    if (previous instanceof ByteString) {
+      return ((ByteString) previous).toStringUtf8();
+    }
+    return (String) previous;
+  }
+
+  @Override
+  public String remove(Object name) {
+    if (!(name instanceof String)) {
+      return null;
+    }
+    final String key = (String) name;
+    final int h = hash(key);
+    final int mask = index.length - 1;
+    for (int i = h & mask; index[i] != EMPTY; i = (i + 1) & mask) {
+      final int slot = index[i];
+      if (slot >= 0 && hashes[slot] == h && keys[slot].equalsIgnoreCase(key)) {
+        final String previous = valueAt(slot);
+        keys[slot] = null;
+        values[slot] = null;
+        index[i] = DELETED;
+        size--;
+        modCount++;
+        return previous;
+      }
+    }
+    return null;
+  }
+
+  /** remove all headers, keeping the allocated capacity for reuse */
+  @Override
+  public void clear() {
+    Arrays.fill(keys, 0, used, null);
+    Arrays.fill(values, 0, used, null);
+    Arrays.fill(index, EMPTY);
+    used = 0;
+    size = 0;
+    modCount++;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Set<Map.Entry<String, String>> entrySet() {
+    if (entrySet == null) {
+      entrySet = new EntrySet();
+    }
+    return entrySet;
+  }
+
+  private final class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void clear() {
+      CaseInsensitiveHeaderMap.this.clear();
+    }
+  }
+
+  private final class Entry implements Map.Entry<String, String> {
+    private final int slot;
+
+    Entry(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    public String getKey() {
+      return keys[slot];
+    }
+
+    @Override
+    public String getValue() {
+      return valueAt(slot);
+    }
+
+    @Override
+    public String setValue(String value) {
+      final String previous = valueAt(slot);
+      values[slot] = value;
+      return previous;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return getKey().equals(e.getKey()) && getValue().equals(e.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return getKey().hashCode() ^ getValue().hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return getKey() + "=" + getValue();
+    }
+  }
+
+  private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+    private int next = advance(0);
+    private int last = -1;
+    private int expectedModCount = modCount;
+
+    private int advance(int from) {
+      while (from < used && keys[from] == null) {
+        from++;
+      }
+      return from;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < used;
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (next >= used) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      next = advance(next + 1);
+      return new Entry(last);
+    }
+
+    @Override
+    public void remove() {
+      if (last < 0) {
+        throw new IllegalStateException();
+      }
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      CaseInsensitiveHeaderMap.this.remove(keys[last]);
+      expectedModCount = modCount;
+      last = -1;
+    }
+  }
+}
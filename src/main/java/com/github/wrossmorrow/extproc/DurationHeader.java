@@ -0,0 +1,117 @@
+package com.github.wrossmorrow.extproc;
+
+/**
+ * Reads and writes the {@code x-extproc-duration-ns} header, a comma-separated list of {@code
+ * name=nanos} entries with one entry per processor the request has passed through. Updating scans
+ * the existing value in place and writes into a caller's (reusable) {@code StringBuilder}: entries
+ * whose name matches exactly are replaced, anything else is copied as is, and names that were not
+ * present are appended. There is no splitting, joining, or concatenation, and names only match
+ * whole names, so "timer" does not replace "timer2".
+ */
+final class DurationHeader {
+
+  private DurationHeader() {}
+
+  /** write {@code existing} updated with one processor's entry into {@code out} (cleared first) */
+  static StringBuilder update(StringBuilder out, String existing, String name, long nanos) {
+    out.setLength(0);
+    boolean found = false;
+    int start = 0;
+    final int length = existing.length();
+    while (start < length) {
+      int end = existing.indexOf(',', start);
+      if (end < 0) {
+        end = length;
+      }
+      final int eq = existing.indexOf('=', start);
+      if (eq >= 0 && eq < end && nameMatches(existing, start, eq, name)) {
+        separate(out).append(existing, start, eq + 1).append(nanos);
+        found = true;
+      } else if (end > start) {
+        separate(out).append(existing, start, end);
+      }
+      start = end + 1;
+    }
+    if (!found) {
+      separate(out).append(name).append('=').append(nanos);
+    }
+    return out;
+  }
+
+  /**
+   * write {@code existing} updated with entries for several processors (a chain, in order) into
+   * {@code out} (cleared first), in one pass over the existing value
+   */
+  static StringBuilder update(StringBuilder out, String existing, String[] names, long[] nanos) {
+    out.setLength(0);
+    long found = 0L; // bit i set when names[i] was present, for the first 64 names
+    int start = 0;
+    final int length = existing.length();
+    while (start < length) {
+      int end = existing.indexOf(',', start);
+      if (end < 0) {
+        end = length;
+      }
+      final int eq = existing.indexOf('=', start);
+      final int i = eq >= 0 && eq < end ? indexOf(existing, start, eq, names) : -1;
+      if (i >= 0) {
+        separate(out).append(existing, start, eq + 1).append(nanos[i]);
+        if (i < 64) {
+          found |= 1L << i;
+        }
+      } else if (end > start) {
+        separate(out).append(existing, start, end);
+      }
+      start = end + 1;
+    }
+    for (int i = 0; i < names.length; i++) {
+      final boolean present = i < 64 ? (found & (1L << i)) != 0 : get(existing, names[i]) != null;
+      if (!present) {
+        separate(out).append(names[i]).append('=').append(nanos[i]);
+      }
+    }
+    return out;
+  }
+
+  /** a processor's entry in a header value, or null if it has none */
+  static String get(String value, String name) {
+    int start = 0;
+    final int length = value.length();
+    while (start < length) {
+      int end = value.indexOf(',', start);
+      if (end < 0) {
+        end = length;
+      }
+      final int eq = value.indexOf('=', start);
+      if (eq >= 0 && eq < end && nameMatches(value, start, eq, name)) {
+        return value.substring(eq + 1, end).trim();
+      }
+      start = end + 1;
+    }
+    return null;
+  }
+
+  private static StringBuilder separate(StringBuilder out) {
+    return out.length() == 0 ? out : out.append(',');
+  }
+
+  private static int indexOf(String value, int start, int eq, String[] names) {
+    for (int i = 0; i < names.length; i++) {
+      if (nameMatches(value, start, eq, names[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** whether value[start, eq), ignoring surrounding spaces, is exactly name */
+  private static boolean nameMatches(String value, int start, int eq, String name) {
+    while (start < eq && value.charAt(start) == ' ') {
+      start++;
+    }
+    while (eq > start && value.charAt(eq - 1) == ' ') {
+      eq--;
+    }
+    return eq - start == name.length() && value.regionMatches(start, name, 0, name.length());
+  }
+}
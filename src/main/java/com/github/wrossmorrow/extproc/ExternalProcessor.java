@@ -3,18 +3,28 @@ package com.github.wrossmorrow.extproc;
 import build.buf.gen.envoy.config.core.v3.HeaderMap;
 import build.buf.gen.envoy.config.core.v3.HeaderValue;
 import build.buf.gen.envoy.service.ext_proc.v3.ExternalProcessorGrpc;
+import build.buf.gen.envoy.service.ext_proc.v3.ImmediateResponse;
 import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
 import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
 import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
+import build.buf.gen.envoy.type.v3.HttpStatus;
+import com.github.wrossmorrow.extproc.metrics.MetricsRegistry;
+import com.github.wrossmorrow.extproc.metrics.ProcessorMetrics;
+import com.github.wrossmorrow.extproc.recording.StreamRecorder;
+import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
 import io.grpc.protobuf.services.HealthStatusManager;
 import io.grpc.stub.StreamObserver;
-import java.time.Duration;
-import java.time.Instant;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 public class ExternalProcessor extends ExternalProcessorGrpc.ExternalProcessorImplBase {
@@ -54,17 +64,22 @@ public class ExternalProcessor extends ExternalProcessorGrpc.ExternalProcessorIm
   }
 
   protected RequestProcessor processor;
+  protected AsyncRequestProcessor asyncProcessor;
   protected String procname;
   protected ProcessingOptions options;
   protected HealthStatusManager health;
   protected Logger logger;
+  protected ProcessorMetrics metrics;
+  protected ProcessorMetrics[] chainMetrics; // for each processor in a RequestProcessorChain
+  protected String[] chainNames; // ditto, for the duration header
+  protected RequestContextPool contextPool; // null unless pooling contexts
+  protected final StreamTracker streams = new StreamTracker();
+  protected long[] phaseBudgets; // nanos, by ProcessorMetrics.phaseIndex; null unless any are set
+  protected ProcessingResponse timeoutResponse; // sent for overrunning phases; null to continue
+  protected StreamRecorder recorder; // null unless recording
 
   public ExternalProcessor(RequestProcessor processor, HealthStatusManager health) {
-    this.processor = processor;
-    this.health = health;
-    this.logger = _logger;
-    this.processor.setHealthManager(new InternalHealthManager(health));
-    defineOptions();
+    this(processor, health, _logger);
   }
 
   public ExternalProcessor(RequestProcessor processor, HealthStatusManager health, Logger logger) {
@@ -72,29 +87,160 @@ public class ExternalProcessor extends ExternalProcessorGrpc.ExternalProcessorIm
     this.health = health;
     this.logger = logger;
     this.processor.setHealthManager(new InternalHealthManager(health));
-    defineOptions();
+    defineOptions(processor.getName(), processor.getOptions());
+  }
+
+  public ExternalProcessor(AsyncRequestProcessor processor, HealthStatusManager health) {
+    this(processor, health, _logger);
   }
 
-  protected void defineOptions() {
-    procname = processor.getName();
-    options = processor.getOptions();
+  public ExternalProcessor(
+      AsyncRequestProcessor processor, HealthStatusManager health, Logger logger) {
+    this.asyncProcessor = processor;
+    this.health = health;
+    this.logger = logger;
+    this.asyncProcessor.setHealthManager(new InternalHealthManager(health));
+    defineOptions(processor.getName(), processor.getOptions());
+  }
+
+  protected void defineOptions(String name, ProcessingOptions opts) {
+    procname = name;
+    options = opts;
+    metrics = MetricsRegistry.getDefault().forProcessor(name);
+    if (processor instanceof RequestProcessorChain) {
+      final RequestProcessorChain chain = (RequestProcessorChain) processor;
+      chainMetrics = new ProcessorMetrics[chain.getProcessors().size()];
+      chainNames = new String[chainMetrics.length];
+      for (int i = 0; i < chainMetrics.length; i++) {
+        chainNames[i] = chain.getName(i);
+        chainMetrics[i] = MetricsRegistry.getDefault().forProcessor(chainNames[i]);
+      }
+    }
+    if (options.contextPoolSize != null && options.contextPoolSize > 0) {
+      contextPool = new RequestContextPool(options.contextPoolSize);
+    }
+    definePhaseBudgets();
+    if (options.recordingDir != null && !options.recordingDir.isEmpty()) {
+      final double rate = options.recordingSampleRate == null ? 1.0 : options.recordingSampleRate;
+      try {
+        recorder = new StreamRecorder(Paths.get(options.recordingDir), procname, rate);
+      } catch (IOException e) {
+        logger.severe("Cannot record to " + options.recordingDir + ", not recording: " + e);
+      }
+    }
     logger.fine("Setting up ExternalProcessor with " + procname + " and options " + options);
   }
 
+  /** precompute the phase deadline budgets and fallback response from the options */
+  protected void definePhaseBudgets() {
+    final long[] budgets = new long[ProcessorMetrics.PHASES.length];
+    boolean any = false;
+    for (int i = 0; i < budgets.length; i++) {
+      final RequestCase phase = ProcessorMetrics.PHASES[i];
+      Long millis = options.phaseTimeouts == null ? null : options.phaseTimeouts.get(phase);
+      if (millis == null) {
+        millis = options.phaseTimeoutMillis;
+      }
+      if (millis != null && millis > 0) {
+        budgets[i] = TimeUnit.MILLISECONDS.toNanos(millis);
+        any = true;
+      }
+    }
+    phaseBudgets = any ? budgets : null;
+    timeoutResponse = null;
+    if (any && options.timeoutStatus != null && options.timeoutStatus > 0) {
+      timeoutResponse =
+          ProcessingResponse.newBuilder()
+              .setImmediateResponse(
+                  ImmediateResponse.newBuilder()
+                      .setStatus(HttpStatus.newBuilder().setCodeValue(options.timeoutStatus)))
+              .build();
+    }
+  }
+
+  /** deadline enforcement for a new stream, or null if no phase has a budget */
+  protected PhaseDeadline newDeadline(
+      RequestContext ctx, StreamObserver<ProcessingResponse> responseObserver, FlowControl flow) {
+    if (phaseBudgets == null) {
+      return null;
+    }
+    return new PhaseDeadline(
+        TimerWheel.shared(), phaseBudgets, timeoutResponse, ctx, responseObserver, flow, metrics);
+  }
+
+  /** the stream recorder, or null if not recording */
+  public StreamRecorder getRecorder() {
+    return recorder;
+  }
+
+  /** stop recording streams, writing out what was recorded; e.g. when the server stops */
+  public void stopRecording() throws InterruptedException {
+    if (recorder != null) {
+      recorder.close();
+    }
+  }
+
+  /** the streams open now, e.g. for draining */
+  public StreamTracker getStreamTracker() {
+    return streams;
+  }
+
+  /** a context for a new stream, from the pool if there is one */
+  protected RequestContext newContext() {
+    return contextPool == null ? new RequestContext() : contextPool.acquire();
+  }
+
+  /** return a closed stream's context to the pool, if there is one */
+  protected void releaseContext(RequestContext ctx) {
+    if (contextPool != null) {
+      contextPool.release(ctx);
+    }
+  }
+
   @Override
   public StreamObserver<ProcessingRequest> process(
       final StreamObserver<ProcessingResponse> responseObserver) {
+    if (asyncProcessor != null) {
+      return processAsync(responseObserver);
+    }
 
-    RequestContext ctx = new RequestContext();
+    RequestContext ctx = newContext();
+    FlowControl flow = new FlowControl(responseObserver, options.flowControl);
+    PhaseDeadline deadline = newDeadline(ctx, responseObserver, flow);
+    StreamRecorder.Stream recording = recorder == null ? null : recorder.open();
+    metrics.streamOpened();
+    streams.opened(ctx);
 
     return new StreamObserver<ProcessingRequest>() {
 
+      // set once the stream is over and ctx released (maybe for reuse by another stream); gRPC
+      // serializes calls into this observer, so this needs no synchronization
+      private boolean done = false;
+
       @Override
       public void onNext(ProcessingRequest request) {
+        if (done) {
+          return;
+        }
+        if (recording != null) {
+          recording.record(request);
+        }
         try {
-          responseObserver.onNext(processPhase(request, ctx));
-          if (ctx.isProcessingComplete()) {
+          if (deadline != null) {
+            deadline.arm(request.getRequestCase());
+          }
+          final ProcessingResponse response = processPhase(request, ctx);
+          // false if the phase overran, and the fallback was sent instead
+          final boolean sent = deadline == null || deadline.disarm();
+          if (sent) {
+            responseObserver.onNext(response);
+          }
+          if (ctx.isProcessingComplete() || (!sent && deadline.endsStream())) {
+            completeStream(ctx);
             responseObserver.onCompleted();
+            release();
+          } else if (sent) {
+            flow.next();
           }
         } catch (Throwable t) {
           onError(t);
@@ -103,42 +249,222 @@ public class ExternalProcessor extends ExternalProcessorGrpc.ExternalProcessorIm
 
       @Override
       public void onError(Throwable err) {
-        if (err instanceof StatusRuntimeException) {
-          StatusRuntimeException sre = (StatusRuntimeException) err;
-          if (sre.getStatus().getCode() == Status.CANCELLED.getCode()) {
-            logger.fine("Request processing stream cancelled during " + ctx.phase);
-          } else {
-            logger.severe("Encountered error in processing during " + ctx.phase + ": " + err);
-            responseObserver.onError(sre);
+        if (!done) {
+          if (deadline != null) {
+            deadline.cancel();
           }
-        } else {
-          logger.severe(
-              "Encountered internal error in processing during " + ctx.phase + ": " + err);
-          StatusRuntimeException sre =
-              Status.INTERNAL.withDescription(err.getMessage()).asRuntimeException();
-          responseObserver.onError(sre);
+          handleError(err, ctx, responseObserver);
+          release();
         }
       }
 
       @Override
       public void onCompleted() {
-        logger.fine("Request processing completed during " + ctx.phase);
-        responseObserver.onCompleted();
+        if (!done) {
+          logger.fine("Request processing completed during " + ctx.phase);
+          completeStream(ctx);
+          responseObserver.onCompleted();
+          release();
+        }
+      }
+
+      private void release() {
+        done = true;
+        if (recording != null) {
+          recording.end();
+        }
+        releaseContext(ctx);
       }
     };
   }
 
-  protected ProcessingResponse processPhase(ProcessingRequest request, RequestContext ctx) {
+  /**
+   * Stream handling for an {@link AsyncRequestProcessor}. Each phase is chained onto the previous
+   * one, so phases run, and responses are sent, in order even though they may complete on other
+   * threads. gRPC serializes calls into this observer, so the chain itself needs no locking.
+   */
+  protected StreamObserver<ProcessingRequest> processAsync(
+      final StreamObserver<ProcessingResponse> responseObserver) {
 
-    final RequestCase phase = request.getRequestCase();
-    final Instant phaseStarted = Instant.now();
+    RequestContext ctx = newContext();
+    FlowControl flow = new FlowControl(responseObserver, options.flowControl);
+    PhaseDeadline deadline = newDeadline(ctx, responseObserver, flow);
+    StreamRecorder.Stream recording = recorder == null ? null : recorder.open();
+    metrics.streamOpened();
+    streams.opened(ctx);
 
-    logger.fine("" + procname + " Processing " + phase.toString());
-    if (options.logPhases) {
-      logger.info("" + procname + " Processing " + phase.toString());
+    return new StreamObserver<ProcessingRequest>() {
+
+      private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+      private final AtomicBoolean closed = new AtomicBoolean(false);
+
+      @Override
+      public void onNext(ProcessingRequest request) {
+        if (recording != null) {
+          recording.record(request);
+        }
+        tail =
+            tail.<Void>thenCompose(
+                    v -> {
+                      if (closed.get()) {
+                        return CompletableFuture.<Void>completedFuture(null);
+                      }
+                      if (deadline != null) {
+                        deadline.arm(request.getRequestCase());
+                      }
+                      return processPhaseAsync(request, ctx)
+                          .thenAccept(
+                              response -> {
+                                if (closed.get()) {
+                                  return; // errored or cancelled while the phase ran
+                                }
+                                final boolean sent = deadline == null || deadline.disarm();
+                                if (sent) {
+                                  responseObserver.onNext(response);
+                                }
+                                final boolean ends =
+                                    ctx.isProcessingComplete() || (!sent && deadline.endsStream());
+                                if (ends && close()) {
+                                  completeStream(ctx);
+                                  responseObserver.onCompleted();
+                                  releaseContext(ctx);
+                                } else if (sent) {
+                                  flow.next();
+                                }
+                              });
+                    })
+                .exceptionally(
+                    t -> {
+                      fail(t instanceof CompletionException ? t.getCause() : t);
+                      return null;
+                    });
+      }
+
+      @Override
+      public void onError(Throwable err) {
+        if (close()) {
+          if (deadline != null) {
+            deadline.cancel();
+          }
+          final boolean cancelled = reportError(err, ctx, responseObserver);
+          // a phase may still be running; close (running close hooks) and release only once
+          // it's done with ctx
+          tail.whenComplete(
+              (v, t) -> {
+                closeErrored(ctx, cancelled);
+                releaseContext(ctx);
+              });
+        }
+      }
+
+      /** a phase failed; it was the last one touching ctx, so ctx can be released now */
+      private void fail(Throwable err) {
+        if (close()) {
+          if (deadline != null) {
+            deadline.cancel();
+          }
+          handleError(err, ctx, responseObserver);
+          releaseContext(ctx);
+        }
+      }
+
+      @Override
+      public void onCompleted() {
+        tail =
+            tail.thenRun(
+                () -> {
+                  if (close()) {
+                    logger.fine("Request processing completed during " + ctx.phase);
+                    completeStream(ctx);
+                    responseObserver.onCompleted();
+                    releaseContext(ctx);
+                  }
+                });
+      }
+
+      /** mark the stream closed, returning true only for the first caller */
+      private boolean close() {
+        if (!closed.compareAndSet(false, true)) {
+          return false;
+        }
+        if (recording != null) {
+          recording.end();
+        }
+        return true;
+      }
+    };
+  }
+
+  /** common error handling, mapping anything but a StatusRuntimeException to INTERNAL */
+  protected void handleError(
+      Throwable err, RequestContext ctx, StreamObserver<ProcessingResponse> responseObserver) {
+    closeErrored(ctx, reportError(err, ctx, responseObserver));
+  }
+
+  /** log an error and send it to envoy, unless envoy cancelled; returns true for a cancel */
+  protected boolean reportError(
+      Throwable err, RequestContext ctx, StreamObserver<ProcessingResponse> responseObserver) {
+    if (err instanceof StatusRuntimeException) {
+      StatusRuntimeException sre = (StatusRuntimeException) err;
+      if (sre.getStatus().getCode() == Status.CANCELLED.getCode()) {
+        logger.fine("Request processing stream cancelled during " + ctx.phase);
+        return true;
+      }
+      logger.severe("Encountered error in processing during " + ctx.phase + ": " + err);
+      responseObserver.onError(sre);
+    } else {
+      logger.severe("Encountered internal error in processing during " + ctx.phase + ": " + err);
+      StatusRuntimeException sre =
+          Status.INTERNAL.withDescription(err.getMessage()).asRuntimeException();
+      responseObserver.onError(sre);
     }
+    return false;
+  }
 
-    ctx.reset(phase);
+  /** close the request's stream after an error or cancel, running its close hooks */
+  protected void closeErrored(RequestContext ctx, boolean cancelled) {
+    if (ctx.close()) {
+      streams.closed(ctx);
+      if (cancelled) {
+        metrics.streamCancelled();
+      } else {
+        metrics.streamErrored();
+      }
+      recordProcessing(ctx);
+    }
+  }
+
+  /** close the request's stream after it completed normally */
+  protected void completeStream(RequestContext ctx) {
+    if (ctx.close()) {
+      streams.closed(ctx);
+      metrics.streamCompleted();
+      recordProcessing(ctx);
+    }
+  }
+
+  /** record a closed stream's total processing time, and each chained processor's */
+  protected void recordProcessing(RequestContext ctx) {
+    metrics.recordProcessing(ctx.durationNanos);
+    if (chainMetrics != null && ctx.processorDurations != null) {
+      for (int i = 0; i < chainMetrics.length && i < ctx.processorDurations.length; i++) {
+        chainMetrics[i].recordProcessing(ctx.processorDurations[i]);
+      }
+    }
+  }
+
+  /** count a body chunk for the request and in metrics */
+  protected void countBodyChunk(RequestCase phase, RequestContext ctx, ByteString chunk) {
+    ctx.countBodyChunk(phase, chunk);
+    metrics.recordBodyBytes(phase, chunk.size());
+  }
+
+  protected ProcessingResponse processPhase(ProcessingRequest request, RequestContext ctx) {
+
+    final RequestCase phase = request.getRequestCase();
+    final long phaseStarted = System.nanoTime();
+
+    startPhase(phase, ctx);
     switch (phase) {
       case REQUEST_HEADERS:
         HeaderMap protoRequestHeaders = request.getRequestHeaders().getHeaders();
@@ -147,9 +473,10 @@ public class ExternalProcessor extends ExternalProcessorGrpc.ExternalProcessorIm
         processor.processRequestHeaders(ctx, requestHeaders);
         break;
       case REQUEST_BODY:
-        String requestBodyString = request.getRequestBody().getBody().toStringUtf8();
+        ByteString requestBody = request.getRequestBody().getBody();
         ctx.endOfStream = request.getRequestBody().getEndOfStream();
-        processor.processRequestBody(ctx, requestBodyString);
+        countBodyChunk(phase, ctx, requestBody);
+        processor.processRequestBody(ctx, requestBody);
         break;
       case REQUEST_TRAILERS:
         Map<String, String> requestTrailers =
@@ -163,9 +490,10 @@ public class ExternalProcessor extends ExternalProcessorGrpc.ExternalProcessorIm
         processor.processResponseHeaders(ctx, responseHeaders);
         break;
       case RESPONSE_BODY:
-        String responseBodyString = request.getResponseBody().getBody().toStringUtf8();
+        ByteString responseBody = request.getResponseBody().getBody();
         ctx.endOfStream = request.getResponseBody().getEndOfStream();
-        processor.processResponseBody(ctx, responseBodyString);
+        countBodyChunk(phase, ctx, responseBody);
+        processor.processResponseBody(ctx, responseBody);
         break;
       case RESPONSE_TRAILERS:
         Map<String, String> responseTrailers =
@@ -176,9 +504,78 @@ public class ExternalProcessor extends ExternalProcessorGrpc.ExternalProcessorIm
         throw new RuntimeException("Unknown processing request type in " + phase);
     }
 
+    return finishPhase(phase, ctx, phaseStarted);
+  }
+
+  /** asynchronous analog of processPhase; the returned stage completes with the response */
+  protected CompletionStage<ProcessingResponse> processPhaseAsync(
+      ProcessingRequest request, RequestContext ctx) {
+
+    final RequestCase phase = request.getRequestCase();
+    final long phaseStarted = System.nanoTime();
+
+    startPhase(phase, ctx);
+    final CompletionStage<Void> stage;
+    switch (phase) {
+      case REQUEST_HEADERS:
+        HeaderMap protoRequestHeaders = request.getRequestHeaders().getHeaders();
+        Map<String, String> requestHeaders = ctx.initializeRequest(protoRequestHeaders);
+        ctx.endOfStream = request.getRequestHeaders().getEndOfStream();
+        stage = asyncProcessor.processRequestHeaders(ctx, requestHeaders);
+        break;
+      case REQUEST_BODY:
+        ByteString requestBody = request.getRequestBody().getBody();
+        ctx.endOfStream = request.getRequestBody().getEndOfStream();
+        countBodyChunk(phase, ctx, requestBody);
+        stage = asyncProcessor.processRequestBody(ctx, requestBody);
+        break;
+      case REQUEST_TRAILERS:
+        Map<String, String> requestTrailers =
+            plainMapFromProtoHeaders(request.getRequestTrailers().getTrailers());
+        stage = asyncProcessor.processRequestTrailers(ctx, requestTrailers);
+        break;
+      case RESPONSE_HEADERS:
+        HeaderMap protoResponseHeaders = request.getResponseHeaders().getHeaders();
+        Map<String, String> responseHeaders = ctx.initializeResponse(protoResponseHeaders);
+        ctx.endOfStream = request.getResponseHeaders().getEndOfStream();
+        stage = asyncProcessor.processResponseHeaders(ctx, responseHeaders);
+        break;
+      case RESPONSE_BODY:
+        ByteString responseBody = request.getResponseBody().getBody();
+        ctx.endOfStream = request.getResponseBody().getEndOfStream();
+        countBodyChunk(phase, ctx, responseBody);
+        stage = asyncProcessor.processResponseBody(ctx, responseBody);
+        break;
+      case RESPONSE_TRAILERS:
+        Map<String, String> responseTrailers =
+            plainMapFromProtoHeaders(request.getResponseTrailers().getTrailers());
+        stage = asyncProcessor.processResponseTrailers(ctx, responseTrailers);
+        break;
+      default:
+        throw new RuntimeException("Unknown processing request type in " + phase);
+    }
+
+    return stage.thenApply(v -> finishPhase(phase, ctx, phaseStarted));
+  }
+
+  protected void startPhase(RequestCase phase, RequestContext ctx) {
+    logger.fine("" + procname + " Processing " + phase.toString());
+    if (options.logPhases) {
+      logger.info("" + procname + " Processing " + phase.toString());
+    }
+    ctx.reset(phase);
+    if (phase == RequestCase.REQUEST_HEADERS && options.processingMode != null) {
+      ctx.overrideProcessingMode(options.processingMode);
+    }
+  }
+
+  protected ProcessingResponse finishPhase(
+      RequestCase phase, RequestContext ctx, long phaseStarted) {
     // we're not capturing response serialization time here, but we can't include
     // info about that in the headers we might include anyway (circularity).
-    ctx.updateDuration(phase, Duration.between(phaseStarted, Instant.now()));
+    final long nanos = System.nanoTime() - phaseStarted;
+    ctx.updateDuration(phase, nanos);
+    metrics.recordPhase(phase, nanos);
     switch (phase) {
       case REQUEST_HEADERS:
       case REQUEST_BODY:
@@ -205,43 +602,37 @@ public class ExternalProcessor extends ExternalProcessorGrpc.ExternalProcessorIm
 
   protected void addUpstreamExtProcHeaders(RequestContext ctx) {
     final String existing = ctx.requestHeaders.getOrDefault(X_EXTPROC_DURATION_NS, "");
-    final Long nanos = ctx.duration.toNanos();
-    ctx.overwriteHeader(X_EXTPROC_DURATION_NS, durationHeaderValue(existing, nanos));
+    ctx.overwriteHeader(X_EXTPROC_DURATION_NS, durationHeaderValue(existing, ctx));
   }
 
   protected void addDownstreamExtProcHeaders(RequestContext ctx) {
     final String existing = ctx.responseHeaders.getOrDefault(X_EXTPROC_DURATION_NS, "");
-    final Long nanos = ctx.duration.toNanos();
-    ctx.overwriteHeader(X_EXTPROC_DURATION_NS, durationHeaderValue(existing, nanos));
+    ctx.overwriteHeader(X_EXTPROC_DURATION_NS, durationHeaderValue(existing, ctx));
   }
 
-  /** return an appended/updated duration header; never returns null */
-  protected String durationHeaderValue(String existing, Long nanos) {
-    final String current = procname + "=" + String.valueOf(nanos);
-    if (existing.isEmpty()) {
-      return current;
-    }
-    String[] timedSections = existing.split(",");
-    if (timedSections.length == 0) {
-      return current;
-    }
-    for (int i = 0; i < timedSections.length; i++) {
-      if (timedSections[i].startsWith(procname)) {
-        timedSections[i] = current;
-        return String.join(",", timedSections);
-      }
+  /**
+   * the duration header with this request's timing: one entry for the processor, or one per
+   * processor in a {@code RequestProcessorChain}, written in one pass into the context's scratch
+   * buffer; see {@link DurationHeader}
+   */
+  protected String durationHeaderValue(String existing, RequestContext ctx) {
+    final StringBuilder out = ctx.scratch();
+    if (chainNames != null && ctx.processorDurations != null) {
+      DurationHeader.update(out, existing, chainNames, ctx.processorDurations);
+    } else {
+      DurationHeader.update(out, existing, procname, ctx.durationNanos);
     }
-    return existing + "," + current;
+    return out.toString();
   }
 
   /** case-insensitive keyed map of headers; never returns null */
   protected static Map<String, String> plainMapFromProtoHeaders(HeaderMap protoHeaders) {
-    Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
     if (protoHeaders == null) {
-      return headers;
+      return new CaseInsensitiveHeaderMap(4);
     }
+    CaseInsensitiveHeaderMap headers = new CaseInsensitiveHeaderMap(protoHeaders.getHeadersCount());
     for (HeaderValue hv : protoHeaders.getHeadersList()) {
-      headers.put(hv.getKey(), hv.getValue());
+      headers.putHeaderValue(hv);
     }
     return headers;
   }
@@ -1,15 +1,26 @@
 package com.github.wrossmorrow.extproc;
 
-import io.grpc.Grpc;
+import com.github.wrossmorrow.extproc.metrics.MetricsExporter;
+import com.github.wrossmorrow.extproc.metrics.MetricsRegistry;
+import com.github.wrossmorrow.extproc.metrics.PrometheusExporter;
 import io.grpc.InsecureServerCredentials;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
 import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.grpc.protobuf.services.HealthStatusManager;
 import io.grpc.protobuf.services.ProtoReflectionService;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -22,24 +33,62 @@ public class ExternalProcessorServer {
 
   public static final String EXT_PROC_SERVICE_NAME = "envoy.service.ext_proc.v3.ExternalProcessor";
 
-  private ServerBuilder<?> builder;
+  /** The result of draining: streams that finished in time, and streams that were cut off */
+  public static class DrainResult {
+    public final int drained;
+    public final int aborted;
+
+    DrainResult(int drained, int aborted) {
+      this.drained = drained;
+      this.aborted = aborted;
+    }
+
+    public String toString() {
+      return "drained(" + drained + ") aborted(" + aborted + ")";
+    }
+  }
+
+  private NettyServerBuilder builder;
   private Server server;
   private HealthStatusManager health;
   private int port = 50051;
   private int gracePeriodSeconds = 30;
+  private ExecutorService ownedExecutor;
+  private int bossEventLoopThreads = 0;
+  private int workerEventLoopThreads = 0;
+  private EventLoopGroup bossEventLoopGroup;
+  private EventLoopGroup workerEventLoopGroup;
   protected List<Runnable> preStopHooks = new ArrayList<Runnable>();
   protected List<Runnable> postStopHooks = new ArrayList<Runnable>();
+  protected List<MetricsExporter> metricsExporters = new ArrayList<MetricsExporter>();
+  protected Map<String, ExternalProcessor> routes = new LinkedHashMap<String, ExternalProcessor>();
+  protected ExternalProcessor defaultRoute;
   protected RequestProcessor processor;
 
   public ExternalProcessorServer builder() {
     return this.builder(port);
   }
 
+  /**
+   * Create the underlying server builder. The executor and event loop sizing can be set here with
+   * the properties {@code extproc.executor} ({@code default}, {@code direct}, {@code workstealing},
+   * or {@code virtual}), {@code extproc.executor.threads}, {@code extproc.netty.boss.threads}, and
+   * {@code extproc.netty.worker.threads}, or later with the corresponding builder methods. Setting
+   * {@code extproc.metrics.port} serves Prometheus metrics on that port.
+   */
   public ExternalProcessorServer builder(int port) {
+    this.port = port;
     health = new HealthStatusManager();
-    builder = Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create());
+    builder = NettyServerBuilder.forPort(port, InsecureServerCredentials.create());
     builder.addService(health.getHealthService());
     builder.addService(ProtoReflectionService.newInstance());
+    setExecutorFromProperties();
+    bossEventLoopThreads = Integer.getInteger("extproc.netty.boss.threads", 0);
+    workerEventLoopThreads = Integer.getInteger("extproc.netty.worker.threads", 0);
+    final int metricsPort = Integer.getInteger("extproc.metrics.port", 0);
+    if (metricsPort > 0) {
+      servePrometheusMetrics(metricsPort);
+    }
     return this;
   }
 
@@ -74,12 +123,78 @@ public class ExternalProcessorServer {
    * close the kafka producer.
    */
   public ExternalProcessorServer addRequestProcessor(RequestProcessor processor) {
+    return addRequestProcessor(processor.getName(), processor);
+  }
+
+  /**
+   * Add a request processor under a route name. A server can host several processors, and each
+   * stream goes to the one named by its {@code x-extproc-route} metadata (see {@link
+   * RoutingExternalProcessor}); streams without it go to the first processor added, or the one
+   * set with {@link #setDefaultRoute}. Processors added without a route are routed by name.
+   */
+  public ExternalProcessorServer addRequestProcessor(String route, RequestProcessor processor) {
     logger.fine("Adding request processor \"" + processor.getName() + "\" to server");
-    builder.addService(new ExternalProcessor(processor, health));
+    addRoute(route, new ExternalProcessor(processor, health));
     // NOTE: processor.shutdown will be called _after_ the server is stopped
     return addPostStopHook(() -> processor.shutdown());
   }
 
+  /** Add an asynchronous request processor, with the same shutdown handling as above */
+  public ExternalProcessorServer addRequestProcessor(AsyncRequestProcessor processor) {
+    return addRequestProcessor(processor.getName(), processor);
+  }
+
+  /** Add an asynchronous request processor under a route name */
+  public ExternalProcessorServer addRequestProcessor(
+      String route, AsyncRequestProcessor processor) {
+    logger.fine("Adding async request processor \"" + processor.getName() + "\" to server");
+    addRoute(route, new ExternalProcessor(processor, health));
+    return addPostStopHook(() -> processor.shutdown());
+  }
+
+  /** Send streams that don't name a route to the processor added under this one */
+  public ExternalProcessorServer setDefaultRoute(String route) {
+    logger.fine("Setting default route to \"" + route + "\"");
+    if (!routes.containsKey(route)) {
+      throw new IllegalArgumentException("No processor added for route \"" + route + "\"");
+    }
+    defaultRoute = routes.get(route);
+    return this;
+  }
+
+  private void addRoute(String route, ExternalProcessor service) {
+    if (routes.containsKey(route)) {
+      throw new IllegalArgumentException(
+          "A processor is already added for route \"" + route + "\"");
+    }
+    routes.put(route, service);
+    if (defaultRoute == null) {
+      defaultRoute = service;
+    }
+  }
+
+  /** Add the processing service: the processor itself if there's one, otherwise a router */
+  private void addProcessingService() {
+    if (routes.size() == 1) {
+      builder.addService(defaultRoute);
+    } else if (routes.size() > 1) {
+      logger.info("Routing to processors " + routes.keySet());
+      builder.addService(new RoutingExternalProcessor(routes, defaultRoute).serviceDefinition());
+    }
+  }
+
+  /** Add a metrics exporter, started with the server and stopped after it stops */
+  public ExternalProcessorServer addMetricsExporter(MetricsExporter exporter) {
+    logger.fine("Adding metrics exporter " + exporter.getClass().getName());
+    metricsExporters.add(exporter);
+    return this;
+  }
+
+  /** Serve metrics for scraping by Prometheus at {@code /metrics} on a port */
+  public ExternalProcessorServer servePrometheusMetrics(int port) {
+    return addMetricsExporter(new PrometheusExporter(port));
+  }
+
   /** Declare that, yes, we should set to NOT_SERVING before stopping */
   public ExternalProcessorServer stopServingOnShutdown() {
     return addPreStopHook(() -> setExternalProcessorNotServing());
@@ -132,10 +247,128 @@ public class ExternalProcessorServer {
     return this;
   }
 
+  /**
+   * Run processing on the gRPC transport threads. This avoids a thread handoff per message, and is
+   * the fastest option for processors that do little, non-blocking work; a processor that blocks
+   * will stall every stream on its event loop.
+   */
+  public ExternalProcessorServer useDirectExecutor() {
+    logger.fine("Using direct executor");
+    replaceOwnedExecutor(null);
+    builder.directExecutor();
+    return this;
+  }
+
+  /** Run processing on a bounded work-stealing pool with the given parallelism */
+  public ExternalProcessorServer useWorkStealingExecutor(int parallelism) {
+    logger.fine("Using work-stealing executor with parallelism " + parallelism);
+    return useOwnedExecutor(Executors.newWorkStealingPool(parallelism));
+  }
+
+  /**
+   * Run processing on virtual threads, suited to processors that block. Virtual threads need JDK
+   * 21+; on older runtimes this falls back to a cached thread pool (the gRPC default).
+   */
+  public ExternalProcessorServer useVirtualThreadExecutor() {
+    logger.fine("Using virtual thread executor");
+    return useOwnedExecutor(newVirtualThreadExecutor());
+  }
+
+  /** Run processing on a caller-supplied executor, which the caller is responsible for closing */
+  public ExternalProcessorServer setExecutor(Executor executor) {
+    logger.fine("Using supplied executor " + executor);
+    replaceOwnedExecutor(null);
+    builder.executor(executor);
+    return this;
+  }
+
+  /** Set the number of netty boss (accepting) event loop threads; 0 uses the netty default */
+  public ExternalProcessorServer setBossEventLoopThreads(int threads) {
+    logger.fine("Setting boss event loop threads to " + threads);
+    bossEventLoopThreads = threads;
+    return this;
+  }
+
+  /** Set the number of netty worker (I/O) event loop threads; 0 uses the netty default */
+  public ExternalProcessorServer setWorkerEventLoopThreads(int threads) {
+    logger.fine("Setting worker event loop threads to " + threads);
+    workerEventLoopThreads = threads;
+    return this;
+  }
+
+  private ExternalProcessorServer useOwnedExecutor(ExecutorService executor) {
+    replaceOwnedExecutor(executor);
+    builder.executor(executor);
+    return this;
+  }
+
+  private void replaceOwnedExecutor(ExecutorService executor) {
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+    ownedExecutor = executor;
+  }
+
+  private void setExecutorFromProperties() {
+    final String executor = System.getProperty("extproc.executor", "default");
+    final int threads =
+        Integer.getInteger("extproc.executor.threads", Runtime.getRuntime().availableProcessors());
+    switch (executor) {
+      case "default":
+        break;
+      case "direct":
+        useDirectExecutor();
+        break;
+      case "workstealing":
+        useWorkStealingExecutor(threads);
+        break;
+      case "virtual":
+        useVirtualThreadExecutor();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown extproc.executor \"" + executor + "\"");
+    }
+  }
+
+  /** Executors.newVirtualThreadPerTaskExecutor() without requiring JDK 21 to compile */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      logger.warning("Virtual threads are not available (JDK 21+), using a cached thread pool");
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /** event loop groups have to be supplied together, along with the channel type */
+  private void configureEventLoopGroups() {
+    if (bossEventLoopThreads <= 0 && workerEventLoopThreads <= 0) {
+      return;
+    }
+    logger.fine(
+        "Using "
+            + bossEventLoopThreads
+            + " boss and "
+            + workerEventLoopThreads
+            + " worker event loop threads");
+    bossEventLoopGroup = new NioEventLoopGroup(Math.max(bossEventLoopThreads, 1));
+    workerEventLoopGroup = new NioEventLoopGroup(Math.max(workerEventLoopThreads, 0));
+    builder
+        .bossEventLoopGroup(bossEventLoopGroup)
+        .workerEventLoopGroup(workerEventLoopGroup)
+        .channelType(NioServerSocketChannel.class);
+  }
+
   /** Start the external processor also adding a JVM shutdown wrapper */
   public ExternalProcessorServer start() throws IOException {
+    configureEventLoopGroups();
+    addProcessingService();
     server = builder.build().start();
     logger.info("Server started, listening on " + port);
+    for (MetricsExporter exporter : metricsExporters) {
+      exporter.start(MetricsRegistry.getDefault());
+    }
     Runtime.getRuntime()
         .addShutdownHook(
             new Thread() {
@@ -164,8 +397,8 @@ public class ExternalProcessorServer {
       for (Runnable hook : preStopHooks) {
         hook.run();
       }
-      logger.fine("Stopping server waiting " + gracePeriodSeconds + " seconds");
-      server.shutdown().awaitTermination(gracePeriodSeconds, TimeUnit.SECONDS);
+      drain();
+      releaseResources();
       logger.fine("running postStop hooks");
       for (Runnable hook : postStopHooks) {
         hook.run();
@@ -173,6 +406,90 @@ public class ExternalProcessorServer {
     }
   }
 
+  /** Drain within the termination grace period; see {@link #drain(long, TimeUnit)} */
+  public DrainResult drain() throws InterruptedException {
+    return drain(gracePeriodSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Drain the server: set NOT_SERVING, stop accepting streams, and wait up to a timeout for the
+   * streams in flight to finish, then force-close any that haven't (they're cancelled, which envoy
+   * handles per the filter's {@code failure_mode_allow}). Returns how many streams finished and how
+   * many were cut off. {@link #stop()} drains with the termination grace period.
+   */
+  public DrainResult drain(long timeout, TimeUnit unit) throws InterruptedException {
+    if (server == null) {
+      return new DrainResult(0, 0);
+    }
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    setExternalProcessorNotServing();
+    server.shutdown();
+    final int inFlight = activeStreams();
+    logger.info("Draining " + inFlight + " streams, waiting up to " + timeout + " " + unit);
+    for (ExternalProcessor service : routes.values()) {
+      final long remaining = deadline - System.nanoTime();
+      if (!service.getStreamTracker().awaitIdle(remaining, TimeUnit.NANOSECONDS)) {
+        break;
+      }
+    }
+    final int aborted = activeStreams();
+    if (aborted > 0) {
+      logger.warning("Aborting " + aborted + " streams still in flight, by phase " + phases());
+      server.shutdownNow();
+    }
+    final long remaining = Math.max(deadline - System.nanoTime(), TimeUnit.SECONDS.toNanos(1));
+    if (!server.awaitTermination(remaining, TimeUnit.NANOSECONDS)) {
+      server.shutdownNow();
+    }
+    final DrainResult result = new DrainResult(Math.max(inFlight - aborted, 0), aborted);
+    logger.info("Drained server: " + result);
+    return result;
+  }
+
+  /** number of streams open now, over all processors */
+  public int activeStreams() {
+    int active = 0;
+    for (ExternalProcessor service : routes.values()) {
+      active += service.getStreamTracker().getActive();
+    }
+    return active;
+  }
+
+  /** counts of open streams by the phase they're in, for logging */
+  private Map<String, Integer> phases() {
+    Map<String, Integer> phases = new TreeMap<String, Integer>();
+    for (ExternalProcessor service : routes.values()) {
+      for (RequestContext ctx : service.getStreamTracker().getStreams()) {
+        phases.merge(String.valueOf(ctx.phase), 1, Integer::sum);
+      }
+    }
+    return phases;
+  }
+
+  /** Internal method to shut down executors and event loops the server created */
+  private void releaseResources() {
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+    for (ExternalProcessor route : routes.values()) {
+      try {
+        route.stopRecording();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (MetricsExporter exporter : metricsExporters) {
+      exporter.stop();
+    }
+    // the server does not shut down event loop groups it was given
+    if (bossEventLoopGroup != null) {
+      bossEventLoopGroup.shutdownGracefully();
+    }
+    if (workerEventLoopGroup != null) {
+      workerEventLoopGroup.shutdownGracefully();
+    }
+  }
+
   /** Await termination on the main thread since the grpc library uses daemon threads. */
   public void blockUntilShutdown() throws InterruptedException {
     logger.fine("Blocking until shutdown");
@@ -181,11 +498,56 @@ public class ExternalProcessorServer {
     }
   }
 
-  /** Instantiate a RequestProcessor from the extproc.processor_class property. */
-  private static RequestProcessor getProcessorFromProperties() throws Exception {
-    String processor = System.getProperty("extproc.class", DEFAULT_EXTPROC_CLASS);
-    logger.fine("Running with processor \"" + processor + "\" derived from properties");
-    return (RequestProcessor) Class.forName(processor).getConstructor().newInstance();
+  /**
+   * Instantiate the processors named by the extproc.class property, each a {@code
+   * RequestProcessor} or an {@code AsyncRequestProcessor}. A comma-separated list of classes is run
+   * as a {@code RequestProcessorChain}, in one stream; several processors (or chains) separated by
+   * semicolons are all served, routed by name.
+   */
+  public static List<Object> processorsFromProperties() throws Exception {
+    String classes = System.getProperty("extproc.class", DEFAULT_EXTPROC_CLASS);
+    logger.fine("Running with processors \"" + classes + "\" derived from properties");
+    List<Object> processors = new ArrayList<Object>();
+    for (String processor : classes.split(";")) {
+      processor = processor.trim();
+      if (processor.isEmpty()) {
+        continue;
+      }
+      if (processor.contains(",")) {
+        processors.add(RequestProcessorChain.fromClassNames(processor));
+      } else {
+        processors.add(Class.forName(processor).getConstructor().newInstance());
+      }
+    }
+    return processors;
+  }
+
+  /**
+   * The processor from the extproc.class property (see above) served under a route, or the
+   * default route's if that's null; for tools that drive a single processor
+   */
+  public static Object processorFromProperties(String route) throws Exception {
+    List<Object> processors = processorsFromProperties();
+    if (processors.isEmpty()) {
+      throw new IllegalArgumentException("extproc.class names no processors");
+    }
+    if (route == null) {
+      return processors.get(0);
+    }
+    for (Object processor : processors) {
+      if (route.equals(nameOf(processor))) {
+        return processor;
+      }
+    }
+    throw new IllegalArgumentException(
+        "extproc.class has no processor for route \"" + route + "\"");
+  }
+
+  /** the name of a {@code RequestProcessor} or {@code AsyncRequestProcessor} */
+  public static String nameOf(Object processor) {
+    return processor instanceof AsyncRequestProcessor
+        ? ((AsyncRequestProcessor) processor).getName()
+        : ((RequestProcessor) processor).getName();
   }
 
   /**
@@ -194,11 +556,15 @@ public class ExternalProcessorServer {
    * use and chaining to add whatever other properties or hooks needed.
    */
   public static void main(String[] args) throws Exception {
-    new ExternalProcessorServer()
-        .builder()
-        .stopServingOnShutdownFirst()
-        .addRequestProcessor(getProcessorFromProperties())
-        .start()
-        .blockUntilShutdown();
+    ExternalProcessorServer server = new ExternalProcessorServer().builder();
+    server.stopServingOnShutdownFirst();
+    for (Object processor : processorsFromProperties()) {
+      if (processor instanceof AsyncRequestProcessor) {
+        server.addRequestProcessor((AsyncRequestProcessor) processor);
+      } else {
+        server.addRequestProcessor((RequestProcessor) processor);
+      }
+    }
+    server.start().blockUntilShutdown();
   }
 }
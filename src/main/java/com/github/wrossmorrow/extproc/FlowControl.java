@@ -0,0 +1,50 @@
+package com.github.wrossmorrow.extproc;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Manual gRPC flow control for a processing stream: the next message (e.g. body chunk) is only
+ * requested from envoy after the response to the last one has been sent and the response stream
+ * can take more. Without this gRPC requests messages as fast as envoy sends them, so a slow
+ * processor (or a slow envoy reading responses) in {@code STREAMED} mode buffers chunks without
+ * bound instead of pushing back on envoy.
+ *
+ * <p>Must be created in {@code ExternalProcessor.process}, before the call starts. Does nothing if
+ * the response observer isn't a {@code ServerCallStreamObserver} (e.g. in tests) or it's disabled.
+ */
+class FlowControl {
+
+  private final ServerCallStreamObserver<?> call;
+  private boolean pending; // a message is wanted, once the call is ready
+
+  FlowControl(StreamObserver<?> responseObserver, boolean enabled) {
+    if (enabled && responseObserver instanceof ServerCallStreamObserver) {
+      call = (ServerCallStreamObserver<?>) responseObserver;
+      call.disableAutoRequest();
+      call.setOnReadyHandler(this::onReady);
+      call.request(1);
+    } else {
+      call = null;
+    }
+  }
+
+  /** request the next message, now or when the response stream is ready */
+  synchronized void next() {
+    if (call == null) {
+      return;
+    }
+    if (call.isReady()) {
+      call.request(1);
+    } else {
+      pending = true;
+    }
+  }
+
+  private synchronized void onReady() {
+    if (pending && call.isReady()) {
+      pending = false;
+      call.request(1);
+    }
+  }
+}
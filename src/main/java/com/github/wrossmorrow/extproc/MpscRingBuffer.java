@@ -0,0 +1,90 @@
+package com.github.wrossmorrow.extproc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producers and one consumer, for handing work off the request
+ * path to a background thread. Each slot carries a sequence number saying whether it's free for the
+ * producer at a given position or filled for the consumer, so producers only contend on one CAS to
+ * claim a position and the consumer takes no locks at all (Vyukov's bounded queue). {@link #offer}
+ * never blocks: when the queue is full it returns false, and the caller decides what dropping
+ * means.
+ *
+ * <p>{@link #poll} must only ever be called from one thread at a time.
+ */
+public final class MpscRingBuffer<E> {
+
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong(); // next position to offer to
+  private volatile long head; // next position to poll; only written by the consumer
+
+  /** a queue holding at least {@code capacity} elements (rounded up to a power of two) */
+  public MpscRingBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("MpscRingBuffer capacity must be positive");
+    }
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    elements = new AtomicReferenceArray<E>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    mask = size - 1;
+  }
+
+  /** add an element, returning false (and doing nothing) if the queue is full */
+  public boolean offer(E element) {
+    if (element == null) {
+      throw new NullPointerException();
+    }
+    while (true) {
+      final long position = tail.get();
+      final int slot = (int) position & mask;
+      final long available = sequences.get(slot) - position;
+      if (available == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          elements.lazySet(slot, element);
+          sequences.lazySet(slot, position + 1); // publishes the element to the consumer
+          return true;
+        }
+      } else if (available < 0) {
+        return false; // the consumer hasn't got to this slot's last element
+      }
+      // otherwise another producer claimed the position first; try the next one
+    }
+  }
+
+  /** take the oldest element, or null if there is none; consumer only */
+  public E poll() {
+    final long position = head;
+    final int slot = (int) position & mask;
+    if (sequences.get(slot) != position + 1) {
+      return null; // empty, or the producer at this position hasn't published yet
+    }
+    final E element = elements.get(slot);
+    elements.lazySet(slot, null);
+    sequences.lazySet(slot, position + mask + 1); // free for the producer a lap later
+    head = position + 1;
+    return element;
+  }
+
+  /** elements waiting, approximately */
+  public int size() {
+    return (int) Math.max(0, Math.min(capacity(), tail.get() - head));
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+}
@@ -0,0 +1,127 @@
+package com.github.wrossmorrow.extproc;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
+import com.github.wrossmorrow.extproc.metrics.ProcessorMetrics;
+import io.grpc.stub.StreamObserver;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Enforces a stream's per-phase deadline budgets. One of these is made per stream (when budgets are
+ * configured) and rescheduled on the shared {@link TimerWheel} for every phase. Whoever gets to the
+ * phase's response first sends it: the processor, finishing in time, or the wheel, sending the
+ * fallback (continue unchanged, or an immediate response) in its place and flagging the context
+ * with {@link RequestContext#isDeadlineExceeded()}. The processor can't be interrupted, so it runs
+ * to the end of the phase regardless; its late response is dropped, and the next phase starts
+ * after it.
+ *
+ * <p>Claiming the response is a CAS on a per-phase state word, so the usual case (the processor in
+ * time) costs a bucket insert and removal plus one CAS. The wheel sends the fallback holding this
+ * object's lock, which a processor that lost the race takes before carrying on, so the stream never
+ * sees two sends at once.
+ */
+final class PhaseDeadline extends TimerWheel.Timeout {
+  private static final Logger logger = Logger.getLogger(PhaseDeadline.class.getName());
+
+  private final TimerWheel wheel;
+  private final long[] budgets; // nanos, by ProcessorMetrics.phaseIndex; 0 for none
+  private final ProcessingResponse immediate; // null to continue unchanged
+  private final RequestContext ctx;
+  private final StreamObserver<ProcessingResponse> responseObserver;
+  private final FlowControl flow;
+  private final ProcessorMetrics metrics;
+
+  // phase sequence number << 1, with the low bit set once the phase's response is claimed
+  private final AtomicInteger state = new AtomicInteger(1);
+  private volatile long expiresAt;
+  private volatile RequestCase phase;
+  private boolean expired; // whether the fallback was sent for the current phase
+
+  PhaseDeadline(
+      TimerWheel wheel,
+      long[] budgets,
+      ProcessingResponse immediate,
+      RequestContext ctx,
+      StreamObserver<ProcessingResponse> responseObserver,
+      FlowControl flow,
+      ProcessorMetrics metrics) {
+    this.wheel = wheel;
+    this.budgets = budgets;
+    this.immediate = immediate;
+    this.ctx = ctx;
+    this.responseObserver = responseObserver;
+    this.flow = flow;
+    this.metrics = metrics;
+  }
+
+  /** start the clock on a phase, if it has a budget */
+  void arm(RequestCase phase) {
+    ctx.deadlineExceeded = false;
+    expired = false;
+    final int index = ProcessorMetrics.phaseIndex(phase);
+    final long budget = index < 0 ? 0L : budgets[index];
+    final int next = (state.get() & ~1) + 2;
+    if (budget <= 0) {
+      state.set(next);
+      return;
+    }
+    this.phase = phase;
+    expiresAt = System.nanoTime() + budget; // written before the state, see expire
+    state.set(next);
+    wheel.schedule(this, expiresAt);
+  }
+
+  /**
+   * stop the clock at the end of a phase, returning true if the caller should send the phase's
+   * response, or false if the fallback was sent instead
+   */
+  boolean disarm() {
+    wheel.cancel(this);
+    final int current = state.get();
+    if ((current & 1) == 0 && state.compareAndSet(current, current | 1)) {
+      return true;
+    }
+    synchronized (this) {
+      expired = true; // and the fallback has been sent
+    }
+    return false;
+  }
+
+  /** whether the fallback sent for this phase was an immediate response, ending the stream */
+  boolean endsStream() {
+    return expired && immediate != null;
+  }
+
+  /** stop for good, e.g. when the stream errors, waiting out a fallback being sent */
+  synchronized void cancel() {
+    wheel.cancel(this);
+    state.getAndUpdate(s -> s | 1);
+  }
+
+  @Override
+  protected synchronized void expire() {
+    final int current = state.get();
+    // a stale expiry (from an earlier phase) sees the later phase's deadline, not yet passed
+    if ((current & 1) != 0 || System.nanoTime() - expiresAt < 0) {
+      return;
+    }
+    if (!state.compareAndSet(current, current | 1)) {
+      return;
+    }
+    final RequestCase phase = this.phase;
+    ctx.deadlineExceeded = true;
+    metrics.phaseTimedOut(phase);
+    logger.fine("Deadline exceeded during " + phase + "; sending the fallback response");
+    try {
+      if (immediate != null) {
+        responseObserver.onNext(immediate);
+      } else {
+        responseObserver.onNext(RequestContext.continueResponse(phase));
+        flow.next();
+      }
+    } catch (RuntimeException e) {
+      logger.fine("Could not send fallback response during " + phase + ": " + e);
+    }
+  }
+}
@@ -1,17 +1,72 @@
 package com.github.wrossmorrow.extproc;
 
+import build.buf.gen.envoy.extensions.filters.http.ext_proc.v3.ProcessingMode;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import java.util.Map;
+
 public class ProcessingOptions {
+
+  /** a mode for processors that only need headers: no bodies, no trailers */
+  public static final ProcessingMode HEADERS_ONLY =
+      ProcessingMode.newBuilder()
+          .setRequestHeaderMode(ProcessingMode.HeaderSendMode.SEND)
+          .setResponseHeaderMode(ProcessingMode.HeaderSendMode.SEND)
+          .setRequestBodyMode(ProcessingMode.BodySendMode.NONE)
+          .setResponseBodyMode(ProcessingMode.BodySendMode.NONE)
+          .setRequestTrailerMode(ProcessingMode.HeaderSendMode.SKIP)
+          .setResponseTrailerMode(ProcessingMode.HeaderSendMode.SKIP)
+          .build();
+
   public Boolean logStream;
   public Boolean logPhases;
   public Boolean upstreamDurationHeader;
   public Boolean downstreamDurationHeader;
   public Boolean closeStreamOnEndOfStream;
+  public Boolean flowControl;
+  // idle RequestContexts to keep for reuse by later streams; 0 (the default) disables pooling
+  public Integer contextPoolSize;
+
+  /**
+   * Deadline budget for each phase, in milliseconds; 0 (the default) for none. A phase still
+   * running when its budget is up is answered with the fallback response (see {@link
+   * #timeoutStatus}) so envoy can move on, and the processor can see {@code
+   * RequestContext.isDeadlineExceeded()}. Set budgets well under envoy's {@code message_timeout}.
+   */
+  public Long phaseTimeoutMillis;
+  // budgets for particular phases, overriding phaseTimeoutMillis; null (the default) for none
+  public Map<RequestCase, Long> phaseTimeouts;
+  // HTTP status of the immediate response sent when a phase overruns; 0 (the default) to continue
+  public Integer timeoutStatus;
+
+  /**
+   * Directory to record sampled streams to, for replaying later; null (the default) to not record.
+   * See {@code recording.StreamRecorder} and {@code recording.Replay}.
+   */
+  public String recordingDir;
+  // fraction of streams to record, from 0 to 1 (the default)
+  public Double recordingSampleRate;
+
+  /**
+   * The phases this processor needs, sent to envoy as a {@code mode_override} in response to
+   * request headers (envoy must be configured with {@code allow_mode_override: true}). An override
+   * replaces envoy's whole processing mode, so set every field. Null (the default) leaves envoy's
+   * configured mode alone; see also {@code RequestContext.overrideRequestBodyMode} etc. for
+   * per-request decisions.
+   */
+  public ProcessingMode processingMode;
 
   public ProcessingOptions() {
     logStream = Boolean.getBoolean("extproc.logs.stream");
     logPhases = Boolean.getBoolean("extproc.logs.phases");
     upstreamDurationHeader = Boolean.getBoolean("extproc.upstream.headers.duration");
     downstreamDurationHeader = Boolean.getBoolean("extproc.downstream.headers.duration");
+    // request each message only after responding to the last; on unless set to false
+    flowControl = !"false".equalsIgnoreCase(System.getProperty("extproc.flow.control"));
+    contextPoolSize = Integer.getInteger("extproc.context.pool.size", 0);
+    phaseTimeoutMillis = Long.getLong("extproc.phase.timeout.ms", 0L);
+    timeoutStatus = Integer.getInteger("extproc.phase.timeout.status", 0);
+    recordingDir = System.getProperty("extproc.recording.dir");
+    recordingSampleRate = Double.parseDouble(System.getProperty("extproc.recording.sample", "1"));
   }
 
   public String toString() {
@@ -21,6 +76,32 @@ public class ProcessingOptions {
     opts.append(" upstreamDurationHeader(" + upstreamDurationHeader + ")");
     opts.append(" downstreamDurationHeader(" + downstreamDurationHeader + ")");
     opts.append(" closeStreamOnEndOfStream(" + closeStreamOnEndOfStream + ")");
+    opts.append(" flowControl(" + flowControl + ")");
+    opts.append(" contextPoolSize(" + contextPoolSize + ")");
+    opts.append(" phaseTimeoutMillis(" + phaseTimeoutMillis + ")");
+    opts.append(" phaseTimeouts(" + phaseTimeouts + ")");
+    opts.append(" timeoutStatus(" + timeoutStatus + ")");
+    opts.append(" recordingDir(" + recordingDir + ")");
+    opts.append(" recordingSampleRate(" + recordingSampleRate + ")");
+    opts.append(" processingMode(" + modeString(processingMode) + ")");
     return getClass().getName() + "@" + Integer.toHexString(hashCode()) + ": " + opts.toString();
   }
+
+  /** a ProcessingMode on one line */
+  static String modeString(ProcessingMode mode) {
+    if (mode == null) {
+      return "null";
+    }
+    return mode.getRequestHeaderMode()
+        + ","
+        + mode.getRequestBodyMode()
+        + ","
+        + mode.getRequestTrailerMode()
+        + ","
+        + mode.getResponseHeaderMode()
+        + ","
+        + mode.getResponseBodyMode()
+        + ","
+        + mode.getResponseTrailerMode();
+  }
 }
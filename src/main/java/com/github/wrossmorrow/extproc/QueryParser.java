@@ -0,0 +1,131 @@
+package com.github.wrossmorrow.extproc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index-based parsing of (raw, still encoded) query strings. Each key and value is split out and
+ * then decoded on its own, so encoded {@code &} and {@code =} stay inside the value they belong to,
+ * and decoding returns a plain substring (no copy for the whole query) when there is nothing to
+ * decode. Decoding follows {@code URLDecoder}: {@code +} is a space and {@code %XX} runs are UTF-8,
+ * but a malformed escape is kept literally instead of throwing.
+ */
+final class QueryParser {
+
+  private QueryParser() {}
+
+  /** all parameters, in a map of names to (non-empty) values; names without values map to [] */
+  static Map<String, List<String>> parse(String query) {
+    final Map<String, List<String>> params = new HashMap<String, List<String>>();
+    int start = 0;
+    final int length = query.length();
+    while (start < length) {
+      int end = query.indexOf('&', start);
+      if (end < 0) {
+        end = length;
+      }
+      if (end > start) {
+        final int eq = indexOf(query, '=', start, end);
+        final String key = decode(query, start, eq < 0 ? end : eq);
+        List<String> values = params.get(key);
+        if (values == null) {
+          values = new ArrayList<String>(1);
+          params.put(key, values);
+        }
+        if (eq >= 0 && eq + 1 < end) {
+          values.add(decode(query, eq + 1, end));
+        }
+      }
+      start = end + 1;
+    }
+    return params;
+  }
+
+  /** the first value for a parameter, "" if it has none, or null if it is absent */
+  static String get(String query, String name) {
+    int start = 0;
+    final int length = query.length();
+    while (start < length) {
+      int end = query.indexOf('&', start);
+      if (end < 0) {
+        end = length;
+      }
+      final int eq = indexOf(query, '=', start, end);
+      if (end > start && keyMatches(query, start, eq < 0 ? end : eq, name)) {
+        return eq < 0 ? "" : decode(query, eq + 1, end);
+      }
+      start = end + 1;
+    }
+    return null;
+  }
+
+  /** decode query[start, end) */
+  static String decode(String s, int start, int end) {
+    int i = start;
+    while (i < end && s.charAt(i) != '%' && s.charAt(i) != '+') {
+      i++;
+    }
+    if (i == end) {
+      return s.substring(start, end);
+    }
+    final StringBuilder out = new StringBuilder(end - start).append(s, start, i);
+    byte[] bytes = null;
+    while (i < end) {
+      final char c = s.charAt(i);
+      if (c == '+') {
+        out.append(' ');
+        i++;
+      } else if (c == '%' && isEscape(s, i, end)) {
+        // decode a run of escapes together, as they may be one multi-byte character
+        if (bytes == null) {
+          bytes = new byte[(end - i) / 3];
+        }
+        int n = 0;
+        while (i < end && s.charAt(i) == '%' && isEscape(s, i, end)) {
+          bytes[n++] = (byte) (hex(s.charAt(i + 1)) << 4 | hex(s.charAt(i + 2)));
+          i += 3;
+        }
+        out.append(new String(bytes, 0, n, StandardCharsets.UTF_8));
+      } else {
+        out.append(c);
+        i++;
+      }
+    }
+    return out.toString();
+  }
+
+  private static boolean keyMatches(String query, int start, int end, String name) {
+    for (int i = start; i < end; i++) {
+      final char c = query.charAt(i);
+      if (c == '%' || c == '+') {
+        return decode(query, start, end).equals(name);
+      }
+    }
+    return end - start == name.length() && query.regionMatches(start, name, 0, name.length());
+  }
+
+  private static boolean isEscape(String s, int i, int end) {
+    return i + 2 < end && hex(s.charAt(i + 1)) >= 0 && hex(s.charAt(i + 2)) >= 0;
+  }
+
+  private static int indexOf(String s, char c, int start, int end) {
+    final int i = s.indexOf(c, start);
+    return i < end ? i : -1;
+  }
+
+  private static int hex(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    return -1;
+  }
+}
@@ -3,6 +3,7 @@ package com.github.wrossmorrow.extproc;
 import build.buf.gen.envoy.config.core.v3.HeaderMap;
 import build.buf.gen.envoy.config.core.v3.HeaderValue;
 import build.buf.gen.envoy.config.core.v3.HeaderValueOption;
+import build.buf.gen.envoy.extensions.filters.http.ext_proc.v3.ProcessingMode;
 import build.buf.gen.envoy.service.ext_proc.v3.BodyMutation;
 import build.buf.gen.envoy.service.ext_proc.v3.BodyResponse;
 import build.buf.gen.envoy.service.ext_proc.v3.CommonResponse;
@@ -16,94 +17,105 @@ import build.buf.gen.envoy.service.ext_proc.v3.TrailersResponse;
 import build.buf.gen.envoy.type.v3.HttpStatus;
 import build.buf.gen.envoy.type.v3.StatusCode;
 import com.google.protobuf.ByteString;
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.logging.Logger;
 
 public class RequestContext {
 
-  private static final Base64.Encoder encoder = Base64.getEncoder();
-
-  private class SafeHeader {
-    private final String key;
-    private final byte[] raw;
-    private String value;
-    private final boolean _isBytes;
-
-    public SafeHeader(HeaderValue hv) {
-      this.key = hv.getKey();
-      this.value = hv.getValue();
-      this.raw = hv.getRawValue().toByteArray();
-      if (this.value.isEmpty() && this.raw.length > 0) {
-        this._isBytes = true;
-        try {
-          // envoy may pass headers with raw values that are simply UTF-8 bytes
-          // or the value may actually include non-UTF-8 bytes. If it is UTF-8,
-          // we can safely convert it to a string, otherwise we'll just leave it
-          // in the raw field
-          this.value = new String(this.raw, StandardCharsets.UTF_8);
-        } catch (Exception e) {
-          // if we can't convert it to a string explicitly, we'll cast into base64
-          // so we can always treat header values as strings
-          this.value = encoder.encodeToString(this.raw);
-        }
-      } else {
-        this._isBytes = false;
-      }
-    }
-
-    public String getKey() {
-      return key;
-    }
-
-    public String getValue() {
-      return value;
-    }
-
-    public byte[] getRaw() {
-      return raw;
-    }
-
-    public boolean isBytes() {
-      return _isBytes;
-    }
-  }
+  private static final Logger logger = Logger.getLogger(RequestContext.class.getName());
+
+  // responses for phases that change nothing, the common case; messages are immutable, so shared
+  private static final CommonResponse CONTINUE =
+      CommonResponse.newBuilder()
+          .setStatus(ResponseStatus.CONTINUE)
+          .setHeaderMutation(HeaderMutation.getDefaultInstance())
+          .setBodyMutation(BodyMutation.getDefaultInstance())
+          .build();
+  private static final ProcessingResponse CONTINUE_REQUEST_HEADERS =
+      ProcessingResponse.newBuilder()
+          .setRequestHeaders(HeadersResponse.newBuilder().setResponse(CONTINUE))
+          .build();
+  private static final ProcessingResponse CONTINUE_REQUEST_BODY =
+      ProcessingResponse.newBuilder()
+          .setRequestBody(BodyResponse.newBuilder().setResponse(CONTINUE))
+          .build();
+  private static final ProcessingResponse CONTINUE_REQUEST_TRAILERS =
+      ProcessingResponse.newBuilder()
+          .setRequestTrailers(
+              TrailersResponse.newBuilder().setHeaderMutation(HeaderMutation.getDefaultInstance()))
+          .build();
+  private static final ProcessingResponse CONTINUE_RESPONSE_HEADERS =
+      ProcessingResponse.newBuilder()
+          .setResponseHeaders(HeadersResponse.newBuilder().setResponse(CONTINUE))
+          .build();
+  private static final ProcessingResponse CONTINUE_RESPONSE_BODY =
+      ProcessingResponse.newBuilder()
+          .setResponseBody(BodyResponse.newBuilder().setResponse(CONTINUE))
+          .build();
+  private static final ProcessingResponse CONTINUE_RESPONSE_TRAILERS =
+      ProcessingResponse.newBuilder()
+          .setResponseTrailers(
+              TrailersResponse.newBuilder().setHeaderMutation(HeaderMutation.getDefaultInstance()))
+          .build();
 
   private final String requestIdHeaderName;
 
   protected long[] phaseDurations = {0L, 0L, 0L, 0L, 0L, 0L};
+  // per-processor durations when processors are chained; see RequestProcessorChain
+  protected long[] processorDurations;
 
+  // wall clock start, for timestamps; elapsed times are all measured with System.nanoTime
   protected Instant started;
-  protected Duration duration;
+  protected long startedNanos;
+  // cumulative processing time over all phases
+  protected long durationNanos;
   protected String scheme;
   protected String authority;
   protected String method;
   protected String path;
-  protected String queryString;
-  protected Map<String, List<String>> params;
+  protected String rawQuery; // as sent, still encoded; null if the path has no query
+  protected String queryString; // decoded, when asked for
+  protected Map<String, List<String>> params; // parsed, when asked for
   protected int status;
   protected String requestId;
   protected String processorId;
 
   protected RequestCase phase;
-  protected Map<String, String> requestHeaders;
-  protected Map<String, String> responseHeaders;
+  protected CaseInsensitiveHeaderMap requestHeaders;
+  protected CaseInsensitiveHeaderMap responseHeaders;
   protected boolean endOfStream;
-  protected List<HeaderValueOption> addHeaders;
-  protected List<String> removeHeaders;
+  protected int requestBodyChunks;
+  protected long requestBodyBytes;
+  protected int responseBodyChunks;
+  protected long responseBodyBytes;
+  protected BodyAccumulator requestBodyBuffer;
+  protected BodyAccumulator responseBodyBuffer;
+  // header changes for the current phase, accumulated in place; cleared (not reallocated) on reset
+  protected final HeaderMutation.Builder headerMutation = HeaderMutation.newBuilder();
 
   protected boolean finished;
   protected boolean replace;
   protected boolean cancelled;
+  protected boolean closed;
+  // set by the wheel thread when the current phase overran its deadline; see PhaseDeadline
+  protected volatile boolean deadlineExceeded;
+  protected List<Runnable> closeHooks;
   BodyMutation bodyMutation;
   ImmediateResponse immediateResponse;
+  // sent with the request headers response, if set
+  protected ProcessingMode.Builder modeOverride;
+  // for building header values (e.g. durations) without allocating a builder each phase
+  private StringBuilder scratch;
+  // true while sitting in a RequestContextPool, between recycle() and reuse()
+  protected boolean recycled;
+  // tracks an acquired context in a debugging RequestContextPool
+  Object leakTracker;
 
   public RequestContext() {
     this("x-request-id");
@@ -115,15 +127,77 @@ public class RequestContext {
   }
 
   protected void initialize() {
+    clear();
+    start();
+  }
+
+  /** start the clocks for a new stream */
+  private void start() {
     started = Instant.now();
+    startedNanos = System.nanoTime();
+  }
+
+  /** forget everything about the last stream, keeping what storage can be reused */
+  private void clear() {
     status = 0;
     finished = false;
-    duration = Duration.ZERO;
-    requestHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-    responseHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    durationNanos = 0L;
+    Arrays.fill(phaseDurations, 0L);
+    if (processorDurations != null) {
+      Arrays.fill(processorDurations, 0L);
+    }
+    scheme = null;
+    authority = null;
+    method = null;
+    path = null;
+    rawQuery = null;
+    queryString = null;
+    params = null;
+    requestId = null;
+    processorId = null;
+    phase = null;
+    modeOverride = null;
+    requestBodyChunks = 0;
+    requestBodyBytes = 0;
+    responseBodyChunks = 0;
+    responseBodyBytes = 0;
+    requestBodyBuffer = null;
+    responseBodyBuffer = null;
+    if (requestHeaders == null) {
+      requestHeaders = new CaseInsensitiveHeaderMap();
+      responseHeaders = new CaseInsensitiveHeaderMap();
+    } else {
+      requestHeaders.clear();
+      responseHeaders.clear();
+    }
+    immediateResponse = null;
+    closed = false;
+    deadlineExceeded = false;
+    closeHooks = null;
     reset();
   }
 
+  /**
+   * clear this context for reuse by another stream, once its own stream has closed; see {@link
+   * RequestContextPool}. Nothing a processor could see survives, so processors must not hold on to
+   * a context (or its header maps) past its stream's close hooks. Returns false, doing nothing, if
+   * the context was already recycled.
+   */
+  protected boolean recycle() {
+    if (recycled) {
+      return false;
+    }
+    clear();
+    recycled = true;
+    return true;
+  }
+
+  /** take a recycled context back into use for a new stream */
+  protected void reuse() {
+    recycled = false;
+    start();
+  }
+
   protected void reset(RequestCase phase) {
     this.phase = phase;
     // we can't reset until we've seen the RequestHeaders phase with data
@@ -136,77 +210,52 @@ public class RequestContext {
     cancelled = false;
     replace = false;
     endOfStream = false;
-    addHeaders = new ArrayList<HeaderValueOption>();
-    removeHeaders = new ArrayList<String>();
-    bodyMutation = BodyMutation.newBuilder().build();
+    headerMutation.clear();
+    bodyMutation = BodyMutation.getDefaultInstance();
   }
 
   /** context initialization routine */
   protected Map<String, String> initializeRequest(HeaderMap protoHeaders) {
     // if (protoHeaders == null) { ... } // this is a problem, not initializable
     for (HeaderValue hv : protoHeaders.getHeadersList()) {
-      final SafeHeader header = new SafeHeader(hv);
-      final String key = header.getKey(); // not null
-      final String val = header.getValue(); // not null
+      final String key = hv.getKey(); // not null
       if (key.startsWith(":")) {
         // these are standard envoy headers we expect to be well-formed
         switch (key) {
           case ":scheme":
-            scheme = val;
+            scheme = headerValue(hv);
             break;
           case ":authority":
-            authority = val;
+            authority = headerValue(hv);
             break;
           case ":method":
-            method = val;
+            method = headerValue(hv);
             break;
           case ":path":
-            parsePath(val);
+            parsePath(headerValue(hv));
             break;
           default:
             break;
         }
       } else {
         if (key.equalsIgnoreCase(requestIdHeaderName)) {
-          requestId = val;
+          requestId = headerValue(hv);
         } else {
-          requestHeaders.put(key, val);
+          // raw values are decoded only if the header is read
+          requestHeaders.putHeaderValue(hv);
         }
       }
     }
     return requestHeaders;
   }
 
-  /** parse a URL path */
+  /** split a URL path from its query; the query is decoded and parsed only if it's read */
   protected void parsePath(String rawPath) {
-    path = rawPath;
-    if (path.contains("?")) {
-      String[] parts = path.split("\\?");
-      path = parts[0];
-      if (parts.length > 1) {
-        queryString = URLDecoder.decode(parts[1], StandardCharsets.UTF_8);
-        parseQueryParams(queryString);
-      }
-    }
-  }
-
-  /** parse query parameters into a map */
-  protected void parseQueryParams(String decodedQuery) {
-    if (decodedQuery == null || decodedQuery.isEmpty()) {
-      return;
-    }
-    params = new HashMap<String, List<String>>();
-    for (String param : decodedQuery.split("&")) {
-      String[] keyValuePair = param.split("=");
-      String key = keyValuePair[0];
-      String value = keyValuePair.length == 1 ? "" : keyValuePair[1];
-      if (!params.containsKey(key)) {
-        params.put(key, new ArrayList<String>());
-      }
-      if (value != null && !value.isEmpty()) {
-        params.get(key).add(value);
-      }
-    }
+    final int q = rawPath.indexOf('?');
+    path = q < 0 ? rawPath : rawPath.substring(0, q);
+    rawQuery = q < 0 ? null : rawPath.substring(q + 1);
+    queryString = null;
+    params = null;
   }
 
   protected Map<String, String> initializeResponse(HeaderMap headers) {
@@ -216,14 +265,12 @@ public class RequestContext {
       return responseHeaders;
     }
     for (HeaderValue hv : headers.getHeadersList()) {
-      final SafeHeader header = new SafeHeader(hv);
-      final String key = header.getKey(); // not null
-      final String val = header.getValue(); // not null
+      final String key = hv.getKey(); // not null
       if (key.startsWith(":")) {
         switch (key) {
           case ":status":
             try {
-              status = Integer.parseInt(val);
+              status = Integer.parseInt(headerValue(hv));
             } catch (NumberFormatException e) {
               status = 0; // technically
             }
@@ -232,39 +279,51 @@ public class RequestContext {
             break;
         }
       } else {
-        responseHeaders.put(key, val);
+        responseHeaders.putHeaderValue(hv);
       }
     }
     return responseHeaders;
   }
 
-  protected void updateDuration(RequestCase phase, Duration duration) {
+  /**
+   * a header's value; envoy may pass the value as raw bytes instead, which are (valid or not)
+   * decoded as UTF-8
+   */
+  protected static String headerValue(HeaderValue hv) {
+    final String value = hv.getValue();
+    if (value.isEmpty() && !hv.getRawValue().isEmpty()) {
+      return hv.getRawValue().toStringUtf8();
+    }
+    return value;
+  }
+
+  /** add time spent processing a phase (every chunk, for streamed bodies) to the totals */
+  protected void updateDuration(RequestCase phase, long nanos) {
     // technically, phase.getNumber()-2 would work, but this is more readable
     // and doesn't depend on the generated code for the derived Enum RequestCase
-    final Long nanos = duration.toNanos();
     switch (phase) {
       case REQUEST_HEADERS:
-        phaseDurations[0] = nanos;
+        phaseDurations[0] += nanos;
         break;
       case REQUEST_BODY:
-        phaseDurations[1] = nanos;
+        phaseDurations[1] += nanos;
         break;
       case REQUEST_TRAILERS:
-        phaseDurations[2] = nanos;
+        phaseDurations[2] += nanos;
         break;
       case RESPONSE_HEADERS:
-        phaseDurations[3] = nanos;
+        phaseDurations[3] += nanos;
         break;
       case RESPONSE_BODY:
-        phaseDurations[4] = nanos;
+        phaseDurations[4] += nanos;
         break;
       case RESPONSE_TRAILERS:
-        phaseDurations[5] = nanos;
+        phaseDurations[5] += nanos;
         break;
       default:
         break;
     }
-    this.duration.plus(duration);
+    durationNanos += nanos;
   }
 
   public Map<String, String> getRequestHeaders() {
@@ -311,20 +370,36 @@ public class RequestContext {
     return path;
   }
 
+  /** the decoded query string, or "" */
   public String getQueryString() {
     if (queryString == null) {
-      return "";
+      queryString = rawQuery == null ? "" : QueryParser.decode(rawQuery, 0, rawQuery.length());
     }
     return queryString;
   }
 
+  /** the query string as sent (still encoded), or "" */
+  public String getRawQueryString() {
+    return rawQuery == null ? "" : rawQuery;
+  }
+
+  /** query parameters, parsed on first call: names to their (decoded, non-empty) values */
   public Map<String, List<String>> getParams() {
     if (params == null) {
-      return new HashMap<String, List<String>>();
+      params =
+          rawQuery == null ? new HashMap<String, List<String>>() : QueryParser.parse(rawQuery);
     }
     return params;
   }
 
+  /**
+   * the first (decoded) value of a query parameter, "" if it has no value, or null if absent;
+   * found by scanning the query, without parsing all the parameters
+   */
+  public String getParam(String name) {
+    return rawQuery == null ? null : QueryParser.get(rawQuery, name);
+  }
+
   public int getStatus() {
     return status;
   }
@@ -346,18 +421,144 @@ public class RequestContext {
     return finished || cancelled;
   }
 
+  /**
+   * Register a callback to run once when the stream for this request ends, whether it completes,
+   * is cancelled, or errors. Use this to release per-request resources; if the stream has already
+   * ended the callback runs immediately.
+   */
+  public void onClose(Runnable hook) {
+    synchronized (this) {
+      if (!closed) {
+        if (closeHooks == null) {
+          closeHooks = new ArrayList<Runnable>();
+        }
+        closeHooks.add(hook);
+        return;
+      }
+    }
+    hook.run();
+  }
+
+  /**
+   * end the request's stream, running any close hooks; safe to call more than once, but only the
+   * first call (which returns true) does anything
+   */
+  protected boolean close() {
+    final List<Runnable> hooks;
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      closed = true;
+      hooks = closeHooks;
+      closeHooks = null;
+    }
+    if (hooks != null) {
+      for (Runnable hook : hooks) {
+        try {
+          hook.run();
+        } catch (RuntimeException e) {
+          logger.warning("Request close hook failed: " + e);
+        }
+      }
+    }
+    return true;
+  }
+
+  /** a cleared, reusable builder; only for use within a single phase's processing */
+  protected StringBuilder scratch() {
+    if (scratch == null) {
+      scratch = new StringBuilder(64);
+    }
+    scratch.setLength(0);
+    return scratch;
+  }
+
+  /**
+   * true once the current phase has overrun its deadline budget (see {@code
+   * ProcessingOptions.phaseTimeoutMillis}) and envoy has been sent the fallback response instead.
+   * Nothing this phase does will reach envoy any more, so long-running processors can check this
+   * to give up early.
+   */
+  public boolean isDeadlineExceeded() {
+    return deadlineExceeded;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
   public Instant getStarted() {
     return started;
   }
 
+  /** cumulative processing time over all phases so far */
   public Duration getDuration() {
-    return duration;
+    return Duration.ofNanos(durationNanos);
+  }
+
+  /** cumulative processing time over all phases so far, in nanoseconds */
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  /** time since the request's context was initialized (its headers arrived), in nanoseconds */
+  public long getElapsedNanos() {
+    return System.nanoTime() - startedNanos;
   }
 
   public Boolean streamComplete() {
     return endOfStream;
   }
 
+  /** count a body chunk from envoy; called before the processor sees it */
+  protected void countBodyChunk(RequestCase phase, ByteString chunk) {
+    if (phase == RequestCase.REQUEST_BODY) {
+      requestBodyChunks++;
+      requestBodyBytes += chunk.size();
+    } else if (phase == RequestCase.RESPONSE_BODY) {
+      responseBodyChunks++;
+      responseBodyBytes += chunk.size();
+    }
+  }
+
+  /** request body chunks seen so far, including the current one; more than one when STREAMED */
+  public int getRequestBodyChunks() {
+    return requestBodyChunks;
+  }
+
+  public long getRequestBodyBytes() {
+    return requestBodyBytes;
+  }
+
+  /** response body chunks seen so far, including the current one */
+  public int getResponseBodyChunks() {
+    return responseBodyChunks;
+  }
+
+  public long getResponseBodyBytes() {
+    return responseBodyBytes;
+  }
+
+  /**
+   * a bounded buffer for request body chunks, for processors that need the whole body in
+   * streaming modes; created on first use, and nothing is added unless the processor does so
+   */
+  public BodyAccumulator getRequestBodyBuffer() {
+    if (requestBodyBuffer == null) {
+      requestBodyBuffer = new BodyAccumulator();
+    }
+    return requestBodyBuffer;
+  }
+
+  /** a bounded buffer for response body chunks; see {@link #getRequestBodyBuffer()} */
+  public BodyAccumulator getResponseBodyBuffer() {
+    if (responseBodyBuffer == null) {
+      responseBodyBuffer = new BodyAccumulator();
+    }
+    return responseBodyBuffer;
+  }
+
   public String getProcessorId() {
     return processorId;
   }
@@ -368,6 +569,49 @@ public class RequestContext {
     }
   }
 
+  /**
+   * Ask envoy to change the processing mode for the rest of this request, e.g. to skip bodies a
+   * processor doesn't need. Only takes effect when set in the request headers phase, and only if
+   * envoy is configured with {@code allow_mode_override: true}. The override replaces envoy's whole
+   * mode, starting from the processor's {@code ProcessingOptions.processingMode} if set or envoy's
+   * defaults (headers sent, bodies and trailers not) otherwise.
+   */
+  public void overrideProcessingMode(ProcessingMode mode) {
+    modeOverride = mode.toBuilder();
+  }
+
+  public void overrideRequestBodyMode(ProcessingMode.BodySendMode mode) {
+    modeOverride().setRequestBodyMode(mode);
+  }
+
+  public void overrideRequestTrailerMode(ProcessingMode.HeaderSendMode mode) {
+    modeOverride().setRequestTrailerMode(mode);
+  }
+
+  public void overrideResponseHeaderMode(ProcessingMode.HeaderSendMode mode) {
+    modeOverride().setResponseHeaderMode(mode);
+  }
+
+  public void overrideResponseBodyMode(ProcessingMode.BodySendMode mode) {
+    modeOverride().setResponseBodyMode(mode);
+  }
+
+  public void overrideResponseTrailerMode(ProcessingMode.HeaderSendMode mode) {
+    modeOverride().setResponseTrailerMode(mode);
+  }
+
+  /** the processing mode override for this request, or null if there is none */
+  public ProcessingMode getModeOverride() {
+    return modeOverride == null ? null : modeOverride.build();
+  }
+
+  private ProcessingMode.Builder modeOverride() {
+    if (modeOverride == null) {
+      modeOverride = ProcessingMode.newBuilder();
+    }
+    return modeOverride;
+  }
+
   public void continueAndReplace() {
     replace = true;
   }
@@ -386,20 +630,29 @@ public class RequestContext {
 
   /** NOTE: immediate response only accepts string bodies */
   public void cancelRequest(int status, Map<String, String> headers, String body) {
+    immediateResponse =
+        immediateResponse(status, headers).setBody(body == null ? "" : body).build();
+  }
+
+  /**
+   * respond immediately with a body that's already bytes, without decoding and re-encoding it;
+   * the body is sent as is, so it must be valid UTF-8 (envoy's immediate response body is a string)
+   */
+  public void cancelRequest(int status, Map<String, String> headers, ByteString body) {
+    immediateResponse =
+        immediateResponse(status, headers)
+            .setBodyBytes(body == null ? ByteString.EMPTY : body)
+            .build();
+  }
+
+  private ImmediateResponse.Builder immediateResponse(int status, Map<String, String> headers) {
     cancelled = true;
     if (headers != null) {
       appendHeaders(headers);
     }
-    immediateResponse =
-        ImmediateResponse.newBuilder()
-            .setStatus(HttpStatus.newBuilder().setCode(StatusCode.forNumber(status)).build())
-            .setHeaders(
-                HeaderMutation.newBuilder()
-                    .addAllSetHeaders(addHeaders)
-                    .addAllRemoveHeaders(removeHeaders)
-                    .build())
-            .setBody(body == null ? "" : body)
-            .build();
+    return ImmediateResponse.newBuilder()
+        .setStatus(HttpStatus.newBuilder().setCode(StatusCode.forNumber(status)).build())
+        .setHeaders(headerMutation.build());
   }
 
   /** return the response for a given phase; will not return null but may throw */
@@ -409,6 +662,17 @@ public class RequestContext {
       return ProcessingResponse.newBuilder().setImmediateResponse(immediateResponse).build();
     }
 
+    if (!hasMutations() && (phase != RequestCase.REQUEST_HEADERS || modeOverride == null)) {
+      return continueResponse(phase);
+    }
+
+    if (phase == RequestCase.REQUEST_HEADERS && modeOverride != null) {
+      return ProcessingResponse.newBuilder()
+          .setRequestHeaders(prepareHeadersResponse())
+          .setModeOverride(modeOverride)
+          .build();
+    }
+
     switch (phase) {
       case REQUEST_HEADERS:
         return ProcessingResponse.newBuilder().setRequestHeaders(prepareHeadersResponse()).build();
@@ -431,16 +695,40 @@ public class RequestContext {
     }
   }
 
+  /** true if the current phase changes anything, i.e. can't be answered with a plain CONTINUE */
+  protected boolean hasMutations() {
+    return replace
+        || headerMutation.getSetHeadersCount() > 0
+        || headerMutation.getRemoveHeadersCount() > 0
+        || bodyMutation.getMutationCase() != BodyMutation.MutationCase.MUTATION_NOT_SET;
+  }
+
+  /** the shared response for a phase that changes nothing */
+  protected static ProcessingResponse continueResponse(RequestCase phase) {
+    switch (phase) {
+      case REQUEST_HEADERS:
+        return CONTINUE_REQUEST_HEADERS;
+      case REQUEST_BODY:
+        return CONTINUE_REQUEST_BODY;
+      case REQUEST_TRAILERS:
+        return CONTINUE_REQUEST_TRAILERS;
+      case RESPONSE_HEADERS:
+        return CONTINUE_RESPONSE_HEADERS;
+      case RESPONSE_BODY:
+        return CONTINUE_RESPONSE_BODY;
+      case RESPONSE_TRAILERS:
+        return CONTINUE_RESPONSE_TRAILERS;
+      default:
+        throw new RuntimeException("unknown request phase");
+    }
+  }
+
   protected HeadersResponse prepareHeadersResponse() {
     return HeadersResponse.newBuilder()
         .setResponse(
             CommonResponse.newBuilder()
                 .setStatus(replace ? ResponseStatus.CONTINUE_AND_REPLACE : ResponseStatus.CONTINUE)
-                .setHeaderMutation(
-                    HeaderMutation.newBuilder()
-                        .addAllSetHeaders(addHeaders)
-                        .addAllRemoveHeaders(removeHeaders)
-                        .build())
+                .setHeaderMutation(headerMutation.build())
                 .setBodyMutation(bodyMutation)
                 .build())
         .build();
@@ -451,11 +739,7 @@ public class RequestContext {
         .setResponse(
             CommonResponse.newBuilder()
                 .setStatus(replace ? ResponseStatus.CONTINUE_AND_REPLACE : ResponseStatus.CONTINUE)
-                .setHeaderMutation(
-                    HeaderMutation.newBuilder()
-                        .addAllSetHeaders(addHeaders)
-                        .addAllRemoveHeaders(removeHeaders)
-                        .build())
+                .setHeaderMutation(headerMutation.build())
                 .setBodyMutation(bodyMutation)
                 .build())
         .build();
@@ -463,11 +747,7 @@ public class RequestContext {
 
   protected TrailersResponse prepareTrailersResponse() {
     return TrailersResponse.newBuilder()
-        .setHeaderMutation(
-            HeaderMutation.newBuilder()
-                .addAllSetHeaders(addHeaders)
-                .addAllRemoveHeaders(removeHeaders)
-                .build())
+        .setHeaderMutation(headerMutation.build())
         .build();
   }
 
@@ -487,7 +767,7 @@ public class RequestContext {
     if (name == null || name.isEmpty()) {
       return;
     }
-    removeHeaders.add(name);
+    headerMutation.addRemoveHeaders(name);
   }
 
   public void appendHeaders(Map<String, String> headers) {
@@ -516,13 +796,9 @@ public class RequestContext {
     if (name == null || name.isEmpty() || value == null) {
       return;
     }
-    addHeaders.add(
+    headerMutation.addSetHeaders(
         HeaderValueOption.newBuilder()
-            .setHeader(
-                build.buf.gen.envoy.config.core.v3.HeaderValue.newBuilder()
-                    .setKey(name)
-                    .setValue(value)
-                    .build())
+            .setHeader(HeaderValue.newBuilder().setKey(name).setValue(value).build())
             .setAppendAction(action)
             .build());
   }
@@ -537,10 +813,21 @@ public class RequestContext {
     }
   }
 
+  /*
+   * Body mutations apply to the current chunk only: in STREAMED mode, replacing or clearing a
+   * chunk changes just that chunk, so to rewrite a whole body clear each chunk as it arrives and
+   * replace the last one with the new body.
+   */
+
   public void replaceBodyChunk(byte[] body) {
     bodyMutation = BodyMutation.newBuilder().setBody(ByteString.copyFrom(body)).build();
   }
 
+  /** replace the body chunk; ByteStrings are immutable, so this does not copy */
+  public void replaceBodyChunk(ByteString body) {
+    bodyMutation = BodyMutation.newBuilder().setBody(body).build();
+  }
+
   public void replaceBodyChunk(String body) {
     bodyMutation = BodyMutation.newBuilder().setBody(ByteString.copyFromUtf8(body)).build();
   }
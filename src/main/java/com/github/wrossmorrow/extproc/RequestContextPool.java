@@ -0,0 +1,176 @@
+package com.github.wrossmorrow.extproc;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of {@link RequestContext}s, so streams reuse contexts (and their header maps and
+ * mutation builders) instead of allocating new ones. The pool is striped by thread, each stripe a
+ * small stack behind its own (almost always uncontended) lock; a stream may release its context on
+ * a different thread than acquired it, which just moves the context between stripes. Contexts are
+ * {@link RequestContext#recycle() recycled} on release, and a release to a full stripe leaves the
+ * context to the garbage collector.
+ *
+ * <p>With {@code -Dextproc.context.pool.debug=true} the pool records where each context was
+ * acquired and logs any context that is garbage collected without having been released (a stream
+ * that never completed, errored, or was cancelled), and releasing a context twice is logged too.
+ */
+public class RequestContextPool {
+
+  private static final Logger logger = Logger.getLogger(RequestContextPool.class.getName());
+
+  static final boolean DEBUG = Boolean.getBoolean("extproc.context.pool.debug");
+
+  private static final class Stripe {
+    final RequestContext[] contexts;
+    int size;
+
+    Stripe(int capacity) {
+      contexts = new RequestContext[capacity];
+    }
+  }
+
+  /** where a context was acquired, reported if it's collected without being released */
+  private static final class LeakTracker extends WeakReference<RequestContext> {
+    final Throwable acquired;
+
+    LeakTracker(RequestContext ctx, ReferenceQueue<RequestContext> queue) {
+      super(ctx, queue);
+      acquired = new Throwable("RequestContext acquired here");
+    }
+  }
+
+  private final Stripe[] stripes;
+  private final int mask;
+  private final boolean debug;
+  private final LongAdder created = new LongAdder();
+  private final LongAdder reused = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder leaked = new LongAdder();
+  private final ReferenceQueue<RequestContext> collected = new ReferenceQueue<RequestContext>();
+  private final Set<LeakTracker> trackers = ConcurrentHashMap.newKeySet();
+
+  /** a pool holding at most (about) {@code capacity} idle contexts */
+  public RequestContextPool(int capacity) {
+    this(capacity, DEBUG);
+  }
+
+  public RequestContextPool(int capacity, boolean debug) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("RequestContextPool capacity must be positive");
+    }
+    int count = 1;
+    while (count < Runtime.getRuntime().availableProcessors() && count < capacity) {
+      count <<= 1;
+    }
+    stripes = new Stripe[count];
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new Stripe((capacity + count - 1) / count);
+    }
+    mask = count - 1;
+    this.debug = debug;
+  }
+
+  /** a context for a new stream, reused if one is available */
+  public RequestContext acquire() {
+    final Stripe stripe = stripe();
+    RequestContext ctx = null;
+    synchronized (stripe) {
+      if (stripe.size > 0) {
+        ctx = stripe.contexts[--stripe.size];
+        stripe.contexts[stripe.size] = null;
+      }
+    }
+    if (ctx == null) {
+      ctx = new RequestContext();
+      created.increment();
+    } else {
+      ctx.reuse();
+      reused.increment();
+    }
+    if (debug) {
+      reportLeaks();
+      final LeakTracker tracker = new LeakTracker(ctx, collected);
+      trackers.add(tracker);
+      ctx.leakTracker = tracker;
+    }
+    return ctx;
+  }
+
+  /** recycle a context whose stream has closed, and keep it if there's room */
+  public void release(RequestContext ctx) {
+    if (!ctx.recycle()) {
+      logger.severe("RequestContext released more than once; ignoring");
+      return;
+    }
+    if (ctx.leakTracker != null) {
+      final LeakTracker tracker = (LeakTracker) ctx.leakTracker;
+      ctx.leakTracker = null;
+      tracker.clear();
+      trackers.remove(tracker);
+    }
+    final Stripe stripe = stripe();
+    synchronized (stripe) {
+      if (stripe.size < stripe.contexts.length) {
+        stripe.contexts[stripe.size++] = ctx;
+        return;
+      }
+    }
+    dropped.increment();
+  }
+
+  private Stripe stripe() {
+    return stripes[(int) Thread.currentThread().getId() & mask];
+  }
+
+  /** log (and forget) contexts collected without being released */
+  private void reportLeaks() {
+    LeakTracker tracker;
+    while ((tracker = (LeakTracker) collected.poll()) != null) {
+      if (trackers.remove(tracker)) {
+        leaked.increment();
+        logger.log(
+            Level.SEVERE,
+            "RequestContext was garbage collected without being released",
+            tracker.acquired);
+      }
+    }
+  }
+
+  /** contexts created because none were idle */
+  public long getCreated() {
+    return created.sum();
+  }
+
+  /** contexts acquired from the pool */
+  public long getReused() {
+    return reused.sum();
+  }
+
+  /** released contexts not kept, because their stripe was full */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /** contexts (found to be) collected without being released; only counted when debugging */
+  public long getLeaked() {
+    reportLeaks();
+    return leaked.sum();
+  }
+
+  /** idle contexts in the pool */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size;
+      }
+    }
+    return size;
+  }
+}
@@ -1,5 +1,6 @@
 package com.github.wrossmorrow.extproc;
 
+import com.google.protobuf.ByteString;
 import java.util.Map;
 
 public interface RequestProcessor {
@@ -22,6 +23,16 @@ public interface RequestProcessor {
   /** Method for processing request body (chunks) */
   public void processRequestBody(RequestContext ctx, String body);
 
+  /**
+   * Method for processing request body (chunks) as bytes. The {@code ByteString} is the chunk
+   * envoy sent, without copying or decoding; use {@code body.asReadOnlyByteBuffer()} for a
+   * {@code ByteBuffer} view. The default decodes as UTF-8 and calls the {@code String} method, so
+   * override this to avoid that cost when bodies are hashed, forwarded, or ignored.
+   */
+  public default void processRequestBody(RequestContext ctx, ByteString body) {
+    processRequestBody(ctx, body.toStringUtf8());
+  }
+
   /** Method for processing request trailers */
   public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers);
 
@@ -31,6 +42,11 @@ public interface RequestProcessor {
   /** Method for processing response body (chunks) */
   public void processResponseBody(RequestContext ctx, String body);
 
+  /** Method for processing response body (chunks) as bytes; see the request body analog */
+  public default void processResponseBody(RequestContext ctx, ByteString body) {
+    processResponseBody(ctx, body.toStringUtf8());
+  }
+
   /** Method for processing response trailers */
   public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers);
 }
@@ -0,0 +1,251 @@
+package com.github.wrossmorrow.extproc;
+
+import build.buf.gen.envoy.extensions.filters.http.ext_proc.v3.ProcessingMode;
+import build.buf.gen.envoy.extensions.filters.http.ext_proc.v3.ProcessingMode.BodySendMode;
+import build.buf.gen.envoy.extensions.filters.http.ext_proc.v3.ProcessingMode.HeaderSendMode;
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs an ordered list of processors in one {@code ExternalProcessor} stream, so envoy makes one
+ * gRPC round trip per phase instead of one per processor. Each phase is passed to every processor
+ * in order, over the same {@link RequestContext}: header mutations accumulate, a body chunk
+ * replaced (or cleared) by one processor is what the next one sees, and a processor calling
+ * {@code cancelRequest} stops the phase there. Time spent in each processor is recorded so that
+ * the duration header gets one entry per chained processor, as if each had its own filter.
+ *
+ * <p>Header maps are the ones envoy sent; processors don't see header changes made earlier in the
+ * chain. Unless the chain's options set one, the chain's processing mode is the union of the
+ * phases its processors declare, if they all declare one. Likewise, processors overriding the
+ * mode for a request only get their override if every processor's needs are known, and then only
+ * merged with the phases the other processors need.
+ */
+public class RequestProcessorChain implements RequestProcessor {
+
+  protected final List<RequestProcessor> processors;
+  protected final String[] names;
+  protected final ProcessingMode[] modes; // declared by each processor; null if none
+  protected final ProcessingOptions options;
+
+  public RequestProcessorChain(RequestProcessor... processors) {
+    this(Arrays.asList(processors));
+  }
+
+  public RequestProcessorChain(List<RequestProcessor> processors) {
+    this(processors, new ProcessingOptions());
+  }
+
+  public RequestProcessorChain(List<RequestProcessor> processors, ProcessingOptions options) {
+    if (processors.isEmpty()) {
+      throw new IllegalArgumentException("A processor chain needs at least one processor");
+    }
+    this.processors = Collections.unmodifiableList(new ArrayList<RequestProcessor>(processors));
+    this.names = new String[processors.size()];
+    this.modes = new ProcessingMode[processors.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = processors.get(i).getName();
+      modes[i] = processors.get(i).getOptions().processingMode;
+    }
+    this.options = options;
+    if (options.processingMode == null) {
+      options.processingMode = combinedMode(modes);
+    }
+  }
+
+  /** a mode with every phase any of the modes need, or null if that can't be determined */
+  protected static ProcessingMode combinedMode(ProcessingMode[] modes) {
+    ProcessingMode combined = null;
+    for (ProcessingMode mode : modes) {
+      if (mode == null) {
+        return null; // processor needs whatever envoy sends
+      }
+      if (combined == null) {
+        combined = mode;
+        continue;
+      }
+      final BodySendMode requestBody =
+          combine(combined.getRequestBodyMode(), mode.getRequestBodyMode());
+      final BodySendMode responseBody =
+          combine(combined.getResponseBodyMode(), mode.getResponseBodyMode());
+      if (requestBody == null || responseBody == null) {
+        return null; // e.g. BUFFERED and STREAMED
+      }
+      combined =
+          ProcessingMode.newBuilder()
+              .setRequestHeaderMode(
+                  combine(
+                      combined.getRequestHeaderMode(),
+                      mode.getRequestHeaderMode(),
+                      HeaderSendMode.SEND))
+              .setResponseHeaderMode(
+                  combine(
+                      combined.getResponseHeaderMode(),
+                      mode.getResponseHeaderMode(),
+                      HeaderSendMode.SEND))
+              .setRequestTrailerMode(
+                  combine(
+                      combined.getRequestTrailerMode(),
+                      mode.getRequestTrailerMode(),
+                      HeaderSendMode.SKIP))
+              .setResponseTrailerMode(
+                  combine(
+                      combined.getResponseTrailerMode(),
+                      mode.getResponseTrailerMode(),
+                      HeaderSendMode.SKIP))
+              .setRequestBodyMode(requestBody)
+              .setResponseBodyMode(responseBody)
+              .build();
+    }
+    return combined;
+  }
+
+  private static HeaderSendMode combine(HeaderSendMode a, HeaderSendMode b, HeaderSendMode dflt) {
+    a = a == HeaderSendMode.DEFAULT ? dflt : a;
+    b = b == HeaderSendMode.DEFAULT ? dflt : b;
+    return a == HeaderSendMode.SEND || b == HeaderSendMode.SEND ? HeaderSendMode.SEND : a;
+  }
+
+  private static BodySendMode combine(BodySendMode a, BodySendMode b) {
+    if (a == b || b == BodySendMode.NONE) {
+      return a;
+    }
+    return a == BodySendMode.NONE ? b : null;
+  }
+
+  /** Instantiate a chain from a comma-separated list of processor class names */
+  public static RequestProcessorChain fromClassNames(String classNames) throws Exception {
+    List<RequestProcessor> processors = new ArrayList<RequestProcessor>();
+    for (String className : classNames.split(",")) {
+      if (!className.trim().isEmpty()) {
+        processors.add(
+            (RequestProcessor) Class.forName(className.trim()).getConstructor().newInstance());
+      }
+    }
+    return new RequestProcessorChain(processors);
+  }
+
+  public List<RequestProcessor> getProcessors() {
+    return processors;
+  }
+
+  /** name of the processor at a position in the chain */
+  public String getName(int i) {
+    return names[i];
+  }
+
+  public String getName() {
+    return String.join("+", names);
+  }
+
+  public ProcessingOptions getOptions() {
+    return options;
+  }
+
+  public void setHealthManager(RequestProcessorHealthManager health) {
+    for (RequestProcessor processor : processors) {
+      processor.setHealthManager(health);
+    }
+  }
+
+  public void shutdown() {
+    for (RequestProcessor processor : processors) {
+      processor.shutdown();
+    }
+  }
+
+  /** time spent (ns) in each chained processor for this request, indexed by position */
+  protected long[] durations(RequestContext ctx) {
+    if (ctx.processorDurations == null || ctx.processorDurations.length != names.length) {
+      ctx.processorDurations = new long[names.length];
+    }
+    return ctx.processorDurations;
+  }
+
+  public void processRequestHeaders(RequestContext ctx, Map<String, String> headers) {
+    final long[] durations = durations(ctx);
+    final ProcessingMode[] wanted = new ProcessingMode[durations.length];
+    boolean overridden = false;
+    for (int i = 0; i < durations.length && !ctx.cancelled; i++) {
+      // each processor sees (and may override) only its own mode
+      ctx.modeOverride = modes[i] == null ? null : modes[i].toBuilder();
+      final long started = System.nanoTime();
+      processors.get(i).processRequestHeaders(ctx, headers);
+      durations[i] += System.nanoTime() - started;
+      wanted[i] = ctx.getModeOverride();
+      overridden |= wanted[i] != null && !wanted[i].equals(modes[i]);
+    }
+    final ProcessingMode mode = overridden ? combinedMode(wanted) : options.processingMode;
+    ctx.modeOverride = mode == null ? null : mode.toBuilder();
+  }
+
+  public void processRequestBody(RequestContext ctx, String body) {
+    processRequestBody(ctx, ByteString.copyFromUtf8(body));
+  }
+
+  public void processRequestBody(RequestContext ctx, ByteString body) {
+    final long[] durations = durations(ctx);
+    for (int i = 0; i < durations.length && !ctx.cancelled; i++) {
+      final long started = System.nanoTime();
+      processors.get(i).processRequestBody(ctx, body);
+      durations[i] += System.nanoTime() - started;
+      body = currentBody(ctx, body);
+    }
+  }
+
+  public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {
+    final long[] durations = durations(ctx);
+    for (int i = 0; i < durations.length && !ctx.cancelled; i++) {
+      final long started = System.nanoTime();
+      processors.get(i).processRequestTrailers(ctx, trailers);
+      durations[i] += System.nanoTime() - started;
+    }
+  }
+
+  public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {
+    final long[] durations = durations(ctx);
+    for (int i = 0; i < durations.length && !ctx.cancelled; i++) {
+      final long started = System.nanoTime();
+      processors.get(i).processResponseHeaders(ctx, headers);
+      durations[i] += System.nanoTime() - started;
+    }
+  }
+
+  public void processResponseBody(RequestContext ctx, String body) {
+    processResponseBody(ctx, ByteString.copyFromUtf8(body));
+  }
+
+  public void processResponseBody(RequestContext ctx, ByteString body) {
+    final long[] durations = durations(ctx);
+    for (int i = 0; i < durations.length && !ctx.cancelled; i++) {
+      final long started = System.nanoTime();
+      processors.get(i).processResponseBody(ctx, body);
+      durations[i] += System.nanoTime() - started;
+      body = currentBody(ctx, body);
+    }
+  }
+
+  public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {
+    final long[] durations = durations(ctx);
+    for (int i = 0; i < durations.length && !ctx.cancelled; i++) {
+      final long started = System.nanoTime();
+      processors.get(i).processResponseTrailers(ctx, trailers);
+      durations[i] += System.nanoTime() - started;
+    }
+  }
+
+  /** the body chunk as changed so far in the chain */
+  protected static ByteString currentBody(RequestContext ctx, ByteString body) {
+    switch (ctx.bodyMutation.getMutationCase()) {
+      case BODY:
+        return ctx.bodyMutation.getBody();
+      case CLEAR_BODY:
+        return ctx.bodyMutation.getClearBody() ? ByteString.EMPTY : body;
+      default:
+        return body;
+    }
+  }
+}
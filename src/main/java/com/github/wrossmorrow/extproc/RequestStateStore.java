@@ -0,0 +1,193 @@
+package com.github.wrossmorrow.extproc;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Concurrent store for processor state scoped to a single request. A {@code RequestProcessor}
+ * sees many requests concurrently, so state kept across phases has to be stored per request; this
+ * store keys entries by the {@link RequestContext} and removes them when the request's stream
+ * ends, whether it completes, is cancelled, or errors. Entries also expire after a TTL, in case a
+ * processor is used somewhere the end of a stream is never seen, and the store is bounded: adding
+ * a new entry to a full store throws {@code IllegalStateException}, failing that request rather
+ * than growing without limit. A full store sweeps expired entries at most every 100ms, so it
+ * rejects cheaply rather than scanning every entry on every insert just when it's busiest.
+ *
+ * <p>Backed by a {@code ConcurrentHashMap}, so reads are lock-free and writes are striped.
+ */
+public class RequestStateStore<V> {
+
+  public static final int DEFAULT_MAX_ENTRIES = 100_000;
+  public static final long DEFAULT_TTL_SECONDS = 300;
+
+  // sweep for expired entries every this many inserts
+  private static final int SWEEP_INTERVAL = 1024;
+  // and, when full, at most this often
+  private static final long FULL_SWEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private static final class Entry<V> {
+    final V value;
+    final long expiresAt;
+
+    Entry(V value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final ConcurrentHashMap<RequestContext, Entry<V>> entries;
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final AtomicInteger untilSweep = new AtomicInteger(SWEEP_INTERVAL);
+  private final AtomicLong lastFullSweep = new AtomicLong(System.nanoTime());
+
+  private final LongAdder inserts = new LongAdder();
+  private final LongAdder removals = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  public RequestStateStore() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  public RequestStateStore(int maxEntries, long ttl, TimeUnit unit) {
+    this.maxEntries = maxEntries;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.entries = new ConcurrentHashMap<RequestContext, Entry<V>>();
+  }
+
+  /** state for the request, or null if there is none (or it expired) */
+  public V get(RequestContext ctx) {
+    final Entry<V> entry = entries.get(ctx);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiresAt - System.nanoTime() < 0) {
+      if (entries.remove(ctx, entry)) {
+        expirations.increment();
+      }
+      return null;
+    }
+    return entry.value;
+  }
+
+  /** state for the request, creating it with the supplier if there is none */
+  public V computeIfAbsent(RequestContext ctx, Supplier<V> supplier) {
+    final V existing = get(ctx);
+    if (existing != null) {
+      return existing;
+    }
+    final V value = supplier.get();
+    put(ctx, value);
+    return value;
+  }
+
+  /** store state for the request, replacing any existing state */
+  public void put(RequestContext ctx, V value) {
+    final Entry<V> entry = new Entry<V>(value, System.nanoTime() + ttlNanos);
+    if (entries.replace(ctx, entry) != null) {
+      return;
+    }
+    if (entries.size() >= maxEntries) {
+      // one thread sweeps per interval; everyone else is rejected without scanning
+      final long now = System.nanoTime();
+      final long last = lastFullSweep.get();
+      if (now - last >= FULL_SWEEP_NANOS && lastFullSweep.compareAndSet(last, now)) {
+        evictExpired();
+      }
+      if (entries.size() >= maxEntries) {
+        rejections.increment();
+        throw new IllegalStateException("request state store is full (" + maxEntries + ")");
+      }
+    } else if (untilSweep.decrementAndGet() <= 0) {
+      untilSweep.set(SWEEP_INTERVAL);
+      evictExpired();
+    }
+    if (entries.put(ctx, entry) == null) {
+      inserts.increment();
+      ctx.onClose(() -> remove(ctx));
+    }
+  }
+
+  /** remove and return state for the request, if any */
+  public V remove(RequestContext ctx) {
+    final Entry<V> entry = entries.remove(ctx);
+    if (entry == null) {
+      return null;
+    }
+    removals.increment();
+    return entry.value;
+  }
+
+  /** remove all expired entries, returning the number removed */
+  public int evictExpired() {
+    final long now = System.nanoTime();
+    int evicted = 0;
+    Iterator<Map.Entry<RequestContext, Entry<V>>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().getValue().expiresAt - now < 0) {
+        it.remove();
+        evicted++;
+      }
+    }
+    expirations.add(evicted);
+    return evicted;
+  }
+
+  /** number of requests with stored state */
+  public int size() {
+    return entries.size();
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /** fraction of the maximum number of entries in use */
+  public double getOccupancy() {
+    return (double) entries.size() / maxEntries;
+  }
+
+  public long getInserts() {
+    return inserts.sum();
+  }
+
+  /** entries removed explicitly or because their stream ended */
+  public long getRemovals() {
+    return removals.sum();
+  }
+
+  public long getExpirations() {
+    return expirations.sum();
+  }
+
+  /** inserts refused because the store was full */
+  public long getRejections() {
+    return rejections.sum();
+  }
+
+  public String toString() {
+    return getClass().getName()
+        + "@"
+        + Integer.toHexString(hashCode())
+        + ": size("
+        + size()
+        + ") occupancy("
+        + getOccupancy()
+        + ") inserts("
+        + getInserts()
+        + ") removals("
+        + getRemovals()
+        + ") expirations("
+        + getExpirations()
+        + ") rejections("
+        + getRejections()
+        + ")";
+  }
+}
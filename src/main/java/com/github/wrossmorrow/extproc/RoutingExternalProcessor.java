@@ -0,0 +1,99 @@
+package com.github.wrossmorrow.extproc;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ExternalProcessorGrpc;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Hosts several processors behind the one {@code ExternalProcessor} gRPC service, choosing one per
+ * stream from the stream's initial metadata: the {@value #ROUTE_HEADER} header, which envoy sends
+ * when it's set in the filter's {@code grpc_service.initial_metadata}. Streams without the header
+ * go to the default processor. The route table is fixed at construction, so choosing a processor
+ * is one header lookup and one hash lookup when the stream opens; messages then go straight to the
+ * chosen {@link ExternalProcessor}.
+ *
+ * <p>Serve {@link #serviceDefinition()}, which includes the interceptor that reads the header.
+ */
+public class RoutingExternalProcessor extends ExternalProcessorGrpc.ExternalProcessorImplBase {
+  private static final Logger logger = Logger.getLogger(RoutingExternalProcessor.class.getName());
+
+  public static final String ROUTE_HEADER = "x-extproc-route";
+
+  private static final Metadata.Key<String> ROUTE_KEY =
+      Metadata.Key.of(ROUTE_HEADER, Metadata.ASCII_STRING_MARSHALLER);
+  private static final Context.Key<ExternalProcessor> ROUTED = Context.key("extproc-route");
+
+  private final Map<String, ExternalProcessor> routes;
+  private final ExternalProcessor defaultRoute;
+
+  /** route to processors by name, and streams with no route to {@code defaultRoute} (or none) */
+  public RoutingExternalProcessor(
+      Map<String, ExternalProcessor> routes, ExternalProcessor defaultRoute) {
+    this.routes = Collections.unmodifiableMap(new HashMap<String, ExternalProcessor>(routes));
+    this.defaultRoute = defaultRoute;
+    logger.fine("Routing to " + this.routes.keySet() + " by " + ROUTE_HEADER);
+  }
+
+  /** this service, intercepted to route each stream by its metadata */
+  public ServerServiceDefinition serviceDefinition() {
+    return ServerInterceptors.intercept(this, new RouteInterceptor());
+  }
+
+  /** the processor for a route name (null for none given), or null if there is no such route */
+  ExternalProcessor route(String name) {
+    return name == null ? defaultRoute : routes.get(name);
+  }
+
+  @Override
+  public StreamObserver<ProcessingRequest> process(
+      final StreamObserver<ProcessingResponse> responseObserver) {
+    ExternalProcessor route = ROUTED.get();
+    if (route == null) {
+      route = defaultRoute; // not served through the interceptor
+    }
+    if (route == null) {
+      responseObserver.onError(
+          Status.NOT_FOUND.withDescription("No default processor").asRuntimeException());
+      return new StreamObserver<ProcessingRequest>() {
+        public void onNext(ProcessingRequest request) {}
+
+        public void onError(Throwable t) {}
+
+        public void onCompleted() {}
+      };
+    }
+    return route.process(responseObserver);
+  }
+
+  private final class RouteInterceptor implements ServerInterceptor {
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+        ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+      final String name = headers.get(ROUTE_KEY);
+      final ExternalProcessor route = route(name);
+      if (route == null) {
+        logger.warning("No processor for route \"" + name + "\"");
+        call.close(
+            Status.NOT_FOUND.withDescription("No processor for route \"" + name + "\""),
+            new Metadata());
+        return new ServerCall.Listener<ReqT>() {};
+      }
+      return Contexts.interceptCall(
+          Context.current().withValue(ROUTED, route), call, headers, next);
+    }
+  }
+}
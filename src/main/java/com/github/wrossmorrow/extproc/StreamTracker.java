@@ -0,0 +1,69 @@
+package com.github.wrossmorrow.extproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The processing streams an {@link ExternalProcessor} has open: a counter, for cheap checks and
+ * waiting on, plus the streams' contexts, so whoever is draining the server can see what it would
+ * cut off. Opening and closing a stream is an atomic increment and a concurrent set update; the
+ * lock is only taken while something is waiting for the streams to finish.
+ */
+public class StreamTracker {
+
+  private static final long WAIT_SLICE_MILLIS = 50L;
+
+  private final AtomicInteger active = new AtomicInteger();
+  private final Set<RequestContext> streams = ConcurrentHashMap.newKeySet();
+  private final Object idle = new Object();
+  private volatile boolean waiting;
+
+  void opened(RequestContext ctx) {
+    streams.add(ctx);
+    active.incrementAndGet();
+  }
+
+  void closed(RequestContext ctx) {
+    streams.remove(ctx);
+    if (active.decrementAndGet() == 0 && waiting) {
+      synchronized (idle) {
+        idle.notifyAll();
+      }
+    }
+  }
+
+  /** number of streams open now */
+  public int getActive() {
+    return active.get();
+  }
+
+  /** the contexts of the streams open now; they are live, so only read them for reporting */
+  public List<RequestContext> getStreams() {
+    return new ArrayList<RequestContext>(streams);
+  }
+
+  /** wait up to a timeout for every open stream to close, returning whether they all did */
+  public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    synchronized (idle) {
+      waiting = true;
+      try {
+        while (active.get() > 0) {
+          final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          if (remaining <= 0) {
+            return false;
+          }
+          // the slice covers a close racing with us setting waiting
+          idle.wait(Math.min(remaining, WAIT_SLICE_MILLIS));
+        }
+        return true;
+      } finally {
+        waiting = false;
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package com.github.wrossmorrow.extproc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timer wheel: one daemon thread ticking through an array of buckets, with each timeout
+ * linked into the bucket of the tick it expires in. Scheduling and cancelling are constant time
+ * under that bucket's lock, and timeouts are intrusive (a {@link Timeout} is its own list node), so
+ * an object can be rescheduled over and over without allocating anything. Timeouts fire up to a
+ * couple of ticks late, which is fine for budgets of milliseconds or more.
+ *
+ * <p>Expiring timeouts run on the wheel's thread, so they should be quick and must not block.
+ */
+final class TimerWheel {
+  private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+
+  private static volatile TimerWheel shared;
+
+  /** something that can be scheduled to expire; reschedulable once expired or cancelled */
+  abstract static class Timeout {
+    private volatile Bucket bucket; // null when not scheduled
+    private volatile long deadline;
+    private Timeout prev;
+    private Timeout next;
+    private Timeout nextExpired;
+
+    /** called on the wheel's thread at (or shortly after) the deadline */
+    protected abstract void expire();
+  }
+
+  private static final class Bucket {
+    Timeout head;
+  }
+
+  private final long tickNanos;
+  private final Bucket[] buckets;
+  private final int mask;
+  private final long startedAt;
+  private volatile long nextTick;
+
+  TimerWheel(long tick, TimeUnit unit, int ticksPerWheel) {
+    int size = 1;
+    while (size < ticksPerWheel) {
+      size <<= 1;
+    }
+    tickNanos = Math.max(unit.toNanos(tick), TimeUnit.MILLISECONDS.toNanos(1));
+    buckets = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      buckets[i] = new Bucket();
+    }
+    mask = size - 1;
+    startedAt = System.nanoTime();
+    Thread worker = new Thread(this::run, "extproc-timer-wheel");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /** the wheel shared by all processors, ticking every {@code extproc.timer.tick.ms} (5 ms) */
+  static TimerWheel shared() {
+    if (shared == null) {
+      synchronized (TimerWheel.class) {
+        if (shared == null) {
+          final long tick = Long.getLong("extproc.timer.tick.ms", 5L);
+          shared = new TimerWheel(tick, TimeUnit.MILLISECONDS, 1024);
+        }
+      }
+    }
+    return shared;
+  }
+
+  /** schedule a timeout to expire at a System.nanoTime() deadline, cancelling it first if needed */
+  void schedule(Timeout timeout, long deadline) {
+    cancel(timeout);
+    // at least a tick beyond the one being processed, so the worker can't skip past it
+    final long tick = Math.max((deadline - startedAt) / tickNanos, nextTick + 1);
+    final Bucket bucket = buckets[(int) (tick & mask)];
+    synchronized (bucket) {
+      timeout.deadline = deadline;
+      timeout.prev = null;
+      timeout.next = bucket.head;
+      if (bucket.head != null) {
+        bucket.head.prev = timeout;
+      }
+      bucket.head = timeout;
+      timeout.bucket = bucket;
+    }
+  }
+
+  /** cancel a timeout, returning false if it wasn't scheduled (or is already expiring) */
+  boolean cancel(Timeout timeout) {
+    final Bucket bucket = timeout.bucket;
+    if (bucket == null) {
+      return false;
+    }
+    synchronized (bucket) {
+      if (timeout.bucket != bucket) {
+        return false;
+      }
+      unlink(bucket, timeout);
+      return true;
+    }
+  }
+
+  private static void unlink(Bucket bucket, Timeout timeout) {
+    if (timeout.prev == null) {
+      bucket.head = timeout.next;
+    } else {
+      timeout.prev.next = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.bucket = null;
+  }
+
+  private void run() {
+    while (true) {
+      final long tick = nextTick;
+      long wait;
+      while ((wait = startedAt + (tick + 1) * tickNanos - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      nextTick = tick + 1;
+      final Bucket bucket = buckets[(int) (tick & mask)];
+      final long now = System.nanoTime();
+      Timeout expired = null;
+      synchronized (bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+          final Timeout next = timeout.next;
+          if (timeout.deadline - now <= 0) {
+            unlink(bucket, timeout);
+            timeout.nextExpired = expired;
+            expired = timeout;
+          }
+          timeout = next;
+        }
+      }
+      while (expired != null) {
+        final Timeout timeout = expired;
+        expired = timeout.nextExpired;
+        timeout.nextExpired = null;
+        try {
+          timeout.expire();
+        } catch (RuntimeException e) {
+          logger.warning("Timeout failed to expire cleanly: " + e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package com.github.wrossmorrow.extproc.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values (nanoseconds, usually), with log-linear buckets like
+ * an HDR histogram: 16 linear sub-buckets per power of two, so any recorded value is known to
+ * within about 6%. Recording is a bucket index computation, an atomic increment, and a {@code
+ * LongAdder} add, with no allocation; reads (quantiles, counts) scan the buckets and are meant for
+ * exporters, not the request path.
+ *
+ * <p>Reads are not atomic with respect to concurrent recording, so a snapshot taken under load
+ * may be off by the values recorded while it was taken.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // values below SUB_BUCKETS get their own bucket, then SUB_BUCKETS per power of two up to 2^63
+  static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sum = new LongAdder();
+
+  /** record a value; negative values (e.g. from a clock step) are recorded as zero */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucketIndex(value));
+    sum.add(value);
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+    final int shift = exponent - SUB_BUCKET_BITS;
+    final int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** the smallest value in a bucket */
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int shift = index / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+  }
+
+  /** the largest value in a bucket */
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int shift = index / SUB_BUCKETS - 1;
+    return bucketLowerBound(index) + (1L << shift) - 1;
+  }
+
+  /** number of values recorded */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /** sum of the values recorded */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * an upper bound on the value at a quantile (0 to 1) of the values recorded, accurate to the
+   * bucket resolution; 0 if nothing has been recorded
+   */
+  public long getValueAtQuantile(double quantile) {
+    return getValuesAtQuantiles(new double[] {quantile})[0];
+  }
+
+  /** values at several ascending quantiles, in one pass over the buckets */
+  public long[] getValuesAtQuantiles(double[] quantiles) {
+    final long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    final long[] values = new long[quantiles.length];
+    if (count == 0) {
+      return values;
+    }
+    long seen = 0;
+    int bucket = -1;
+    for (int q = 0; q < quantiles.length; q++) {
+      final long rank = Math.max(1, (long) Math.ceil(quantiles[q] * count));
+      while (seen < rank && bucket < BUCKETS - 1) {
+        seen += snapshot[++bucket];
+      }
+      values[q] = bucketUpperBound(bucket);
+    }
+    return values;
+  }
+
+  /** the largest value recorded, to bucket resolution */
+  public long getMax() {
+    for (int i = BUCKETS - 1; i >= 0; i--) {
+      if (counts.get(i) > 0) {
+        return bucketUpperBound(i);
+      }
+    }
+    return 0;
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    sum.reset();
+  }
+}
@@ -0,0 +1,18 @@
+package com.github.wrossmorrow.extproc.metrics;
+
+import java.io.IOException;
+
+/**
+ * Publishes metrics somewhere: served for scraping (see {@link PrometheusExporter}), pushed to a
+ * collector, logged, etc. Exporters added to an {@code ExternalProcessorServer} are started with
+ * the server and stopped after it has stopped; implementations read the registry themselves, on
+ * their own schedule, so exporting never touches the request path.
+ */
+public interface MetricsExporter {
+
+  /** begin exporting metrics from the registry */
+  public void start(MetricsRegistry registry) throws IOException;
+
+  /** stop exporting and release any resources */
+  public void stop();
+}
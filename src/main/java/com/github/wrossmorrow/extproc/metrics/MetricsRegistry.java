@@ -0,0 +1,36 @@
+package com.github.wrossmorrow.extproc.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics for every processor in the JVM, by processor name. Processors register (get) their
+ * metrics once, when their {@code ExternalProcessor} is created, so lookups are off the request
+ * path; exporters read all of them.
+ */
+public class MetricsRegistry {
+
+  private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+  private final ConcurrentHashMap<String, ProcessorMetrics> processors =
+      new ConcurrentHashMap<String, ProcessorMetrics>();
+
+  /** the registry {@code ExternalProcessor}s record into */
+  public static MetricsRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /** metrics for the named processor, created if needed */
+  public ProcessorMetrics forProcessor(String name) {
+    return processors.computeIfAbsent(name, ProcessorMetrics::new);
+  }
+
+  /** metrics for every processor, ordered by name */
+  public Collection<ProcessorMetrics> getProcessors() {
+    ArrayList<ProcessorMetrics> all = new ArrayList<ProcessorMetrics>(processors.values());
+    Collections.sort(all, (a, b) -> a.getName().compareTo(b.getName()));
+    return all;
+  }
+}
@@ -0,0 +1,227 @@
+package com.github.wrossmorrow.extproc.metrics;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics for one processor: stream counts by outcome, streams in flight, body bytes, phases that
+ * overran their deadlines, and latency histograms for each phase and for whole requests. Everything
+ * is lock-free; updating a counter is a {@code LongAdder} operation and recording a latency a
+ * {@link LatencyHistogram} record.
+ *
+ * <p>Processors can add counters and gauges of their own, read (through a {@code LongSupplier})
+ * only when metrics are exported, so they cost nothing more than the processor's own bookkeeping.
+ */
+public class ProcessorMetrics {
+
+  /** a counter or gauge kept by the processor itself */
+  public static final class Custom {
+    final String name;
+    final String type;
+    final String help;
+    final String labels;
+    final LongSupplier value;
+
+    Custom(String name, String type, String help, String labels, LongSupplier value) {
+      this.name = name;
+      this.type = type;
+      this.help = help;
+      this.labels = labels;
+      this.value = value;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** {@code counter} or {@code gauge} */
+    public String getType() {
+      return type;
+    }
+
+    public String getHelp() {
+      return help;
+    }
+
+    /** extra labels, like {@code result="hit"}, or null */
+    public String getLabels() {
+      return labels;
+    }
+
+    public long getValue() {
+      return value.getAsLong();
+    }
+  }
+
+  /** phases, in the order of the per-phase histograms */
+  public static final RequestCase[] PHASES = {
+    RequestCase.REQUEST_HEADERS,
+    RequestCase.REQUEST_BODY,
+    RequestCase.REQUEST_TRAILERS,
+    RequestCase.RESPONSE_HEADERS,
+    RequestCase.RESPONSE_BODY,
+    RequestCase.RESPONSE_TRAILERS
+  };
+
+  private final String name;
+  private final LongAdder opened = new LongAdder();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder cancelled = new LongAdder();
+  private final LongAdder errored = new LongAdder();
+  private final LongAdder inFlight = new LongAdder();
+  private final LongAdder requestBodyBytes = new LongAdder();
+  private final LongAdder responseBodyBytes = new LongAdder();
+  private final LongAdder[] phaseTimeouts = new LongAdder[PHASES.length];
+  private final LatencyHistogram[] phaseLatencies = new LatencyHistogram[PHASES.length];
+  private final LatencyHistogram processingLatency = new LatencyHistogram();
+  private final ConcurrentSkipListMap<String, Custom> custom =
+      new ConcurrentSkipListMap<String, Custom>();
+
+  public ProcessorMetrics(String name) {
+    this.name = name;
+    for (int i = 0; i < phaseLatencies.length; i++) {
+      phaseTimeouts[i] = new LongAdder();
+      phaseLatencies[i] = new LatencyHistogram();
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** position of a phase in {@link #PHASES}, or -1 */
+  public static int phaseIndex(RequestCase phase) {
+    switch (phase) {
+      case REQUEST_HEADERS:
+        return 0;
+      case REQUEST_BODY:
+        return 1;
+      case REQUEST_TRAILERS:
+        return 2;
+      case RESPONSE_HEADERS:
+        return 3;
+      case RESPONSE_BODY:
+        return 4;
+      case RESPONSE_TRAILERS:
+        return 5;
+      default:
+        return -1;
+    }
+  }
+
+  public void streamOpened() {
+    opened.increment();
+    inFlight.increment();
+  }
+
+  public void streamCompleted() {
+    completed.increment();
+    inFlight.decrement();
+  }
+
+  public void streamCancelled() {
+    cancelled.increment();
+    inFlight.decrement();
+  }
+
+  public void streamErrored() {
+    errored.increment();
+    inFlight.decrement();
+  }
+
+  /** time spent processing one phase */
+  public void recordPhase(RequestCase phase, long nanos) {
+    final int i = phaseIndex(phase);
+    if (i >= 0) {
+      phaseLatencies[i].record(nanos);
+    }
+  }
+
+  /** a phase overran its deadline, and was answered with the fallback response */
+  public void phaseTimedOut(RequestCase phase) {
+    final int i = phaseIndex(phase);
+    if (i >= 0) {
+      phaseTimeouts[i].increment();
+    }
+  }
+
+  /** total processing time for one request, over all its phases */
+  public void recordProcessing(long nanos) {
+    processingLatency.record(nanos);
+  }
+
+  public void recordBodyBytes(RequestCase phase, long bytes) {
+    if (phase == RequestCase.REQUEST_BODY) {
+      requestBodyBytes.add(bytes);
+    } else if (phase == RequestCase.RESPONSE_BODY) {
+      responseBodyBytes.add(bytes);
+    }
+  }
+
+  /**
+   * add a counter the processor keeps, with optional extra labels; adding one again (with the same
+   * name and labels) replaces it
+   */
+  public void addCounter(String name, String labels, String help, LongSupplier value) {
+    add(new Custom(name, "counter", help, labels, value));
+  }
+
+  /** add a gauge the processor keeps, like {@link #addCounter} */
+  public void addGauge(String name, String labels, String help, LongSupplier value) {
+    add(new Custom(name, "gauge", help, labels, value));
+  }
+
+  private void add(Custom metric) {
+    custom.put(metric.labels == null ? metric.name : metric.name + '{' + metric.labels, metric);
+  }
+
+  /** the processor's own counters and gauges, ordered by name */
+  public Collection<Custom> getCustom() {
+    return custom.values();
+  }
+
+  public long getStreamsOpened() {
+    return opened.sum();
+  }
+
+  public long getStreamsCompleted() {
+    return completed.sum();
+  }
+
+  public long getStreamsCancelled() {
+    return cancelled.sum();
+  }
+
+  public long getStreamsErrored() {
+    return errored.sum();
+  }
+
+  public long getStreamsInFlight() {
+    return inFlight.sum();
+  }
+
+  public long getRequestBodyBytes() {
+    return requestBodyBytes.sum();
+  }
+
+  public long getResponseBodyBytes() {
+    return responseBodyBytes.sum();
+  }
+
+  public long getPhaseTimeouts(RequestCase phase) {
+    final int i = phaseIndex(phase);
+    return i < 0 ? 0L : phaseTimeouts[i].sum();
+  }
+
+  public LatencyHistogram getPhaseLatency(RequestCase phase) {
+    final int i = phaseIndex(phase);
+    return i < 0 ? null : phaseLatencies[i];
+  }
+
+  public LatencyHistogram getProcessingLatency() {
+    return processingLatency;
+  }
+}
@@ -0,0 +1,173 @@
+package com.github.wrossmorrow.extproc.metrics;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Serves metrics in the Prometheus text format at {@code /metrics}, using the JDK's built-in HTTP
+ * server (one thread; scrapes are infrequent). Latencies are exported as summaries in seconds, with
+ * quantiles computed from the histograms at scrape time.
+ */
+public class PrometheusExporter implements MetricsExporter {
+  private static final Logger logger = Logger.getLogger(PrometheusExporter.class.getName());
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final int port;
+  private HttpServer server;
+
+  public PrometheusExporter(int port) {
+    this.port = port;
+  }
+
+  public void start(MetricsRegistry registry) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext(
+        "/metrics",
+        exchange -> {
+          final byte[] body = scrape(registry).getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    server.start();
+    logger.info("Serving metrics on port " + server.getAddress().getPort() + " at /metrics");
+  }
+
+  public void stop() {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+    }
+  }
+
+  /** the port metrics are served on, once started (useful when constructed with port 0) */
+  public int getPort() {
+    return server == null ? port : server.getAddress().getPort();
+  }
+
+  /** all metrics in the registry, in the Prometheus text format */
+  public static String scrape(MetricsRegistry registry) {
+    StringBuilder out = new StringBuilder(4096);
+    header(out, "extproc_streams_opened_total", "counter", "Processing streams opened");
+    for (ProcessorMetrics m : registry.getProcessors()) {
+      sample(out, "extproc_streams_opened_total", m, null, m.getStreamsOpened());
+    }
+    final String closed = "extproc_streams_closed_total";
+    header(out, closed, "counter", "Processing streams closed, by outcome");
+    for (ProcessorMetrics m : registry.getProcessors()) {
+      sample(out, closed, m, "outcome=\"completed\"", m.getStreamsCompleted());
+      sample(out, closed, m, "outcome=\"cancelled\"", m.getStreamsCancelled());
+      sample(out, closed, m, "outcome=\"errored\"", m.getStreamsErrored());
+    }
+    header(out, "extproc_streams_in_flight", "gauge", "Processing streams open now");
+    for (ProcessorMetrics m : registry.getProcessors()) {
+      sample(out, "extproc_streams_in_flight", m, null, m.getStreamsInFlight());
+    }
+    final String bytes = "extproc_body_bytes_total";
+    header(out, bytes, "counter", "Body bytes received from envoy");
+    for (ProcessorMetrics m : registry.getProcessors()) {
+      sample(out, bytes, m, "direction=\"request\"", m.getRequestBodyBytes());
+      sample(out, bytes, m, "direction=\"response\"", m.getResponseBodyBytes());
+    }
+    final String timeouts = "extproc_phase_timeouts_total";
+    header(out, timeouts, "counter", "Phases answered with the fallback after their deadline");
+    for (ProcessorMetrics m : registry.getProcessors()) {
+      for (RequestCase phase : ProcessorMetrics.PHASES) {
+        final String label = "phase=\"" + phase.name().toLowerCase(Locale.ROOT) + "\"";
+        sample(out, timeouts, m, label, m.getPhaseTimeouts(phase));
+      }
+    }
+    header(out, "extproc_phase_duration_seconds", "summary", "Time processing each phase");
+    for (ProcessorMetrics m : registry.getProcessors()) {
+      for (RequestCase phase : ProcessorMetrics.PHASES) {
+        final String label = "phase=\"" + phase.name().toLowerCase(Locale.ROOT) + "\"";
+        summary(out, "extproc_phase_duration_seconds", m, label, m.getPhaseLatency(phase));
+      }
+    }
+    header(out, "extproc_processing_duration_seconds", "summary", "Time processing each request");
+    for (ProcessorMetrics m : registry.getProcessors()) {
+      summary(out, "extproc_processing_duration_seconds", m, null, m.getProcessingLatency());
+    }
+    custom(out, registry);
+    return out.toString();
+  }
+
+  /** processors' own metrics, grouped by name over processors */
+  private static void custom(StringBuilder out, MetricsRegistry registry) {
+    final Collection<ProcessorMetrics> processors = registry.getProcessors();
+    final TreeMap<String, ProcessorMetrics.Custom> names =
+        new TreeMap<String, ProcessorMetrics.Custom>(); // the first of each, for its type and help
+    for (ProcessorMetrics m : processors) {
+      for (ProcessorMetrics.Custom c : m.getCustom()) {
+        names.putIfAbsent(c.getName(), c);
+      }
+    }
+    for (ProcessorMetrics.Custom metric : names.values()) {
+      header(out, metric.getName(), metric.getType(), metric.getHelp());
+      for (ProcessorMetrics m : processors) {
+        for (ProcessorMetrics.Custom c : m.getCustom()) {
+          if (c.getName().equals(metric.getName())) {
+            sample(out, c.getName(), m, c.getLabels(), c.getValue());
+          }
+        }
+      }
+    }
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void labels(StringBuilder out, ProcessorMetrics m, String extra) {
+    out.append("{processor=\"").append(escape(m.getName())).append('"');
+    if (extra != null) {
+      out.append(',').append(extra);
+    }
+    out.append('}');
+  }
+
+  private static void sample(
+      StringBuilder out, String name, ProcessorMetrics m, String extra, long value) {
+    out.append(name);
+    labels(out, m, extra);
+    out.append(' ').append(value).append('\n');
+  }
+
+  private static void summary(
+      StringBuilder out, String name, ProcessorMetrics m, String extra, LatencyHistogram h) {
+    final long count = h.getCount();
+    if (count == 0) {
+      return; // e.g. phases envoy isn't configured to send
+    }
+    final long[] values = h.getValuesAtQuantiles(QUANTILES);
+    for (int i = 0; i < QUANTILES.length; i++) {
+      final String quantile = "quantile=\"" + QUANTILES[i] + "\"";
+      out.append(name);
+      labels(out, m, extra == null ? quantile : extra + "," + quantile);
+      out.append(' ').append(values[i] / 1e9).append('\n');
+    }
+    out.append(name).append("_sum");
+    labels(out, m, extra);
+    out.append(' ').append(h.getSum() / 1e9).append('\n');
+    out.append(name).append("_count");
+    labels(out, m, extra);
+    out.append(' ').append(count).append('\n');
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
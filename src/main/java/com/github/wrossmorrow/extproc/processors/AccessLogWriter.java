@@ -0,0 +1,284 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import com.github.wrossmorrow.extproc.MpscRingBuffer;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Writes access log entries as JSON lines from a background thread. Request threads only {@link
+ * #offer} finished entries to an {@link MpscRingBuffer}; the writer drains whatever has queued up,
+ * formats and encodes it into one large buffer, and writes that to the channel in as few writes as
+ * it can, flushing when the queue runs dry. When the writer falls behind and the queue fills,
+ * entries are dropped and counted, and the count is logged as a line of its own.
+ */
+final class AccessLogWriter {
+  private static final Logger logger = Logger.getLogger(AccessLogWriter.class.getName());
+
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final int BUFFER_BYTES = 64 * 1024;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /** what's logged about a request; filled in on request threads, read by the writer */
+  static final class Entry {
+    long started; // epoch millis
+    String requestId;
+    String method;
+    String authority;
+    String path; // with the raw query, if any
+    String[] requestHeaders; // values, in the order of the writer's allow-list; null if absent
+    String[] responseHeaders;
+    int status;
+    long elapsedNanos;
+    long processingNanos;
+    long requestBodyBytes;
+    long responseBodyBytes;
+    byte[] requestBody; // a prefix of the body, up to the configured limit
+    int requestBodyLength;
+    byte[] responseBody;
+    int responseBodyLength;
+    boolean deadlineExceeded;
+  }
+
+  private final WritableByteChannel out;
+  private final boolean closeOut;
+  private final String[] requestHeaders;
+  private final String[] responseHeaders;
+  private final MpscRingBuffer<Entry> queue;
+  private final LongAdder written = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final Thread writer;
+  private volatile boolean closed;
+
+  // writer thread only
+  private final StringBuilder line = new StringBuilder(512);
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+  private final CharsetEncoder encoder =
+      StandardCharsets.UTF_8
+          .newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private long droppedReported;
+
+  AccessLogWriter(
+      WritableByteChannel out,
+      boolean closeOut,
+      String[] requestHeaders,
+      String[] responseHeaders,
+      int queueSize) {
+    this.out = out;
+    this.closeOut = closeOut;
+    this.requestHeaders = requestHeaders;
+    this.responseHeaders = responseHeaders;
+    this.queue = new MpscRingBuffer<Entry>(queueSize);
+    writer = new Thread(this::write, "extproc-access-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** a channel appending to {@code file}, or to stdout (left open on close) if that's null */
+  static WritableByteChannel open(Path file) throws IOException {
+    if (file == null) {
+      return Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+    }
+    return FileChannel.open(
+        file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  String[] getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  String[] getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  /** queue an entry to be written, dropping it if the queue is full */
+  void offer(Entry entry) {
+    if (closed || !queue.offer(entry)) {
+      dropped.increment();
+    }
+  }
+
+  long getWritten() {
+    return written.sum();
+  }
+
+  long getDropped() {
+    return dropped.sum();
+  }
+
+  /** stop, writing out what was queued (waiting up to a second for that) */
+  void close() throws InterruptedException {
+    closed = true;
+    writer.join(1000L);
+  }
+
+  private void write() {
+    while (true) {
+      Entry entry = queue.poll();
+      if (entry == null) {
+        if (closed) {
+          break;
+        }
+        LockSupport.parkNanos(IDLE_NANOS);
+        continue;
+      }
+      try {
+        // a batch: everything queued, written as the buffer fills and once it's drained
+        do {
+          format(entry, line);
+          append(line);
+          written.increment();
+        } while ((entry = queue.poll()) != null);
+        final long drops = dropped.sum();
+        if (drops > droppedReported) {
+          line.setLength(0);
+          line.append("{\"dropped\":").append(drops - droppedReported).append("}\n");
+          append(line);
+          droppedReported = drops;
+        }
+        flush();
+      } catch (IOException | RuntimeException e) {
+        ((Buffer) buffer).clear();
+        logger.warning("Could not write access log: " + e);
+      }
+    }
+    try {
+      if (closeOut) {
+        out.close();
+      }
+    } catch (IOException e) {
+      logger.warning("Could not close access log: " + e);
+    }
+  }
+
+  /** encode a line into the buffer, writing the buffer out whenever it fills */
+  private void append(StringBuilder line) throws IOException {
+    final CharBuffer chars = CharBuffer.wrap(line);
+    encoder.reset();
+    CoderResult result;
+    while ((result = encoder.encode(chars, buffer, true)).isOverflow()) {
+      flush();
+    }
+    while (encoder.flush(buffer).isOverflow()) {
+      flush();
+    }
+    if (result.isError()) {
+      result.throwException();
+    }
+  }
+
+  private void flush() throws IOException {
+    ((Buffer) buffer).flip();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    ((Buffer) buffer).clear();
+  }
+
+  /** the JSON line for an entry, replacing what's in {@code line} */
+  void format(Entry entry, StringBuilder line) {
+    line.setLength(0);
+    line.append("{\"time\":\"");
+    DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(entry.started), line);
+    line.append('"');
+    string(line, "requestId", entry.requestId);
+    string(line, "method", entry.method);
+    string(line, "authority", entry.authority);
+    string(line, "path", entry.path);
+    line.append(",\"status\":").append(entry.status);
+    line.append(",\"elapsedNanos\":").append(entry.elapsedNanos);
+    line.append(",\"processingNanos\":").append(entry.processingNanos);
+    line.append(",\"requestBodyBytes\":").append(entry.requestBodyBytes);
+    line.append(",\"responseBodyBytes\":").append(entry.responseBodyBytes);
+    if (entry.deadlineExceeded) {
+      line.append(",\"deadlineExceeded\":true");
+    }
+    headers(line, "requestHeaders", requestHeaders, entry.requestHeaders);
+    headers(line, "responseHeaders", responseHeaders, entry.responseHeaders);
+    body(line, "requestBody", entry.requestBody, entry.requestBodyLength, entry.requestBodyBytes);
+    body(
+        line,
+        "responseBody",
+        entry.responseBody,
+        entry.responseBodyLength,
+        entry.responseBodyBytes);
+    line.append("}\n");
+  }
+
+  private static void string(StringBuilder line, String name, String value) {
+    if (value != null) {
+      line.append(",\"").append(name).append("\":");
+      quote(line, value);
+    }
+  }
+
+  private static void headers(StringBuilder line, String name, String[] names, String[] values) {
+    if (values == null) {
+      return;
+    }
+    line.append(",\"").append(name).append("\":{");
+    boolean first = true;
+    for (int i = 0; i < names.length; i++) {
+      if (values[i] != null) {
+        line.append(first ? "" : ",");
+        quote(line, names[i]);
+        line.append(':');
+        quote(line, values[i]);
+        first = false;
+      }
+    }
+    line.append('}');
+  }
+
+  private static void body(StringBuilder line, String name, byte[] body, int length, long total) {
+    if (body == null || length == 0) {
+      return;
+    }
+    line.append(",\"").append(name).append("\":");
+    quote(line, new String(body, 0, length, StandardCharsets.UTF_8));
+    if (total > length) {
+      line.append(",\"").append(name).append("Truncated\":true");
+    }
+  }
+
+  private static void quote(StringBuilder line, String value) {
+    line.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c == '\n') {
+        line.append("\\n");
+      } else if (c == '\r') {
+        line.append("\\r");
+      } else if (c == '\t') {
+        line.append("\\t");
+      } else if (c < 0x20) {
+        line.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+}
@@ -0,0 +1,248 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Incremental hash over request data fed in as it arrives, so hashing a body needs no more memory
+ * than the hash state. Instances are not thread-safe, but are reusable after {@link #reset()}; see
+ * {@link Pool}.
+ */
+public abstract class BodyHasher {
+
+  /** non-cryptographic 64 bit xxHash, much faster than the JCA digests for dedup keys */
+  public static final String XXH64 = "XXH64";
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /**
+   * A hasher for the named algorithm: {@link #XXH64} or any {@code MessageDigest} algorithm
+   * ("SHA-256", "SHA-1", "MD5", ...).
+   */
+  public static BodyHasher forAlgorithm(String algorithm) {
+    if (XXH64.equalsIgnoreCase(algorithm)) {
+      return new XxHash64();
+    }
+    try {
+      return new MessageDigestHasher(MessageDigest.getInstance(algorithm));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException("Unknown digest algorithm \"" + algorithm + "\"", e);
+    }
+  }
+
+  /** add data; consumes the buffer's remaining bytes */
+  public abstract void update(ByteBuffer data);
+
+  public void update(String text) {
+    update(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /** the hash of everything added since the last reset, without resetting */
+  public abstract byte[] peek();
+
+  /** the hash of everything added since the last reset, then reset */
+  public byte[] digest() {
+    final byte[] d = peek();
+    reset();
+    return d;
+  }
+
+  public abstract void reset();
+
+  /** lowercase hex, via table lookup */
+  public static String toHex(final byte[] bytes) {
+    final char[] chars = new char[2 * bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+      chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Bounded pool of hashers for one algorithm. {@code MessageDigest.getInstance} does a provider
+   * lookup and allocates fresh state, so processors hashing every request reuse instances. A
+   * hasher lives across the phases of a request, which may run on different threads, hence a pool
+   * instead of thread-locals.
+   */
+  public static class Pool {
+    private final String algorithm;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<BodyHasher> idle;
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    public Pool(String algorithm, int maxIdle) {
+      this.algorithm = algorithm;
+      this.maxIdle = maxIdle;
+      this.idle = new ConcurrentLinkedQueue<BodyHasher>();
+      release(forAlgorithm(algorithm)); // fail fast on a bad algorithm
+    }
+
+    public String getAlgorithm() {
+      return algorithm;
+    }
+
+    public BodyHasher acquire() {
+      final BodyHasher hasher = idle.poll();
+      if (hasher == null) {
+        return forAlgorithm(algorithm);
+      }
+      idleCount.decrementAndGet();
+      return hasher;
+    }
+
+    public void release(BodyHasher hasher) {
+      hasher.reset();
+      if (idleCount.incrementAndGet() <= maxIdle) {
+        idle.offer(hasher);
+      } else {
+        idleCount.decrementAndGet();
+      }
+    }
+  }
+
+  static final class MessageDigestHasher extends BodyHasher {
+    private final MessageDigest md;
+
+    MessageDigestHasher(MessageDigest md) {
+      this.md = md;
+    }
+
+    public void update(ByteBuffer data) {
+      md.update(data);
+    }
+
+    public byte[] peek() {
+      try {
+        return ((MessageDigest) md.clone()).digest();
+      } catch (CloneNotSupportedException e) {
+        throw new IllegalStateException(md.getAlgorithm() + " digests can not be copied", e);
+      }
+    }
+
+    public byte[] digest() {
+      return md.digest();
+    }
+
+    public void reset() {
+      md.reset();
+    }
+  }
+
+  /** streaming XXH64 (seed 0); digests are the 64 bit hash in big-endian order */
+  static final class XxHash64 extends BodyHasher {
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    private final ByteBuffer stripe = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long total;
+
+    XxHash64() {
+      reset();
+    }
+
+    public void reset() {
+      v1 = P1 + P2;
+      v2 = P2;
+      v3 = 0;
+      v4 = -P1;
+      total = 0;
+      ((Buffer) stripe).clear();
+    }
+
+    public void update(ByteBuffer data) {
+      final ByteOrder order = data.order();
+      data.order(ByteOrder.LITTLE_ENDIAN);
+      total += data.remaining();
+      if (stripe.position() > 0) {
+        while (stripe.hasRemaining() && data.hasRemaining()) {
+          stripe.put(data.get());
+        }
+        if (stripe.hasRemaining()) {
+          data.order(order);
+          return;
+        }
+        ((Buffer) stripe).flip();
+        consume(stripe);
+        ((Buffer) stripe).clear();
+      }
+      while (data.remaining() >= 32) {
+        consume(data);
+      }
+      stripe.put(data);
+      data.order(order);
+    }
+
+    private void consume(ByteBuffer data) {
+      v1 = round(v1, data.getLong());
+      v2 = round(v2, data.getLong());
+      v3 = round(v3, data.getLong());
+      v4 = round(v4, data.getLong());
+    }
+
+    public byte[] peek() {
+      long h;
+      if (total >= 32) {
+        h =
+            Long.rotateLeft(v1, 1)
+                + Long.rotateLeft(v2, 7)
+                + Long.rotateLeft(v3, 12)
+                + Long.rotateLeft(v4, 18);
+        h = merge(h, v1);
+        h = merge(h, v2);
+        h = merge(h, v3);
+        h = merge(h, v4);
+      } else {
+        h = P5;
+      }
+      h += total;
+
+      final int remaining = stripe.position();
+      int i = 0;
+      for (; i + 8 <= remaining; i += 8) {
+        h ^= round(0, stripe.getLong(i));
+        h = Long.rotateLeft(h, 27) * P1 + P4;
+      }
+      if (i + 4 <= remaining) {
+        h ^= (stripe.getInt(i) & 0xFFFFFFFFL) * P1;
+        h = Long.rotateLeft(h, 23) * P2 + P3;
+        i += 4;
+      }
+      for (; i < remaining; i++) {
+        h ^= (stripe.get(i) & 0xFFL) * P5;
+        h = Long.rotateLeft(h, 11) * P1;
+      }
+
+      h ^= h >>> 33;
+      h *= P2;
+      h ^= h >>> 29;
+      h *= P3;
+      h ^= h >>> 32;
+      return ByteBuffer.allocate(8).putLong(h).array();
+    }
+
+    private static long round(long acc, long input) {
+      acc += input * P2;
+      acc = Long.rotateLeft(acc, 31);
+      return acc * P1;
+    }
+
+    private static long merge(long acc, long val) {
+      acc ^= round(0, val);
+      return acc * P1 + P4;
+    }
+  }
+}
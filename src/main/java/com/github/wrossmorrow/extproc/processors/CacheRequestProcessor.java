@@ -0,0 +1,376 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import com.github.wrossmorrow.extproc.ProcessingOptions;
+import com.github.wrossmorrow.extproc.RequestContext;
+import com.github.wrossmorrow.extproc.RequestProcessor;
+import com.github.wrossmorrow.extproc.RequestProcessorHealthManager;
+import com.github.wrossmorrow.extproc.RequestStateStore;
+import com.github.wrossmorrow.extproc.metrics.MetricsRegistry;
+import com.github.wrossmorrow.extproc.metrics.ProcessorMetrics;
+import com.google.protobuf.ByteString;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Caches responses to GET and HEAD requests and answers repeats with an immediate response, so
+ * they never reach the upstream. Responses are cached (in a {@link ResponseCache}) for as long as
+ * their {@code cache-control} allows, keyed by method, authority, path, query (in parameter name
+ * order) and the request headers responses may vary on. Requests with {@code authorization},
+ * {@code cache-control: no-cache} or {@code no-store} aren't served from the cache, and responses
+ * that are private, set cookies, vary on other headers, or are too big aren't cached. Responses
+ * are marked with an {@code x-extproc-cache} header of {@code hit} or {@code miss}.
+ *
+ * <p>Envoy must send response headers and bodies (buffered or streamed) for responses to be
+ * cached; a response is captured once its headers or body say it's complete, or its trailers
+ * arrive. Bodies are sent back as immediate responses, which envoy takes as strings, so only
+ * bodies that are valid UTF-8 are cached.
+ *
+ * <p>Configured with properties:
+ *
+ * <ul>
+ *   <li>{@code extproc.cache.max.mb}: the cache's size (64)
+ *   <li>{@code extproc.cache.max.entry.kb}: the largest body to cache (1024)
+ *   <li>{@code extproc.cache.ttl.seconds}: how long to cache responses that don't say (0, for not
+ *       at all)
+ *   <li>{@code extproc.cache.vary}: request headers responses may vary on, comma separated
+ *   <li>{@code extproc.cache.offheap}: keep bodies in direct buffers, off the heap (false)
+ * </ul>
+ */
+public class CacheRequestProcessor implements RequestProcessor {
+  private static final Logger logger = Logger.getLogger(CacheRequestProcessor.class.getName());
+
+  private static final Set<Integer> CACHEABLE_STATUSES =
+      new HashSet<Integer>(Arrays.asList(200, 203, 204, 300, 301, 404, 410));
+
+  // per-connection or per-message headers, not part of what's cached
+  private static final Set<String> UNCACHED_HEADERS =
+      new HashSet<String>(
+          Arrays.asList(
+              "age",
+              "connection",
+              "content-length",
+              "keep-alive",
+              "proxy-authenticate",
+              "te",
+              "trailer",
+              "transfer-encoding",
+              "upgrade"));
+
+  private static final Comparator<String> BY_PARAMETER_NAME =
+      Comparator.comparing(pair -> pair.substring(0, (pair + "=").indexOf('=')));
+
+  /** a response being captured, from its request's headers until its body ends */
+  private static final class Pending {
+    final String key;
+    int status;
+    Map<String, String> headers; // null until response headers arrive
+    long ttlNanos;
+    ByteString body = ByteString.EMPTY;
+
+    Pending(String key) {
+      this.key = key;
+    }
+  }
+
+  private final ResponseCache cache;
+  private final String[] vary;
+  private final Set<String> varySet;
+  private final long defaultTtlNanos;
+  private final int maxEntryBytes;
+  private final boolean offHeap;
+  private final RequestStateStore<Pending> pending = new RequestStateStore<Pending>();
+
+  private final LongAdder bypasses = new LongAdder();
+  private final LongAdder uncacheable = new LongAdder();
+
+  public CacheRequestProcessor() {
+    this(
+        new ResponseCache(Long.getLong("extproc.cache.max.mb", 64L) << 20, maxEntryBytes()),
+        LoggingRequestProcessor.headerNames(
+            System.getProperty("extproc.cache.vary", "accept,accept-encoding")),
+        Long.getLong("extproc.cache.ttl.seconds", 0L),
+        TimeUnit.SECONDS,
+        maxEntryBytes(),
+        Boolean.getBoolean("extproc.cache.offheap"));
+  }
+
+  private static int maxEntryBytes() {
+    return Integer.getInteger("extproc.cache.max.entry.kb", 1024) << 10;
+  }
+
+  public CacheRequestProcessor(
+      ResponseCache cache,
+      String[] vary,
+      long defaultTtl,
+      TimeUnit unit,
+      int maxEntryBytes,
+      boolean offHeap) {
+    this.cache = cache;
+    this.vary = vary;
+    this.varySet = new HashSet<String>(Arrays.asList(vary));
+    this.defaultTtlNanos = unit.toNanos(defaultTtl);
+    this.maxEntryBytes = maxEntryBytes;
+    this.offHeap = offHeap;
+    if (cache.getMaxEntryWeight() < maxEntryBytes) {
+      logger.warning(
+          "Cache takes responses of up to "
+              + cache.getMaxEntryWeight()
+              + " bytes, less than the largest body to cache ("
+              + maxEntryBytes
+              + "); bigger ones will be refused");
+    }
+    final ProcessorMetrics metrics = MetricsRegistry.getDefault().forProcessor(getName());
+    final String lookups = "extproc_cache_lookups_total";
+    final String help = "Cache lookups, by result";
+    metrics.addCounter(lookups, "result=\"hit\"", help, cache::getHits);
+    metrics.addCounter(lookups, "result=\"miss\"", help, cache::getMisses);
+    metrics.addCounter(lookups, "result=\"bypass\"", help, this::getBypasses);
+    final String dropped = "extproc_cache_dropped_total";
+    final String droppedHelp = "Responses dropped from or refused by the cache, by reason";
+    metrics.addCounter(dropped, "reason=\"evicted\"", droppedHelp, cache::getEvictions);
+    metrics.addCounter(dropped, "reason=\"expired\"", droppedHelp, cache::getExpirations);
+    metrics.addCounter(dropped, "reason=\"too_big\"", droppedHelp, cache::getRejections);
+    metrics.addCounter("extproc_cache_inserts_total", null, "Responses cached", cache::getInserts);
+    metrics.addCounter(
+        "extproc_cache_uncacheable_total",
+        null,
+        "Responses to misses that couldn't be cached",
+        this::getUncacheable);
+    metrics.addGauge("extproc_cache_entries", null, "Responses cached now", cache::size);
+    metrics.addGauge(
+        "extproc_cache_bytes", null, "Bytes counted against the cache", cache::getBytes);
+  }
+
+  public String getName() {
+    return "cache";
+  }
+
+  public ProcessingOptions getOptions() {
+    return new ProcessingOptions();
+  }
+
+  public void setHealthManager(RequestProcessorHealthManager health) {}
+
+  public void shutdown() {
+    System.out.println(this.getClass().getCanonicalName() + " shutting down");
+  }
+
+  public ResponseCache getCache() {
+    return cache;
+  }
+
+  /** cacheable requests not served from the cache because of their headers */
+  public long getBypasses() {
+    return bypasses.sum();
+  }
+
+  /** responses to misses that couldn't be cached */
+  public long getUncacheable() {
+    return uncacheable.sum();
+  }
+
+  public void processRequestHeaders(RequestContext ctx, Map<String, String> headers) {
+    final String method = ctx.getMethod();
+    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+      return;
+    }
+    if (ctx.getRequestHeader("authorization") != null) {
+      bypasses.increment();
+      return;
+    }
+    final String cacheControl = ctx.getRequestHeader("cache-control");
+    final boolean noStore = hasDirective(cacheControl, "no-store");
+    final String key = key(ctx);
+    if (noStore || hasDirective(cacheControl, "no-cache")) {
+      bypasses.increment();
+    } else {
+      final ResponseCache.CachedResponse hit = cache.get(key);
+      if (hit != null) {
+        final Map<String, String> response = new HashMap<String, String>(hit.getHeaders());
+        response.put("age", Long.toString(hit.getAgeSeconds()));
+        response.put("x-extproc-cache", "hit");
+        ctx.cancelRequest(hit.getStatus(), response, hit.getBody());
+        return;
+      }
+    }
+    if (!noStore) {
+      try {
+        pending.put(ctx, new Pending(key));
+      } catch (IllegalStateException e) {
+        // too many requests in flight to capture their responses; just don't cache this one
+      }
+    }
+  }
+
+  /** method, authority, path, query parameters in name order, and the varying headers */
+  String key(RequestContext ctx) {
+    final StringBuilder key = new StringBuilder(128);
+    key.append(ctx.getMethod()).append(' ').append(ctx.getAuthority()).append(ctx.getPath());
+    final String query = ctx.getRawQueryString();
+    if (!query.isEmpty()) {
+      final String[] pairs = query.split("&");
+      Arrays.sort(pairs, BY_PARAMETER_NAME); // stable, so repeated parameters keep their order
+      char separator = '?';
+      for (String pair : pairs) {
+        if (!pair.isEmpty()) {
+          key.append(separator).append(pair);
+          separator = '&';
+        }
+      }
+    }
+    for (String name : vary) {
+      final String value = ctx.getRequestHeader(name);
+      key.append('\n');
+      if (value != null) {
+        key.append(value);
+      }
+    }
+    return key.toString();
+  }
+
+  public void processRequestBody(RequestContext ctx, String body) {}
+
+  public void processRequestBody(RequestContext ctx, ByteString body) {}
+
+  public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {}
+
+  public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {
+    final Pending capture = pending.get(ctx);
+    if (capture == null) {
+      return;
+    }
+    ctx.addHeader("x-extproc-cache", "miss");
+    final long ttlNanos = ttlNanos(ctx);
+    if (ttlNanos <= 0
+        || !CACHEABLE_STATUSES.contains(ctx.getStatus())
+        || ctx.getResponseHeader("set-cookie") != null
+        || !variesOnlyOnKey(ctx.getResponseHeader("vary"))
+        || contentLength(ctx) > maxEntryBytes) {
+      pending.remove(ctx);
+      uncacheable.increment();
+      return;
+    }
+    capture.status = ctx.getStatus();
+    capture.ttlNanos = ttlNanos;
+    capture.headers = new HashMap<String, String>();
+    for (Map.Entry<String, String> header : ctx.getResponseHeaders().entrySet()) {
+      final String name = header.getKey().toLowerCase(Locale.ROOT);
+      if (!UNCACHED_HEADERS.contains(name)) {
+        capture.headers.put(name, header.getValue());
+      }
+    }
+    if (ctx.streamComplete()) {
+      insert(ctx, capture);
+    }
+  }
+
+  public void processResponseBody(RequestContext ctx, String body) {}
+
+  public void processResponseBody(RequestContext ctx, ByteString body) {
+    final Pending capture = pending.get(ctx);
+    if (capture == null || capture.headers == null) {
+      return;
+    }
+    if (capture.body.size() + body.size() > maxEntryBytes) {
+      pending.remove(ctx);
+      uncacheable.increment();
+      return;
+    }
+    capture.body = capture.body.concat(body); // a rope; chunks aren't copied
+    if (ctx.streamComplete()) {
+      insert(ctx, capture);
+    }
+  }
+
+  public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {
+    // trailers end the response even when the last body chunk doesn't say so
+    final Pending capture = pending.get(ctx);
+    if (capture != null && capture.headers != null) {
+      insert(ctx, capture);
+    }
+  }
+
+  private void insert(RequestContext ctx, Pending capture) {
+    pending.remove(ctx);
+    if (!capture.body.isValidUtf8()) {
+      uncacheable.increment();
+      return;
+    }
+    cache.put(
+        capture.key,
+        new ResponseCache.CachedResponse(
+            capture.status, capture.headers, capture.body, capture.ttlNanos, offHeap));
+  }
+
+  /** how long the response may be cached for, from its cache-control; 0 or less if not at all */
+  long ttlNanos(RequestContext ctx) {
+    final String cacheControl = ctx.getResponseHeader("cache-control");
+    if (cacheControl == null) {
+      return defaultTtlNanos;
+    }
+    long maxAge = -1;
+    long sharedMaxAge = -1;
+    for (String directive : cacheControl.split(",")) {
+      final String d = directive.trim().toLowerCase(Locale.ROOT);
+      if (d.equals("no-store") || d.equals("no-cache") || d.equals("private")) {
+        return 0;
+      } else if (d.startsWith("max-age=")) {
+        maxAge = number(d.substring(8));
+      } else if (d.startsWith("s-maxage=")) {
+        sharedMaxAge = number(d.substring(9));
+      }
+    }
+    final long seconds = sharedMaxAge >= 0 ? sharedMaxAge : maxAge;
+    if (seconds < 0) {
+      return defaultTtlNanos;
+    }
+    final String age = ctx.getResponseHeader("age");
+    return TimeUnit.SECONDS.toNanos(seconds - (age == null ? 0 : Math.max(0, number(age))));
+  }
+
+  private static long number(String value) {
+    try {
+      return Long.parseLong(value.trim().replace("\"", ""));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private boolean variesOnlyOnKey(String varyHeader) {
+    if (varyHeader == null) {
+      return true;
+    }
+    for (String name : varyHeader.split(",")) {
+      final String n = name.trim().toLowerCase(Locale.ROOT);
+      if (!n.isEmpty() && !varySet.contains(n)) {
+        return false; // including "*"
+      }
+    }
+    return true;
+  }
+
+  private static long contentLength(RequestContext ctx) {
+    final String length = ctx.getResponseHeader("content-length");
+    return length == null ? 0 : number(length);
+  }
+
+  private static boolean hasDirective(String cacheControl, String directive) {
+    if (cacheControl == null) {
+      return false;
+    }
+    for (String d : cacheControl.split(",")) {
+      if (d.trim().equalsIgnoreCase(directive)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -4,15 +4,36 @@ import com.github.wrossmorrow.extproc.ProcessingOptions;
 import com.github.wrossmorrow.extproc.RequestContext;
 import com.github.wrossmorrow.extproc.RequestProcessor;
 import com.github.wrossmorrow.extproc.RequestProcessorHealthManager;
-import java.util.HashMap;
+import com.google.protobuf.ByteString;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DedupRequestProcessor implements RequestProcessor {
 
-  Map<String, String> inflight;
+  private static final char HOLDER_SEPARATOR = '#';
+
+  InflightRegistry inflight;
+  private final AtomicLong holders = new AtomicLong();
 
   public DedupRequestProcessor() {
-    inflight = new HashMap<String, String>();
+    this(registryFromProperties());
+  }
+
+  public DedupRequestProcessor(InflightRegistry inflight) {
+    this.inflight = inflight;
+  }
+
+  /** Instantiate an InflightRegistry from the extproc.dedup.registry property */
+  private static InflightRegistry registryFromProperties() {
+    String registry = System.getProperty("extproc.dedup.registry");
+    if (registry == null) {
+      return new LocalInflightRegistry();
+    }
+    try {
+      return (InflightRegistry) Class.forName(registry).getConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException("Can not create inflight registry " + registry, e);
+    }
   }
 
   public String getName() {
@@ -27,41 +48,45 @@ public class DedupRequestProcessor implements RequestProcessor {
 
   public void shutdown() {
     System.out.println(this.getClass().getCanonicalName() + " shutting down");
+    inflight.close();
   }
 
   public void processRequestHeaders(RequestContext ctx, Map<String, String> headers) {
     if (ctx.getRequestHeaders().containsKey("x-extproc-request-digest")) {
       String digest = ctx.getRequestHeaders().get("x-extproc-request-digest");
-      if (inflight.containsKey(digest)) {
-        String requestId = inflight.get(digest);
+      String requestId = ctx.getRequestId() == null ? "" : ctx.getRequestId();
+      // the holder must be unique to this stream, or one stream's release could drop another's
+      // claim, so it's the request id (if any) with a per-stream sequence number
+      String holder = requestId + HOLDER_SEPARATOR + holders.incrementAndGet();
+      String existing = inflight.acquire(digest, holder);
+      if (existing != null) {
+        int separator = existing.lastIndexOf(HOLDER_SEPARATOR);
+        String existingId = separator < 0 ? existing : existing.substring(0, separator);
         ctx.cancelRequest(
             409,
-            "{\"message\":\"Duplicate request already in flight\",\"requestId\":\""
-                + requestId
-                + "\"}");
+            existingId.isEmpty()
+                ? "{\"message\":\"Duplicate request already in flight\"}"
+                : "{\"message\":\"Duplicate request already in flight\",\"requestId\":\""
+                    + existingId
+                    + "\"}");
         return;
       }
-      inflight.put(digest, ctx.getRequestId());
+      // released only here, when the stream ends, however it ends
+      ctx.onClose(() -> inflight.release(digest, holder));
     }
   }
 
   public void processRequestBody(RequestContext ctx, String body) {}
 
+  public void processRequestBody(RequestContext ctx, ByteString body) {}
+
   public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {}
 
-  public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {
-    if (ctx.streamComplete()) {
-      String digest = ctx.getRequestHeaders().get("x-extproc-request-digest");
-      inflight.remove(digest);
-    }
-  }
+  public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {}
 
-  public void processResponseBody(RequestContext ctx, String body) {
-    if (ctx.streamComplete()) {
-      String digest = ctx.getRequestHeaders().get("x-extproc-request-digest");
-      inflight.remove(digest);
-    }
-  }
+  public void processResponseBody(RequestContext ctx, String body) {}
+
+  public void processResponseBody(RequestContext ctx, ByteString body) {}
 
   public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {}
 }
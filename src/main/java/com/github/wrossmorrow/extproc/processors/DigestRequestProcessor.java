@@ -4,21 +4,41 @@ import com.github.wrossmorrow.extproc.ProcessingOptions;
 import com.github.wrossmorrow.extproc.RequestContext;
 import com.github.wrossmorrow.extproc.RequestProcessor;
 import com.github.wrossmorrow.extproc.RequestProcessorHealthManager;
-import java.math.BigInteger;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import com.github.wrossmorrow.extproc.RequestStateStore;
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
+/**
+ * Computes a digest of {@code <method>:<path>:<body>} as body chunks arrive, so memory use does
+ * not depend on body size and both BUFFERED and STREAMED body modes work. The algorithm is set
+ * with the {@code extproc.digest.algorithm} property (default SHA-256); any {@code MessageDigest}
+ * algorithm or {@code XXH64} (a fast non-cryptographic hash, fine for dedup keys) can be used.
+ */
 public class DigestRequestProcessor implements RequestProcessor {
 
-  Map<String, StringBuilder> hashtexts;
-  Map<String, String> digests;
+  public static final String DEFAULT_ALGORITHM = "SHA-256";
+
+  static class DigestState {
+    final BodyHasher hasher;
+    String requestDigest;
+
+    DigestState(BodyHasher hasher) {
+      this.hasher = hasher;
+    }
+  }
+
+  // per-request state, dropped automatically when each request's stream ends
+  RequestStateStore<DigestState> states;
+  BodyHasher.Pool hashers;
 
   public DigestRequestProcessor() {
-    hashtexts = new HashMap<String, StringBuilder>();
-    digests = new HashMap<String, String>();
+    this(System.getProperty("extproc.digest.algorithm", DEFAULT_ALGORITHM));
+  }
+
+  public DigestRequestProcessor(String algorithm) {
+    states = new RequestStateStore<DigestState>();
+    hashers = new BodyHasher.Pool(algorithm, Runtime.getRuntime().availableProcessors() * 64);
   }
 
   public String getName() {
@@ -36,22 +56,27 @@ public class DigestRequestProcessor implements RequestProcessor {
   }
 
   public void processRequestHeaders(RequestContext ctx, Map<String, String> headers) {
-    StringBuilder hashtext = new StringBuilder(ctx.getMethod() + ":" + ctx.getPath() + ":");
+    final DigestState state = new DigestState(hashers.acquire());
+    ctx.onClose(() -> hashers.release(state.hasher));
+    states.put(ctx, state);
+    state.hasher.update(ctx.getMethod() + ":" + ctx.getPath() + ":");
     if (ctx.streamComplete()) {
-      String digest = SHAHash(hashtext);
-      ctx.addHeader("x-extproc-request-digest", digest);
-      digests.put(ctx.getRequestId(), digest);
+      completeRequest(ctx, state);
     }
-    hashtexts.put(ctx.getRequestId(), hashtext);
   }
 
   public void processRequestBody(RequestContext ctx, String body) {
-    StringBuilder hashtext = hashtexts.get(ctx.getRequestId());
-    hashtext.append(body);
+    processRequestBody(ctx, ByteString.copyFromUtf8(body));
+  }
+
+  public void processRequestBody(RequestContext ctx, ByteString body) {
+    final DigestState state = states.get(ctx);
+    if (state == null) {
+      return;
+    }
+    update(state.hasher, body);
     if (ctx.streamComplete()) {
-      String digest = SHAHash(hashtext);
-      ctx.addHeader("x-extproc-request-digest", digest);
-      digests.put(ctx.getRequestId(), digest);
+      completeRequest(ctx, state);
     }
   }
 
@@ -59,45 +84,42 @@ public class DigestRequestProcessor implements RequestProcessor {
 
   public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {
     if (ctx.streamComplete()) {
-      String digest = digests.getOrDefault(ctx.getRequestId(), "");
+      final DigestState state = states.remove(ctx);
+      final String digest = state == null || state.requestDigest == null ? "" : state.requestDigest;
       ctx.addHeader("x-extproc-request-digest", digest);
       ctx.addHeader("x-extproc-response-digest", digest);
-      hashtexts.remove(ctx.getRequestId());
-      digests.remove(ctx.getRequestId());
     }
   }
 
   public void processResponseBody(RequestContext ctx, String body) {
-    StringBuilder hashtext = hashtexts.get(ctx.getRequestId());
-    hashtext.append(body);
+    processResponseBody(ctx, ByteString.copyFromUtf8(body));
+  }
+
+  public void processResponseBody(RequestContext ctx, ByteString body) {
+    final DigestState state = states.get(ctx);
+    if (state == null) {
+      return;
+    }
+    update(state.hasher, body);
     if (ctx.streamComplete()) {
-      String digest = digests.get(ctx.getRequestId());
-      ctx.addHeader("x-extproc-request-digest", digest);
-      ctx.addHeader("x-extproc-response-digest", SHAHash(hashtext));
-      hashtexts.remove(ctx.getRequestId());
-      digests.remove(ctx.getRequestId());
+      states.remove(ctx);
+      ctx.addHeader("x-extproc-request-digest", state.requestDigest);
+      ctx.addHeader("x-extproc-response-digest", BodyHasher.toHex(state.hasher.peek()));
     }
   }
 
   public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {}
 
-  protected String SHAHash(StringBuilder input) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      byte[] d = md.digest(input.toString().getBytes(StandardCharsets.UTF_8));
-      return convertToHex(d);
-    } catch (NoSuchAlgorithmException e) {
-      System.out.println("No such algorithm exception");
-      return "";
-    }
+  protected void completeRequest(RequestContext ctx, DigestState state) {
+    // peek, because the response digest continues from the request data
+    state.requestDigest = BodyHasher.toHex(state.hasher.peek());
+    ctx.addHeader("x-extproc-request-digest", state.requestDigest);
   }
 
-  protected String convertToHex(final byte[] messageDigest) {
-    BigInteger bigint = new BigInteger(1, messageDigest);
-    String hexText = bigint.toString(16);
-    while (hexText.length() < 32) {
-      hexText = "0".concat(hexText);
+  /** hash a chunk in place; buffer views avoid copying even for composite ByteStrings */
+  protected static void update(BodyHasher hasher, ByteString body) {
+    for (ByteBuffer buffer : body.asReadOnlyByteBufferList()) {
+      hasher.update(buffer);
     }
-    return hexText;
   }
 }
@@ -4,6 +4,7 @@ import com.github.wrossmorrow.extproc.ProcessingOptions;
 import com.github.wrossmorrow.extproc.RequestContext;
 import com.github.wrossmorrow.extproc.RequestProcessor;
 import com.github.wrossmorrow.extproc.RequestProcessorHealthManager;
+import com.google.protobuf.ByteString;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -34,25 +35,47 @@ public class EchoRequestProcessor implements RequestProcessor {
         String jsonResponse = "{\"path\": \"" + ctx.getPath() + "\"}";
         ctx.cancelRequest(200, ctx.getRequestHeaders(), jsonResponse);
       }
+    } else {
+      // nothing to echo, so don't have envoy send bodies or trailers for this request
+      ctx.overrideProcessingMode(ProcessingOptions.HEADERS_ONLY);
     }
   }
 
   public void processRequestBody(RequestContext ctx, String body) {
+    processRequestBody(ctx, ByteString.copyFromUtf8(body));
+  }
+
+  public void processRequestBody(RequestContext ctx, ByteString body) {
     if (ctx.getPath().startsWith("/echo")) {
-      logger.info(
-          "EchoRequestProcessor.processRequestBody: "
-              + ctx.getPath()
-              + " responding before upstream");
-      String jsonResponse = "{\"path\": \"" + ctx.getPath() + "\", \"body\": \"" + body + "\"}";
-      ctx.cancelRequest(200, ctx.getRequestHeaders(), jsonResponse);
+      // bodies may come in several chunks (STREAMED or BUFFERED_PARTIAL), so echo at the end
+      if (!ctx.getRequestBodyBuffer().append(body)) {
+        ctx.cancelRequest(413, "{\"path\": \"" + ctx.getPath() + "\", \"error\": \"too large\"}");
+      } else if (ctx.streamComplete()) {
+        echo(ctx);
+      }
     }
   }
 
-  public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {}
+  public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {
+    // trailers end the request even when the last body chunk doesn't say so
+    if (ctx.getPath().startsWith("/echo") && ctx.getRequestBodyChunks() > 0) {
+      echo(ctx);
+    }
+  }
 
   public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {}
 
   public void processResponseBody(RequestContext ctx, String body) {}
 
   public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {}
+
+  protected void echo(RequestContext ctx) {
+    logger.info(
+        "EchoRequestProcessor.processRequestBody: "
+            + ctx.getPath()
+            + " responding before upstream");
+    String body = ctx.getRequestBodyBuffer().getBody().toStringUtf8();
+    String jsonResponse = "{\"path\": \"" + ctx.getPath() + "\", \"body\": \"" + body + "\"}";
+    ctx.cancelRequest(200, ctx.getRequestHeaders(), jsonResponse);
+  }
 }
@@ -0,0 +1,26 @@
+package com.github.wrossmorrow.extproc.processors;
+
+/**
+ * Tracks which request currently holds a key (e.g., a request digest), for rejecting duplicates
+ * that arrive while the first request is still in flight. {@link LocalInflightRegistry} works
+ * within one JVM; to deduplicate across replicas, implement this over a shared store (e.g., with
+ * {@code SET key value NX PX ttl} in redis) and name the class in the {@code
+ * extproc.dedup.registry} property. Implementations need a public no-argument constructor to be
+ * loaded that way, and must be thread-safe.
+ */
+public interface InflightRegistry {
+
+  /**
+   * Claim a key for a request. This must be atomic: of two simultaneous claims, only one can
+   * succeed.
+   *
+   * @return null if the claim succeeded, otherwise the ID of the request holding the key
+   */
+  public String acquire(String key, String requestId);
+
+  /** Release a key, but only if it is held by the given request */
+  public void release(String key, String requestId);
+
+  /** Called on shutdown to release any resources */
+  public default void close() {}
+}
@@ -0,0 +1,143 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory {@link InflightRegistry}. Keys are striped by hash over independently locked
+ * segments, so claims on different keys rarely contend. Every entry has the same TTL, so each
+ * segment keeps entries in insertion (and so expiry) order and evicts expired entries from the
+ * head, which bounds the cost of expiry to the entries actually removed. A full segment fails
+ * open: the claim succeeds without being tracked, and is counted as an overflow.
+ */
+public class LocalInflightRegistry implements InflightRegistry {
+
+  public static final long DEFAULT_TTL_SECONDS = 60;
+  public static final int DEFAULT_MAX_ENTRIES = 1_000_000;
+
+  private static final class Holder {
+    final String requestId;
+    final long expiresAt;
+
+    Holder(String requestId, long expiresAt) {
+      this.requestId = requestId;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static final class Segment {
+    final LinkedHashMap<String, Holder> entries = new LinkedHashMap<String, Holder>();
+
+    /** remove expired entries from the head; call while holding the segment lock */
+    int evictExpired(long now) {
+      int evicted = 0;
+      Iterator<Map.Entry<String, Holder>> it = entries.entrySet().iterator();
+      while (it.hasNext() && it.next().getValue().expiresAt - now < 0) {
+        it.remove();
+        evicted++;
+      }
+      return evicted;
+    }
+  }
+
+  private final Segment[] segments;
+  private final int mask;
+  private final int maxEntriesPerSegment;
+  private final long ttlNanos;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder overflows = new LongAdder();
+
+  /** configured from {@code extproc.dedup.ttl.seconds} and {@code extproc.dedup.max.entries} */
+  public LocalInflightRegistry() {
+    this(
+        Long.getLong("extproc.dedup.ttl.seconds", DEFAULT_TTL_SECONDS),
+        TimeUnit.SECONDS,
+        Integer.getInteger("extproc.dedup.max.entries", DEFAULT_MAX_ENTRIES));
+  }
+
+  public LocalInflightRegistry(long ttl, TimeUnit unit, int maxEntries) {
+    int stripes = 1;
+    while (stripes < 4 * Runtime.getRuntime().availableProcessors()) {
+      stripes <<= 1;
+    }
+    this.segments = new Segment[stripes];
+    for (int i = 0; i < stripes; i++) {
+      segments[i] = new Segment();
+    }
+    this.mask = stripes - 1;
+    this.maxEntriesPerSegment = Math.max(1, maxEntries / stripes);
+    this.ttlNanos = unit.toNanos(ttl);
+  }
+
+  private Segment segmentFor(String key) {
+    final int h = key.hashCode();
+    return segments[(h ^ (h >>> 16)) & mask];
+  }
+
+  public String acquire(String key, String requestId) {
+    final Segment segment = segmentFor(key);
+    final long now = System.nanoTime();
+    synchronized (segment) {
+      evictions.add(segment.evictExpired(now));
+      final Holder holder = segment.entries.get(key);
+      if (holder != null) {
+        hits.increment();
+        return holder.requestId;
+      }
+      misses.increment();
+      if (segment.entries.size() >= maxEntriesPerSegment) {
+        overflows.increment();
+        return null;
+      }
+      segment.entries.put(key, new Holder(requestId, now + ttlNanos));
+      return null;
+    }
+  }
+
+  public void release(String key, String requestId) {
+    final Segment segment = segmentFor(key);
+    synchronized (segment) {
+      final Holder holder = segment.entries.get(key);
+      if (holder != null && holder.requestId.equals(requestId)) {
+        segment.entries.remove(key);
+      }
+    }
+  }
+
+  /** number of keys currently held */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.entries.size();
+      }
+    }
+    return size;
+  }
+
+  /** claims refused because the key was held (duplicates) */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /** claims that succeeded */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /** keys dropped because their TTL passed before they were released */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /** successful claims that could not be tracked because the registry was full */
+  public long getOverflows() {
+    return overflows.sum();
+  }
+}
@@ -4,11 +4,93 @@ import com.github.wrossmorrow.extproc.ProcessingOptions;
 import com.github.wrossmorrow.extproc.RequestContext;
 import com.github.wrossmorrow.extproc.RequestProcessor;
 import com.github.wrossmorrow.extproc.RequestProcessorHealthManager;
+import com.github.wrossmorrow.extproc.RequestStateStore;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * Writes an access log of JSON lines, one per request, once its stream ends. Logging is off the
+ * request path: each (sampled) request's entry is handed to an {@link AccessLogWriter}, which
+ * batches, formats and writes entries on its own thread, dropping (and counting) them rather than
+ * holding requests up when it falls behind.
+ *
+ * <p>Configured with properties:
+ *
+ * <ul>
+ *   <li>{@code extproc.logging.file}: the file to append to (stdout by default)
+ *   <li>{@code extproc.logging.sample}: the fraction of requests to log (1 by default)
+ *   <li>{@code extproc.logging.request.headers}, {@code extproc.logging.response.headers}: the
+ *       headers to log, comma separated
+ *   <li>{@code extproc.logging.body.bytes}: how much of each body to log (none by default)
+ *   <li>{@code extproc.logging.queue.size}: entries waiting to be written before dropping (8192)
+ * </ul>
+ */
 public class LoggingRequestProcessor implements RequestProcessor {
+
+  private final AccessLogWriter writer;
+  private final double sampleRate;
+  private final int bodyBytes;
+  private final RequestStateStore<AccessLogWriter.Entry> entries =
+      new RequestStateStore<AccessLogWriter.Entry>();
+
+  public LoggingRequestProcessor() {
+    this(
+        channelFromProperties(),
+        System.getProperty("extproc.logging.file") != null,
+        Double.parseDouble(System.getProperty("extproc.logging.sample", "1")),
+        Integer.getInteger("extproc.logging.body.bytes", 0),
+        headerNames(
+            System.getProperty(
+                "extproc.logging.request.headers",
+                "user-agent,content-type,content-length,x-forwarded-for")),
+        headerNames(
+            System.getProperty("extproc.logging.response.headers", "content-type,content-length")),
+        Integer.getInteger("extproc.logging.queue.size", 8192));
+  }
+
+  public LoggingRequestProcessor(
+      WritableByteChannel out,
+      boolean closeOut,
+      double sampleRate,
+      int bodyBytes,
+      String[] requestHeaders,
+      String[] responseHeaders,
+      int queueSize) {
+    this.writer = new AccessLogWriter(out, closeOut, requestHeaders, responseHeaders, queueSize);
+    this.sampleRate = sampleRate;
+    this.bodyBytes = bodyBytes;
+  }
+
+  private static WritableByteChannel channelFromProperties() {
+    final String file = System.getProperty("extproc.logging.file");
+    try {
+      return AccessLogWriter.open(file == null ? null : Paths.get(file));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Can not open access log " + file, e);
+    }
+  }
+
+  /** lower-cased, trimmed names from a comma-separated list */
+  static String[] headerNames(String list) {
+    final List<String> names = new ArrayList<String>();
+    for (String name : list.split(",")) {
+      if (!name.trim().isEmpty()) {
+        names.add(name.trim().toLowerCase(Locale.ROOT));
+      }
+    }
+    return names.toArray(new String[0]);
+  }
+
   public String getName() {
-    return "noop";
+    return "logging";
   }
 
   public ProcessingOptions getOptions() {
@@ -19,37 +101,102 @@ public class LoggingRequestProcessor implements RequestProcessor {
 
   public void shutdown() {
     System.out.println(this.getClass().getCanonicalName() + " shutting down");
+    try {
+      writer.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** entries written so far */
+  public long getWritten() {
+    return writer.getWritten();
+  }
+
+  /** entries dropped because the writer fell behind */
+  public long getDropped() {
+    return writer.getDropped();
   }
 
   public void processRequestHeaders(RequestContext ctx, Map<String, String> headers) {
-    for (Map.Entry<String, String> entry : headers.entrySet()) {
-      System.out.println(entry.getKey() + ": " + entry.getValue());
+    if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return;
     }
+    final AccessLogWriter.Entry entry = new AccessLogWriter.Entry();
+    entry.started = System.currentTimeMillis();
+    if (bodyBytes > 0) {
+      try {
+        entries.put(ctx, entry);
+      } catch (IllegalStateException e) {
+        // too many requests in flight to keep their bodies; log the rest without them
+      }
+    }
+    // contexts are recycled after their close hooks run, so copy what's logged out of it here
+    ctx.onClose(() -> finish(ctx, entry));
   }
 
-  public void processRequestBody(RequestContext ctx, String body) {
-    System.out.println(body);
+  private void finish(RequestContext ctx, AccessLogWriter.Entry entry) {
+    entry.requestId = ctx.getRequestId();
+    entry.method = ctx.getMethod();
+    entry.authority = ctx.getAuthority();
+    final String query = ctx.getRawQueryString();
+    entry.path = query.isEmpty() ? ctx.getPath() : ctx.getPath() + "?" + query;
+    entry.requestHeaders = values(writer.getRequestHeaders(), ctx.getRequestHeaders());
+    entry.responseHeaders = values(writer.getResponseHeaders(), ctx.getResponseHeaders());
+    entry.status = ctx.getStatus();
+    entry.elapsedNanos = ctx.getElapsedNanos();
+    entry.processingNanos = ctx.getDurationNanos();
+    entry.requestBodyBytes = ctx.getRequestBodyBytes();
+    entry.responseBodyBytes = ctx.getResponseBodyBytes();
+    entry.deadlineExceeded = ctx.isDeadlineExceeded();
+    writer.offer(entry);
   }
 
-  public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {
-    for (Map.Entry<String, String> entry : trailers.entrySet()) {
-      System.out.println(entry.getKey() + ": " + entry.getValue());
+  private static String[] values(String[] names, Map<String, String> headers) {
+    if (names.length == 0 || headers == null || headers.isEmpty()) {
+      return null;
+    }
+    final String[] values = new String[names.length];
+    for (int i = 0; i < names.length; i++) {
+      values[i] = headers.get(names[i]);
     }
+    return values;
   }
 
-  public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {
-    for (Map.Entry<String, String> entry : headers.entrySet()) {
-      System.out.println(entry.getKey() + ": " + entry.getValue());
+  public void processRequestBody(RequestContext ctx, String body) {}
+
+  public void processRequestBody(RequestContext ctx, ByteString body) {
+    final AccessLogWriter.Entry entry = bodyBytes > 0 ? entries.get(ctx) : null;
+    if (entry != null && entry.requestBodyLength < bodyBytes) {
+      if (entry.requestBody == null) {
+        entry.requestBody = new byte[bodyBytes];
+      }
+      entry.requestBodyLength += copy(body, entry.requestBody, entry.requestBodyLength);
     }
   }
 
-  public void processResponseBody(RequestContext ctx, String body) {
-    System.out.println(body);
-  }
+  public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {}
+
+  public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {}
+
+  public void processResponseBody(RequestContext ctx, String body) {}
 
-  public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {
-    for (Map.Entry<String, String> entry : trailers.entrySet()) {
-      System.out.println(entry.getKey() + ": " + entry.getValue());
+  public void processResponseBody(RequestContext ctx, ByteString body) {
+    final AccessLogWriter.Entry entry = bodyBytes > 0 ? entries.get(ctx) : null;
+    if (entry != null && entry.responseBodyLength < bodyBytes) {
+      if (entry.responseBody == null) {
+        entry.responseBody = new byte[bodyBytes];
+      }
+      entry.responseBodyLength += copy(body, entry.responseBody, entry.responseBodyLength);
     }
   }
+
+  public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {}
+
+  /** copy as much of a chunk as fits after {@code offset}, returning how much that was */
+  private static int copy(ByteString chunk, byte[] target, int offset) {
+    final int length = Math.min(chunk.size(), target.length - offset);
+    chunk.copyTo(target, 0, offset, length);
+    return length;
+  }
 }
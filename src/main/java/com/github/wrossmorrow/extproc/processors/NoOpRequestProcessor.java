@@ -4,6 +4,7 @@ import com.github.wrossmorrow.extproc.ProcessingOptions;
 import com.github.wrossmorrow.extproc.RequestContext;
 import com.github.wrossmorrow.extproc.RequestProcessor;
 import com.github.wrossmorrow.extproc.RequestProcessorHealthManager;
+import com.google.protobuf.ByteString;
 import java.util.Map;
 
 public class NoOpRequestProcessor implements RequestProcessor {
@@ -11,8 +12,11 @@ public class NoOpRequestProcessor implements RequestProcessor {
     return "noop";
   }
 
+  /** does nothing with bodies or trailers, so asks envoy not to send them */
   public ProcessingOptions getOptions() {
-    return new ProcessingOptions();
+    ProcessingOptions options = new ProcessingOptions();
+    options.processingMode = ProcessingOptions.HEADERS_ONLY;
+    return options;
   }
 
   public void setHealthManager(RequestProcessorHealthManager health) {}
@@ -25,11 +29,15 @@ public class NoOpRequestProcessor implements RequestProcessor {
 
   public void processRequestBody(RequestContext ctx, String body) {}
 
+  public void processRequestBody(RequestContext ctx, ByteString body) {}
+
   public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {}
 
   public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {}
 
   public void processResponseBody(RequestContext ctx, String body) {}
 
+  public void processResponseBody(RequestContext ctx, ByteString body) {}
+
   public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {}
 }
@@ -0,0 +1,259 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import com.github.wrossmorrow.extproc.ProcessingOptions;
+import com.github.wrossmorrow.extproc.RequestContext;
+import com.github.wrossmorrow.extproc.RequestProcessor;
+import com.github.wrossmorrow.extproc.RequestProcessorHealthManager;
+import com.github.wrossmorrow.extproc.metrics.MetricsRegistry;
+import com.github.wrossmorrow.extproc.metrics.ProcessorMetrics;
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Rejects requests over a per-key rate with a 429, before they reach the upstream. Requests are
+ * keyed by the attributes listed in {@code extproc.ratelimit.key} (comma separated, {@code
+ * client-ip} by default):
+ *
+ * <ul>
+ *   <li>{@code header:<name>}: a request header's value
+ *   <li>{@code authority}: the request's authority
+ *   <li>{@code path} or {@code path:<n>}: the first {@code n} (1 by default) segments of the path
+ *   <li>{@code client-ip}: the client's address from {@code x-forwarded-for}, counting {@code
+ *       extproc.ratelimit.xff.trusted.hops} (0) proxies back from its last entry
+ * </ul>
+ *
+ * <p>Envoy only appends the downstream address to {@code x-forwarded-for} when its connection
+ * manager sets {@code use_remote_address: true}, with {@code xff_num_trusted_hops} for any proxies
+ * in front of it. Otherwise (as in {@code examples/envoy.yaml}) the header is whatever the client
+ * sent, if anything, so {@code client-ip} keys can be spoofed.
+ *
+ * <p>Requests missing any key attribute aren't limited, only counted as unkeyed, unless {@code
+ * extproc.ratelimit.unkeyed} is {@code shared}, which limits all of them together as one key.
+ *
+ * <p>Each key may make {@code extproc.ratelimit.rate} (10) requests a second on average, in bursts
+ * of up to {@code extproc.ratelimit.burst} (the rate). See {@link RateLimiter} for how keys are
+ * tracked and forgotten ({@code extproc.ratelimit.idle.seconds}, 60) and bounded ({@code
+ * extproc.ratelimit.max.keys}, a million).
+ */
+public class RateLimitRequestProcessor implements RequestProcessor {
+
+  private final RateLimiter limiter;
+  private final List<Function<RequestContext, String>> key;
+  private final boolean shareUnkeyed;
+  private final LongAdder unkeyed = new LongAdder();
+
+  public RateLimitRequestProcessor() {
+    this(
+        limiterFromProperties(),
+        keyFromSpec(
+            System.getProperty("extproc.ratelimit.key", "client-ip"),
+            Integer.getInteger("extproc.ratelimit.xff.trusted.hops", 0)),
+        unkeyedFromProperties());
+  }
+
+  public RateLimitRequestProcessor(
+      RateLimiter limiter, List<Function<RequestContext, String>> key) {
+    this(limiter, key, false);
+  }
+
+  /** with {@code shareUnkeyed}, requests missing key attributes are limited as one key */
+  public RateLimitRequestProcessor(
+      RateLimiter limiter, List<Function<RequestContext, String>> key, boolean shareUnkeyed) {
+    this.limiter = limiter;
+    this.key = key;
+    this.shareUnkeyed = shareUnkeyed;
+    final ProcessorMetrics metrics = MetricsRegistry.getDefault().forProcessor(getName());
+    final String decisions = "extproc_ratelimit_requests_total";
+    final String help = "Requests checked against rate limits, by result";
+    metrics.addCounter(decisions, "result=\"allowed\"", help, limiter::getAllowed);
+    metrics.addCounter(decisions, "result=\"rejected\"", help, limiter::getRejected);
+    metrics.addCounter(decisions, "result=\"unkeyed\"", help, this::getUnkeyed);
+    metrics.addCounter(
+        "extproc_ratelimit_overflows_total",
+        null,
+        "Requests allowed untracked because there were too many keys",
+        limiter::getOverflows);
+    metrics.addCounter(
+        "extproc_ratelimit_evictions_total", null, "Idle keys forgotten", limiter::getEvictions);
+    metrics.addGauge("extproc_ratelimit_keys", null, "Keys tracked", limiter::size);
+  }
+
+  private static boolean unkeyedFromProperties() {
+    final String unkeyed = System.getProperty("extproc.ratelimit.unkeyed", "allow");
+    switch (unkeyed) {
+      case "allow":
+        return false;
+      case "shared":
+        return true;
+      default:
+        throw new IllegalArgumentException("Unknown extproc.ratelimit.unkeyed " + unkeyed);
+    }
+  }
+
+  private static RateLimiter limiterFromProperties() {
+    final double rate = Double.parseDouble(System.getProperty("extproc.ratelimit.rate", "10"));
+    return new RateLimiter(
+        rate,
+        Integer.getInteger("extproc.ratelimit.burst", (int) Math.max(1, Math.ceil(rate))),
+        Long.getLong("extproc.ratelimit.idle.seconds", 60L),
+        TimeUnit.SECONDS,
+        Integer.getInteger("extproc.ratelimit.max.keys", 1_000_000));
+  }
+
+  /** the attributes a key spec (see above) names, each taken from a request */
+  public static List<Function<RequestContext, String>> keyFromSpec(String spec, int trustedHops) {
+    final List<Function<RequestContext, String>> key =
+        new ArrayList<Function<RequestContext, String>>();
+    for (String part : spec.split(",")) {
+      final String attribute = part.trim();
+      if (attribute.isEmpty()) {
+        continue;
+      }
+      final int colon = attribute.indexOf(':');
+      final String kind = colon < 0 ? attribute : attribute.substring(0, colon);
+      final String arg = colon < 0 ? null : attribute.substring(colon + 1).trim();
+      switch (kind) {
+        case "header":
+          if (arg == null || arg.isEmpty()) {
+            throw new IllegalArgumentException("Rate limit key " + attribute + " names no header");
+          }
+          final String name = arg.toLowerCase(Locale.ROOT);
+          key.add(ctx -> ctx.getRequestHeader(name));
+          break;
+        case "authority":
+          key.add(RequestContext::getAuthority);
+          break;
+        case "path":
+          final int segments = arg == null ? 1 : Integer.parseInt(arg);
+          key.add(ctx -> pathPrefix(ctx.getPath(), segments));
+          break;
+        case "client-ip":
+          key.add(ctx -> clientAddress(ctx.getRequestHeader("x-forwarded-for"), trustedHops));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown rate limit key attribute " + attribute);
+      }
+    }
+    if (key.isEmpty()) {
+      throw new IllegalArgumentException("Rate limit key names no attributes: " + spec);
+    }
+    return Collections.unmodifiableList(key);
+  }
+
+  /** the path up to (not including) the slash after its first {@code segments} segments */
+  static String pathPrefix(String path, int segments) {
+    if (path == null) {
+      return null;
+    }
+    int end = 0;
+    for (int i = 0; i < segments; i++) {
+      end = path.indexOf('/', end + 1);
+      if (end < 0) {
+        return path;
+      }
+    }
+    return path.substring(0, end);
+  }
+
+  /** the entry {@code trustedHops} back from the last in an x-forwarded-for list */
+  static String clientAddress(String forwardedFor, int trustedHops) {
+    if (forwardedFor == null) {
+      return null;
+    }
+    int end = forwardedFor.length();
+    for (int hop = 0; ; hop++) {
+      final int start = forwardedFor.lastIndexOf(',', end - 1) + 1;
+      if (hop == trustedHops || start == 0) {
+        return forwardedFor.substring(start, end).trim();
+      }
+      end = start - 1;
+    }
+  }
+
+  public String getName() {
+    return "ratelimit";
+  }
+
+  /** only looks at request headers, so asks envoy not to send bodies or trailers */
+  public ProcessingOptions getOptions() {
+    ProcessingOptions options = new ProcessingOptions();
+    options.processingMode = ProcessingOptions.HEADERS_ONLY;
+    return options;
+  }
+
+  public void setHealthManager(RequestProcessorHealthManager health) {}
+
+  public void shutdown() {
+    System.out.println(this.getClass().getCanonicalName() + " shutting down");
+    limiter.close();
+  }
+
+  public RateLimiter getLimiter() {
+    return limiter;
+  }
+
+  /** requests missing a key attribute */
+  public long getUnkeyed() {
+    return unkeyed.sum();
+  }
+
+  public void processRequestHeaders(RequestContext ctx, Map<String, String> headers) {
+    String key = keyOf(ctx);
+    if (key == null) {
+      unkeyed.increment();
+      if (!shareUnkeyed) {
+        return;
+      }
+      key = "";
+    }
+    final long wait = limiter.acquire(key);
+    if (wait > 0) {
+      final long seconds = TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1);
+      ctx.cancelRequest(
+          429,
+          Collections.singletonMap("retry-after", Long.toString(seconds)),
+          "{\"message\":\"Too many requests\"}");
+    }
+  }
+
+  /** the request's key, or null if it's missing any attribute */
+  String keyOf(RequestContext ctx) {
+    if (key.size() == 1) {
+      final String value = key.get(0).apply(ctx);
+      return value == null || value.isEmpty() ? null : value;
+    }
+    final StringBuilder value = new StringBuilder(64);
+    for (int i = 0; i < key.size(); i++) {
+      final String part = key.get(i).apply(ctx);
+      if (part == null || part.isEmpty()) {
+        return null;
+      }
+      if (i > 0) {
+        value.append('\n');
+      }
+      value.append(part);
+    }
+    return value.toString();
+  }
+
+  public void processRequestBody(RequestContext ctx, String body) {}
+
+  public void processRequestBody(RequestContext ctx, ByteString body) {}
+
+  public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {}
+
+  public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {}
+
+  public void processResponseBody(RequestContext ctx, String body) {}
+
+  public void processResponseBody(RequestContext ctx, ByteString body) {}
+
+  public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {}
+}
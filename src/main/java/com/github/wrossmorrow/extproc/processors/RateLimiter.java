@@ -0,0 +1,145 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Per-key rate limits without locks. Each key's token bucket is kept as a single "theoretical
+ * arrival time" (the generic cell rate algorithm): the time at which the bucket would be full
+ * again. A request is allowed if that time isn't more than the burst ahead of now, and takes a
+ * token by advancing it one emission interval with a CAS. So there's no refill bookkeeping, and
+ * no lock anywhere: lookups are {@link ConcurrentHashMap} reads, and requests on different keys
+ * never touch the same memory.
+ *
+ * <p>A key whose bucket has been full for the idle time is indistinguishable from a new key, so a
+ * background thread evicts such keys, keeping memory proportional to the keys actually in use.
+ * Past {@code maxKeys}, new keys fail open (are allowed without being tracked) and are counted as
+ * overflows.
+ */
+public class RateLimiter {
+
+  private final ConcurrentHashMap<String, AtomicLong> buckets;
+  private final long intervalNanos; // between tokens
+  private final long toleranceNanos; // how far ahead of now a bucket may be and still allow
+  private final long idleNanos;
+  private final int maxKeys;
+  private final Thread sweeper;
+  private volatile boolean closed;
+
+  private final LongAdder allowed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder overflows = new LongAdder();
+
+  /**
+   * allow {@code rate} requests a second per key on average, in bursts of up to {@code burst},
+   * forgetting keys idle for {@code idle}
+   */
+  public RateLimiter(double rate, int burst, long idle, TimeUnit unit, int maxKeys) {
+    if (rate <= 0 || burst < 1) {
+      throw new IllegalArgumentException("RateLimiter needs a positive rate and burst");
+    }
+    this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+    this.toleranceNanos = intervalNanos * (burst - 1);
+    this.idleNanos = Math.max(unit.toNanos(idle), TimeUnit.MILLISECONDS.toNanos(1));
+    this.maxKeys = maxKeys;
+    this.buckets = new ConcurrentHashMap<String, AtomicLong>(1024, 0.75f, 64);
+    sweeper = new Thread(this::sweep, "extproc-ratelimit-sweeper");
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  /** take a token for a key: 0 if allowed, otherwise the nanoseconds until one is available */
+  public long acquire(String key) {
+    final long now = System.nanoTime();
+    AtomicLong bucket = buckets.get(key);
+    if (bucket == null) {
+      if (buckets.size() >= maxKeys) {
+        overflows.increment();
+        allowed.increment();
+        return 0;
+      }
+      final AtomicLong created = new AtomicLong(now);
+      bucket = buckets.putIfAbsent(key, created);
+      if (bucket == null) {
+        bucket = created;
+      }
+    }
+    while (true) {
+      final long tat = bucket.get();
+      final long start = tat - now < 0 ? now : tat; // a bucket can't be fuller than full
+      final long ahead = start - now;
+      if (ahead > toleranceNanos) {
+        rejected.increment();
+        return ahead - toleranceNanos;
+      }
+      if (bucket.compareAndSet(tat, start + intervalNanos)) {
+        allowed.increment();
+        return 0;
+      }
+      // another request for the key took a token first; look again
+    }
+  }
+
+  /**
+   * drop keys that have been full for the idle time; a request racing with its key's eviction may
+   * take a token from the dropped bucket, which is at worst one extra burst
+   */
+  public int evictIdle() {
+    final long now = System.nanoTime();
+    int evicted = 0;
+    final Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<String, AtomicLong> entry = it.next();
+      final AtomicLong bucket = entry.getValue();
+      if (now - bucket.get() > idleNanos && buckets.remove(entry.getKey(), bucket)) {
+        evicted++;
+      }
+    }
+    evictions.add(evicted);
+    return evicted;
+  }
+
+  private void sweep() {
+    while (!closed) {
+      LockSupport.parkNanos(idleNanos);
+      if (!closed) {
+        evictIdle();
+      }
+    }
+  }
+
+  /** stop evicting idle keys */
+  public void close() {
+    closed = true;
+    LockSupport.unpark(sweeper);
+  }
+
+  /** number of keys tracked */
+  public int size() {
+    return buckets.size();
+  }
+
+  public long getAllowed() {
+    return allowed.sum();
+  }
+
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  /** keys dropped after being idle */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /** requests allowed without being tracked because there were already maxKeys keys */
+  public long getOverflows() {
+    return overflows.sum();
+  }
+}
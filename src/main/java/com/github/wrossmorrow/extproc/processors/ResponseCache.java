@@ -0,0 +1,276 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import com.google.protobuf.ByteString;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory cache of responses, bounded by bytes. Keys are striped by hash over independently
+ * locked segments, each a segmented LRU: new entries go into a probationary LRU and are promoted
+ * to a protected LRU (of at most 80% of the segment) when they're hit again, so a burst of
+ * one-off responses only churns probation and can't flush out the entries that are actually
+ * reused. Evictions take the least recent probationary entry first. Entries expire after their
+ * own TTL, checked when they're read.
+ *
+ * <p>Bodies can be kept off the heap, in direct buffers, so a large cache doesn't add to garbage
+ * collection work; each hit then copies its body back onto the heap.
+ */
+public class ResponseCache {
+
+  /** bookkeeping counted against the cache's size for each entry, besides headers and body */
+  static final int ENTRY_OVERHEAD_BYTES = 128;
+
+  /** a cached response */
+  public static final class CachedResponse {
+    final int status;
+    final Map<String, String> headers;
+    private final ByteString body;
+    private final ByteBuffer offHeapBody;
+    final long storedMillis;
+    final long expiresAt; // nanoTime
+    final int weight;
+
+    public CachedResponse(
+        int status, Map<String, String> headers, ByteString body, long ttlNanos, boolean offHeap) {
+      this.status = status;
+      this.headers = Collections.unmodifiableMap(headers);
+      if (offHeap) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(body.size());
+        body.copyTo(buffer);
+        ((Buffer) buffer).flip();
+        this.body = null;
+        this.offHeapBody = buffer.asReadOnlyBuffer();
+      } else {
+        this.body = body;
+        this.offHeapBody = null;
+      }
+      this.storedMillis = System.currentTimeMillis();
+      this.expiresAt = System.nanoTime() + ttlNanos;
+      int weight = ENTRY_OVERHEAD_BYTES + body.size();
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        weight += 2 * (header.getKey().length() + header.getValue().length());
+      }
+      this.weight = weight;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public Map<String, String> getHeaders() {
+      return headers;
+    }
+
+    /** the body; a copy, if it's kept off the heap */
+    public ByteString getBody() {
+      return body != null ? body : ByteString.copyFrom(offHeapBody.duplicate());
+    }
+
+    /** seconds since the response was cached, for an {@code age} header */
+    public long getAgeSeconds() {
+      return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - storedMillis);
+    }
+  }
+
+  private static final class Segment {
+    final LinkedHashMap<String, CachedResponse> probation =
+        new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    final LinkedHashMap<String, CachedResponse> protect =
+        new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    long probationBytes;
+    long protectedBytes;
+  }
+
+  private final Segment[] segments;
+  private final int mask;
+  private final long maxSegmentBytes;
+  private final long maxProtectedBytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder inserts = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  public ResponseCache(long maxBytes) {
+    this(maxBytes, 0);
+  }
+
+  /**
+   * a cache of up to {@code maxBytes}, over no more segments than leave room in each for two
+   * bodies of {@code maxEntryBytes} (and their headers), so however many cores there are the
+   * largest bodies aren't refused
+   */
+  public ResponseCache(long maxBytes, int maxEntryBytes) {
+    int stripes = 1;
+    while (stripes < 4 * Runtime.getRuntime().availableProcessors()
+        && maxBytes / (stripes << 1) >= 2L * maxEntryBytes) {
+      stripes <<= 1;
+    }
+    this.segments = new Segment[stripes];
+    for (int i = 0; i < stripes; i++) {
+      segments[i] = new Segment();
+    }
+    this.mask = stripes - 1;
+    this.maxSegmentBytes = Math.max(1, maxBytes / stripes);
+    this.maxProtectedBytes = maxSegmentBytes * 4 / 5;
+  }
+
+  private Segment segmentFor(String key) {
+    final int h = key.hashCode();
+    return segments[(h ^ (h >>> 16)) & mask];
+  }
+
+  /** the response cached for a key, or null if there is none (or it expired) */
+  public CachedResponse get(String key) {
+    final Segment segment = segmentFor(key);
+    final long now = System.nanoTime();
+    synchronized (segment) {
+      CachedResponse response = segment.protect.get(key);
+      if (response != null) {
+        if (response.expiresAt - now <= 0) {
+          segment.protect.remove(key);
+          segment.protectedBytes -= response.weight;
+          expirations.increment();
+          misses.increment();
+          return null;
+        }
+        hits.increment();
+        return response;
+      }
+      response = segment.probation.remove(key);
+      if (response == null) {
+        misses.increment();
+        return null;
+      }
+      segment.probationBytes -= response.weight;
+      if (response.expiresAt - now <= 0) {
+        expirations.increment();
+        misses.increment();
+        return null;
+      }
+      // hit a second time: promote, demoting the least recent protected entries to make room
+      segment.protect.put(key, response);
+      segment.protectedBytes += response.weight;
+      final Iterator<Map.Entry<String, CachedResponse>> it =
+          segment.protect.entrySet().iterator();
+      while (segment.protectedBytes > maxProtectedBytes && it.hasNext()) {
+        final Map.Entry<String, CachedResponse> eldest = it.next();
+        if (eldest.getValue() == response) {
+          break;
+        }
+        it.remove();
+        segment.protectedBytes -= eldest.getValue().weight;
+        segment.probation.put(eldest.getKey(), eldest.getValue());
+        segment.probationBytes += eldest.getValue().weight;
+      }
+      hits.increment();
+      return response;
+    }
+  }
+
+  /** cache a response, replacing any for the key; responses bigger than a segment are refused */
+  public void put(String key, CachedResponse response) {
+    if (response.weight > maxSegmentBytes) {
+      rejections.increment();
+      return;
+    }
+    final Segment segment = segmentFor(key);
+    synchronized (segment) {
+      CachedResponse previous = segment.protect.remove(key);
+      if (previous != null) {
+        segment.protectedBytes -= previous.weight;
+      } else if ((previous = segment.probation.remove(key)) != null) {
+        segment.probationBytes -= previous.weight;
+      }
+      segment.probation.put(key, response);
+      segment.probationBytes += response.weight;
+      inserts.increment();
+      evict(segment, segment.probation, true, response);
+      evict(segment, segment.protect, false, response);
+    }
+  }
+
+  /** drop the least recent entries of an LRU, short of {@code keep}, until the segment fits */
+  private void evict(
+      Segment segment,
+      LinkedHashMap<String, CachedResponse> lru,
+      boolean probationary,
+      CachedResponse keep) {
+    final Iterator<CachedResponse> it = lru.values().iterator();
+    while (segment.probationBytes + segment.protectedBytes > maxSegmentBytes && it.hasNext()) {
+      final CachedResponse eldest = it.next();
+      if (eldest == keep) {
+        break;
+      }
+      it.remove();
+      if (probationary) {
+        segment.probationBytes -= eldest.weight;
+      } else {
+        segment.protectedBytes -= eldest.weight;
+      }
+      evictions.increment();
+    }
+  }
+
+  /** the biggest response (body, headers and bookkeeping) the cache takes */
+  public long getMaxEntryWeight() {
+    return maxSegmentBytes;
+  }
+
+  /** number of responses cached */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.probation.size() + segment.protect.size();
+      }
+    }
+    return size;
+  }
+
+  /** bytes counted against the cache's size */
+  public long getBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        bytes += segment.probationBytes + segment.protectedBytes;
+      }
+    }
+    return bytes;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getInserts() {
+    return inserts.sum();
+  }
+
+  /** responses dropped to make room for others */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /** responses dropped because their TTL passed */
+  public long getExpirations() {
+    return expirations.sum();
+  }
+
+  /** responses too big to cache */
+  public long getRejections() {
+    return rejections.sum();
+  }
+}
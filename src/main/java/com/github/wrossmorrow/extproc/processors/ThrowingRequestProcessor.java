@@ -4,6 +4,7 @@ import com.github.wrossmorrow.extproc.ProcessingOptions;
 import com.github.wrossmorrow.extproc.RequestContext;
 import com.github.wrossmorrow.extproc.RequestProcessor;
 import com.github.wrossmorrow.extproc.RequestProcessorHealthManager;
+import com.google.protobuf.ByteString;
 import java.util.Map;
 
 public class ThrowingRequestProcessor implements RequestProcessor {
@@ -30,11 +31,15 @@ public class ThrowingRequestProcessor implements RequestProcessor {
 
   public void processRequestBody(RequestContext ctx, String body) {}
 
+  public void processRequestBody(RequestContext ctx, ByteString body) {}
+
   public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {}
 
   public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {}
 
   public void processResponseBody(RequestContext ctx, String body) {}
 
+  public void processResponseBody(RequestContext ctx, ByteString body) {}
+
   public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {}
 }
@@ -4,7 +4,7 @@ import com.github.wrossmorrow.extproc.ProcessingOptions;
 import com.github.wrossmorrow.extproc.RequestContext;
 import com.github.wrossmorrow.extproc.RequestProcessor;
 import com.github.wrossmorrow.extproc.RequestProcessorHealthManager;
-import java.time.Duration;
+import com.google.protobuf.ByteString;
 import java.time.Instant;
 import java.util.Map;
 
@@ -14,8 +14,11 @@ public class TimerRequestProcessor implements RequestProcessor {
     return "timer";
   }
 
+  /** only needs headers; the response headers mark the end of upstream processing */
   public ProcessingOptions getOptions() {
-    return new ProcessingOptions();
+    ProcessingOptions options = new ProcessingOptions();
+    options.processingMode = ProcessingOptions.HEADERS_ONLY;
+    return options;
   }
 
   public void setHealthManager(RequestProcessorHealthManager health) {}
@@ -31,28 +34,26 @@ public class TimerRequestProcessor implements RequestProcessor {
 
   public void processRequestBody(RequestContext ctx, String body) {}
 
+  public void processRequestBody(RequestContext ctx, ByteString body) {}
+
   public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {}
 
   public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {
-    if (ctx.streamComplete()) {
-      processComplete(ctx);
-    }
+    // the response body is skipped (or ignored, if envoy doesn't allow the mode override)
+    processComplete(ctx);
   }
 
-  public void processResponseBody(RequestContext ctx, String body) {
-    if (ctx.streamComplete()) {
-      processComplete(ctx);
-    }
-  }
+  public void processResponseBody(RequestContext ctx, String body) {}
+
+  public void processResponseBody(RequestContext ctx, ByteString body) {}
 
   public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {}
 
+  /** wall clock timestamps for the headers, but the duration from the monotonic clock */
   protected void processComplete(RequestContext ctx) {
-    final Instant started = ctx.getStarted();
-    final Instant finished = Instant.now();
-    final Duration duration = Duration.between(started, finished);
-    ctx.addHeader("x-extproc-started", started.toString());
-    ctx.addHeader("x-extproc-finished", finished.toString());
-    ctx.addHeader("x-extproc-upstream-duration-ns", String.valueOf(duration.toNanos()));
+    final long elapsed = ctx.getElapsedNanos();
+    ctx.addHeader("x-extproc-started", ctx.getStarted().toString());
+    ctx.addHeader("x-extproc-finished", Instant.now().toString());
+    ctx.addHeader("x-extproc-upstream-duration-ns", String.valueOf(elapsed));
   }
 }
@@ -4,6 +4,7 @@ import com.github.wrossmorrow.extproc.ProcessingOptions;
 import com.github.wrossmorrow.extproc.RequestContext;
 import com.github.wrossmorrow.extproc.RequestProcessor;
 import com.github.wrossmorrow.extproc.RequestProcessorHealthManager;
+import com.google.protobuf.ByteString;
 import java.util.Map;
 
 public class TrivialRequestProcessor implements RequestProcessor {
@@ -28,6 +29,8 @@ public class TrivialRequestProcessor implements RequestProcessor {
 
   public void processRequestBody(RequestContext ctx, String body) {}
 
+  public void processRequestBody(RequestContext ctx, ByteString body) {}
+
   public void processRequestTrailers(RequestContext ctx, Map<String, String> trailers) {}
 
   public void processResponseHeaders(RequestContext ctx, Map<String, String> headers) {
@@ -38,5 +41,9 @@ public class TrivialRequestProcessor implements RequestProcessor {
     ctx.addHeader("x-extproc-response-seen", "true");
   }
 
+  public void processResponseBody(RequestContext ctx, ByteString body) {
+    ctx.addHeader("x-extproc-response-seen", "true");
+  }
+
   public void processResponseTrailers(RequestContext ctx, Map<String, String> trailers) {}
 }
@@ -0,0 +1,37 @@
+package com.github.wrossmorrow.extproc.recording;
+
+/**
+ * The layout of recording files. A file starts with a header:
+ *
+ * <pre>
+ *   int  magic ("XPRC")
+ *   int  version (1)
+ *   long wall clock time the recorder started, in epoch milliseconds
+ * </pre>
+ *
+ * followed by records, each prefixed with its length (excluding the prefix):
+ *
+ * <pre>
+ *   int  length
+ *   byte kind (MESSAGE or END)
+ *   long stream id, unique within a recorder
+ *   long nanoseconds since the recorder started
+ *   ...  a serialized ProcessingRequest, for MESSAGE records
+ * </pre>
+ *
+ * Files are created at full size and are zero-filled, so a length of zero (or too little room left
+ * for a length) ends the file. Numbers are big-endian.
+ */
+final class RecordFormat {
+
+  static final int MAGIC = 0x58505243;
+  static final int VERSION = 1;
+  static final int FILE_HEADER_BYTES = 16;
+  static final int RECORD_HEADER_BYTES = 1 + 8 + 8; // after the length
+  static final String SUFFIX = ".rec";
+
+  static final byte MESSAGE = 1;
+  static final byte END = 2;
+
+  private RecordFormat() {}
+}
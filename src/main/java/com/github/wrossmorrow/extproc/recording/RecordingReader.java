@@ -0,0 +1,111 @@
+package com.github.wrossmorrow.extproc.recording;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import com.google.protobuf.CodedInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Reads the records of recording files (see {@link RecordFormat}) in order, one file after
+ * another. Directories are read as all the recording files in them, in name order, which is the
+ * order a recorder wrote them in.
+ */
+public class RecordingReader {
+
+  /** a recorded message, or the end of a stream */
+  public static final class Record {
+    public final long recorder; // when the recorder started, in epoch millis, to tell runs apart
+    public final long stream; // unique within a recorder
+    public final long offsetNanos; // since the recorder started
+    public final ProcessingRequest request; // null for the end of a stream
+
+    Record(long recorder, long stream, long offsetNanos, ProcessingRequest request) {
+      this.recorder = recorder;
+      this.stream = stream;
+      this.offsetNanos = offsetNanos;
+      this.request = request;
+    }
+
+    public boolean isEnd() {
+      return request == null;
+    }
+  }
+
+  private final Iterator<Path> files;
+  private MappedByteBuffer buffer;
+  private long recorder;
+
+  public RecordingReader(List<Path> paths) throws IOException {
+    files = expand(paths).iterator();
+  }
+
+  /** the recording files among some paths, with directories expanded */
+  public static List<Path> expand(List<Path> paths) throws IOException {
+    final List<Path> files = new ArrayList<Path>();
+    for (Path path : paths) {
+      if (Files.isDirectory(path)) {
+        final List<Path> found = new ArrayList<Path>();
+        try (Stream<Path> listed = Files.list(path)) {
+          listed.filter(p -> p.toString().endsWith(RecordFormat.SUFFIX)).forEach(found::add);
+        }
+        Collections.sort(found);
+        files.addAll(found);
+      } else {
+        files.add(path);
+      }
+    }
+    return files;
+  }
+
+  /** the next record, or null after the last */
+  public Record next() throws IOException {
+    while (true) {
+      if (buffer == null || buffer.remaining() < 4 || buffer.getInt(buffer.position()) == 0) {
+        if (!files.hasNext()) {
+          return null;
+        }
+        open(files.next());
+        continue;
+      }
+      final int length = buffer.getInt();
+      if (length < RecordFormat.RECORD_HEADER_BYTES || length > buffer.remaining()) {
+        throw new IOException("Corrupt recording: record of " + length + " bytes");
+      }
+      final int end = buffer.position() + length;
+      final byte kind = buffer.get();
+      final long stream = buffer.getLong();
+      final long offset = buffer.getLong();
+      ProcessingRequest request = null;
+      if (kind == RecordFormat.MESSAGE) {
+        final int limit = buffer.limit();
+        ((Buffer) buffer).limit(end);
+        request = ProcessingRequest.parseFrom(CodedInputStream.newInstance(buffer.slice()));
+        ((Buffer) buffer).limit(limit);
+      }
+      ((Buffer) buffer).position(end);
+      return new Record(recorder, stream, offset, request);
+    }
+  }
+
+  private void open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.remaining() < RecordFormat.FILE_HEADER_BYTES
+        || buffer.getInt() != RecordFormat.MAGIC
+        || buffer.getInt() != RecordFormat.VERSION) {
+      throw new IOException(file + " is not a recording");
+    }
+    recorder = buffer.getLong();
+  }
+}
@@ -0,0 +1,184 @@
+package com.github.wrossmorrow.extproc.recording;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
+import com.github.wrossmorrow.extproc.AsyncRequestProcessor;
+import com.github.wrossmorrow.extproc.ExternalProcessor;
+import com.github.wrossmorrow.extproc.ExternalProcessorServer;
+import com.github.wrossmorrow.extproc.RequestProcessor;
+import com.github.wrossmorrow.extproc.metrics.LatencyHistogram;
+import com.github.wrossmorrow.extproc.metrics.MetricsRegistry;
+import com.github.wrossmorrow.extproc.metrics.ProcessorMetrics;
+import io.grpc.stub.StreamObserver;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays recorded streams (see {@link StreamRecorder}) into a processor, straight into an {@link
+ * ExternalProcessor} with no gRPC in between, at the recorded pace or faster, then reports the
+ * processor's phase latencies. Each stream is handled on one of several lanes (threads), so its
+ * messages arrive in order while different streams are processed concurrently, as they would be in
+ * a server.
+ *
+ * <pre>
+ *   java -Dextproc.class=... -Dreplay.speed=2 -cp extproc.jar \
+ *       com.github.wrossmorrow.extproc.recording.Replay recordings/
+ * </pre>
+ *
+ * <p>{@code replay.speed} scales the recorded pace (1 by default; 0 replays as fast as possible)
+ * and {@code replay.threads} sets the number of lanes (the number of processors by default). When
+ * {@code extproc.class} names several routed processors, {@code replay.route} picks the one to
+ * replay into (the first by default).
+ */
+public class Replay {
+
+  private static final LongAdder responses = new LongAdder();
+  private static final LongAdder immediate = new LongAdder();
+  private static final LongAdder errors = new LongAdder();
+
+  private static final StreamObserver<ProcessingResponse> COUNTING =
+      new StreamObserver<ProcessingResponse>() {
+        public void onNext(ProcessingResponse response) {
+          responses.increment();
+          if (response.hasImmediateResponse()) {
+            immediate.increment();
+          }
+        }
+
+        public void onError(Throwable t) {
+          errors.increment();
+        }
+
+        public void onCompleted() {}
+      };
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println("usage: Replay <recording file or directory>...");
+      System.exit(2);
+    }
+    final double speed = Double.parseDouble(System.getProperty("replay.speed", "1"));
+    final int threads =
+        Integer.getInteger("replay.threads", Runtime.getRuntime().availableProcessors());
+    final List<Path> paths = new ArrayList<Path>();
+    for (String arg : args) {
+      paths.add(Paths.get(arg));
+    }
+
+    final Object processor =
+        ExternalProcessorServer.processorFromProperties(System.getProperty("replay.route"));
+    final String name = ExternalProcessorServer.nameOf(processor);
+    final ExternalProcessor service =
+        processor instanceof AsyncRequestProcessor
+            ? new ExternalProcessor((AsyncRequestProcessor) processor, null)
+            : new ExternalProcessor((RequestProcessor) processor, null);
+
+    final ExecutorService[] lanes = new ExecutorService[Math.max(1, threads)];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = Executors.newSingleThreadExecutor();
+    }
+    final Map<String, StreamObserver<ProcessingRequest>> streams =
+        new HashMap<String, StreamObserver<ProcessingRequest>>();
+    long streamCount = 0;
+    long messages = 0;
+    long first = -1;
+    long last = 0;
+    final long started = System.nanoTime();
+
+    final RecordingReader reader = new RecordingReader(paths);
+    RecordingReader.Record record;
+    while ((record = reader.next()) != null) {
+      if (first < 0) {
+        first = record.offsetNanos;
+      }
+      last = record.offsetNanos;
+      if (speed > 0) {
+        final long due = started + (long) ((record.offsetNanos - first) / speed);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+      }
+      final String key = record.recorder + "/" + record.stream;
+      final ExecutorService lane = lanes[(int) (record.stream % lanes.length)];
+      StreamObserver<ProcessingRequest> stream = streams.get(key);
+      if (record.isEnd()) {
+        if (stream != null) {
+          streams.remove(key);
+          lane.execute(stream::onCompleted);
+        }
+        continue;
+      }
+      if (stream == null) {
+        stream = service.process(COUNTING);
+        streams.put(key, stream);
+        streamCount++;
+      }
+      final StreamObserver<ProcessingRequest> target = stream;
+      final ProcessingRequest request = record.request;
+      lane.execute(() -> target.onNext(request));
+      messages++;
+    }
+    // streams still open when the recording stopped; completing them on any lane is safe only
+    // once every lane has run what it was given
+    for (ExecutorService lane : lanes) {
+      lane.shutdown();
+    }
+    for (ExecutorService lane : lanes) {
+      lane.awaitTermination(1, TimeUnit.HOURS);
+    }
+    for (StreamObserver<ProcessingRequest> open : streams.values()) {
+      open.onCompleted();
+    }
+    final long elapsed = System.nanoTime() - started;
+
+    System.out.printf(
+        Locale.ROOT,
+        "replayed %d streams (%d messages) recorded over %.3fs in %.3fs into %s%n",
+        streamCount,
+        messages,
+        (last - Math.max(first, 0)) / 1e9,
+        elapsed / 1e9,
+        name);
+    System.out.printf(
+        Locale.ROOT,
+        "%d responses, %d immediate responses, %d errors%n",
+        responses.sum(),
+        immediate.sum(),
+        errors.sum());
+    final ProcessorMetrics metrics = MetricsRegistry.getDefault().forProcessor(name);
+    System.out.printf(
+        Locale.ROOT, "%-18s %10s %10s %10s %10s%n", "phase (ms)", "p50", "p99", "p99.9", "count");
+    for (RequestCase phase : ProcessorMetrics.PHASES) {
+      final LatencyHistogram h = metrics.getPhaseLatency(phase);
+      if (h.getCount() == 0) {
+        continue;
+      }
+      final long[] values = h.getValuesAtQuantiles(new double[] {0.5, 0.99, 0.999});
+      System.out.printf(
+          Locale.ROOT,
+          "%-18s %10.3f %10.3f %10.3f %10d%n",
+          phase.name().toLowerCase(Locale.ROOT),
+          values[0] / 1e6,
+          values[1] / 1e6,
+          values[2] / 1e6,
+          h.getCount());
+    }
+    if (processor instanceof AsyncRequestProcessor) {
+      ((AsyncRequestProcessor) processor).shutdown();
+    } else {
+      ((RequestProcessor) processor).shutdown();
+    }
+  }
+}
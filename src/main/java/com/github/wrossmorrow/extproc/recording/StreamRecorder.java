@@ -0,0 +1,227 @@
+package com.github.wrossmorrow.extproc.recording;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import com.github.wrossmorrow.extproc.MpscRingBuffer;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Records sampled processing streams, message by message with their timing, to a rotating set of
+ * memory-mapped files (see {@link RecordFormat}) for replaying later with {@link Replay}. The
+ * request path only samples streams and hands messages (which are immutable, so aren't copied) to
+ * a writer thread through an {@link MpscRingBuffer}; serializing and writing happen on the writer
+ * thread. When the writer falls behind and the buffer fills, messages are dropped and counted
+ * rather than slowing requests down.
+ *
+ * <p>Files are named {@code <name>-<start millis>-<sequence>.rec} and hold {@code fileBytes} each;
+ * once there are {@code maxFiles} the oldest is deleted.
+ */
+public class StreamRecorder {
+  private static final Logger logger = Logger.getLogger(StreamRecorder.class.getName());
+
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** a stream being recorded; calls must be serialized, as gRPC serializes a stream's messages */
+  public final class Stream {
+    private final long id;
+
+    private Stream(long id) {
+      this.id = id;
+    }
+
+    public void record(ProcessingRequest request) {
+      offer(RecordFormat.MESSAGE, id, request);
+    }
+
+    /** the stream closed, for whatever reason */
+    public void end() {
+      offer(RecordFormat.END, id, null);
+    }
+  }
+
+  private static final class Entry {
+    final byte kind;
+    final long stream;
+    final long offset;
+    final ProcessingRequest request;
+
+    Entry(byte kind, long stream, long offset, ProcessingRequest request) {
+      this.kind = kind;
+      this.stream = stream;
+      this.offset = offset;
+      this.request = request;
+    }
+  }
+
+  private final Path dir;
+  private final String name;
+  private final double sampleRate;
+  private final int fileBytes;
+  private final int maxFiles;
+  private final long startedMillis = System.currentTimeMillis();
+  private final long startedNanos = System.nanoTime();
+  private final MpscRingBuffer<Entry> queue;
+  private final AtomicLong streams = new AtomicLong();
+  private final LongAdder recorded = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final Thread writer;
+  private volatile boolean closed;
+
+  // writer thread only
+  private final Deque<Path> files = new ArrayDeque<Path>();
+  private MappedByteBuffer buffer;
+  private int sequence;
+
+  /**
+   * record to {@code dir}, with the file size ({@code extproc.recording.file.mb}, 64), number of
+   * files ({@code extproc.recording.files}, 8), and queue size ({@code
+   * extproc.recording.queue.size}, 8192) from properties
+   */
+  public StreamRecorder(Path dir, String name, double sampleRate) throws IOException {
+    this(
+        dir,
+        name,
+        sampleRate,
+        Integer.getInteger("extproc.recording.file.mb", 64) << 20,
+        Integer.getInteger("extproc.recording.files", 8),
+        Integer.getInteger("extproc.recording.queue.size", 8192));
+  }
+
+  public StreamRecorder(
+      Path dir, String name, double sampleRate, int fileBytes, int maxFiles, int queueSize)
+      throws IOException {
+    if (fileBytes <= RecordFormat.FILE_HEADER_BYTES || maxFiles < 1) {
+      throw new IllegalArgumentException("StreamRecorder needs at least one non-empty file");
+    }
+    this.dir = Files.createDirectories(dir);
+    this.name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+    this.sampleRate = sampleRate;
+    this.fileBytes = fileBytes;
+    this.maxFiles = maxFiles;
+    this.queue = new MpscRingBuffer<Entry>(queueSize);
+    writer = new Thread(this::write, "extproc-recorder-" + this.name);
+    writer.setDaemon(true);
+    writer.start();
+    logger.info("Recording " + (sampleRate * 100) + "% of streams to " + dir);
+  }
+
+  /** start recording a new stream, or null if it isn't sampled */
+  public Stream open() {
+    if (closed || (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+      return null;
+    }
+    return new Stream(streams.incrementAndGet());
+  }
+
+  private void offer(byte kind, long stream, ProcessingRequest request) {
+    if (closed
+        || !queue.offer(new Entry(kind, stream, System.nanoTime() - startedNanos, request))) {
+      dropped.increment();
+    }
+  }
+
+  /** streams sampled so far */
+  public long getStreams() {
+    return streams.get();
+  }
+
+  /** records written */
+  public long getRecorded() {
+    return recorded.sum();
+  }
+
+  /** records dropped, because the writer fell behind, a record didn't fit a file, or a failure */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /** stop recording, writing out what was queued (waiting up to a second for that) */
+  public void close() throws InterruptedException {
+    closed = true;
+    writer.join(1000L);
+  }
+
+  private void write() {
+    while (true) {
+      final Entry entry = queue.poll();
+      if (entry == null) {
+        if (closed) {
+          break;
+        }
+        LockSupport.parkNanos(IDLE_NANOS);
+        continue;
+      }
+      try {
+        append(entry);
+      } catch (IOException | RuntimeException e) {
+        dropped.increment();
+        logger.warning("Could not record to " + dir + ": " + e);
+      }
+    }
+    if (buffer != null) {
+      buffer.force();
+    }
+  }
+
+  private void append(Entry entry) throws IOException {
+    final int size = entry.request == null ? 0 : entry.request.getSerializedSize();
+    final int length = RecordFormat.RECORD_HEADER_BYTES + size;
+    if (4 + length > fileBytes - RecordFormat.FILE_HEADER_BYTES) {
+      dropped.increment();
+      return;
+    }
+    if (buffer == null || buffer.remaining() < 4 + length) {
+      rotate();
+    }
+    final int start = buffer.position();
+    ((Buffer) buffer).position(start + 4);
+    buffer.put(entry.kind).putLong(entry.stream).putLong(entry.offset);
+    if (entry.request != null) {
+      final CodedOutputStream out = CodedOutputStream.newInstance(buffer);
+      entry.request.writeTo(out);
+      out.flush();
+    }
+    ((Buffer) buffer).position(start + 4 + length);
+    buffer.putInt(start, length); // last, so a partly written record reads as the end of the file
+    recorded.increment();
+  }
+
+  /** start the next file, deleting the oldest if there are too many */
+  private void rotate() throws IOException {
+    if (buffer != null) {
+      buffer.force();
+    }
+    final Path file =
+        dir.resolve(
+            String.format("%s-%d-%06d%s", name, startedMillis, ++sequence, RecordFormat.SUFFIX));
+    try (FileChannel channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      // the mapping outlives the channel; it's released when the buffer is collected
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+    }
+    buffer.putInt(RecordFormat.MAGIC).putInt(RecordFormat.VERSION).putLong(startedMillis);
+    files.addLast(file);
+    while (files.size() > maxFiles) {
+      Files.deleteIfExists(files.removeFirst());
+    }
+    logger.fine("Recording to " + file);
+  }
+}
@@ -0,0 +1,69 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import build.buf.gen.envoy.config.core.v3.HeaderMap;
+import build.buf.gen.envoy.config.core.v3.HeaderValue;
+import build.buf.gen.envoy.service.ext_proc.v3.HttpBody;
+import build.buf.gen.envoy.service.ext_proc.v3.HttpHeaders;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
+import com.github.wrossmorrow.extproc.processors.EchoRequestProcessor;
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+class BodyAccumulatorTest {
+
+  @Test
+  void appendsUpToTheLimit() {
+    BodyAccumulator buffer = new BodyAccumulator(8);
+    assertTrue(buffer.append(ByteString.copyFromUtf8("abcd")));
+    assertTrue(buffer.append(ByteString.copyFromUtf8("efgh")));
+    assertEquals(buffer.getBody().toStringUtf8(), "abcdefgh");
+    assertEquals(buffer.getChunks(), 2);
+
+    assertFalse(buffer.append(ByteString.copyFromUtf8("i")));
+    assertTrue(buffer.isOverflowed());
+    assertFalse(buffer.append(ByteString.EMPTY));
+    assertEquals(buffer.size(), 8);
+
+    buffer.clear();
+    assertFalse(buffer.isOverflowed());
+    assertEquals(buffer.size(), 0);
+  }
+
+  static ProcessingRequest chunk(String body, boolean endOfStream) {
+    return ProcessingRequest.newBuilder()
+        .setRequestBody(
+            HttpBody.newBuilder()
+                .setBody(ByteString.copyFromUtf8(body))
+                .setEndOfStream(endOfStream))
+        .build();
+  }
+
+  @Test
+  void streamedChunksAreEchoedAtTheEnd() {
+    ExternalProcessor service = new ExternalProcessor(new EchoRequestProcessor(), null);
+    RequestContext ctx = new RequestContext();
+    HeaderMap headers =
+        HeaderMap.newBuilder()
+            .addHeaders(HeaderValue.newBuilder().setKey(":method").setValue("POST"))
+            .addHeaders(HeaderValue.newBuilder().setKey(":path").setValue("/echo"))
+            .build();
+    service.processPhase(
+        ProcessingRequest.newBuilder()
+            .setRequestHeaders(HttpHeaders.newBuilder().setHeaders(headers))
+            .build(),
+        ctx);
+
+    ProcessingResponse response = service.processPhase(chunk("hello ", false), ctx);
+    assertFalse(response.hasImmediateResponse());
+    response = service.processPhase(chunk("world", true), ctx);
+    assertTrue(response.hasImmediateResponse());
+    assertEquals(
+        response.getImmediateResponse().getBody(),
+        "{\"path\": \"/echo\", \"body\": \"hello world\"}");
+    assertEquals(ctx.getRequestBodyChunks(), 2);
+    assertEquals(ctx.getRequestBodyBytes(), 11L);
+  }
+}
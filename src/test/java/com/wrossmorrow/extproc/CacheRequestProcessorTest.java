@@ -0,0 +1,65 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import build.buf.gen.envoy.config.core.v3.HeaderMap;
+import build.buf.gen.envoy.config.core.v3.HeaderValue;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import com.github.wrossmorrow.extproc.metrics.MetricsRegistry;
+import com.github.wrossmorrow.extproc.metrics.PrometheusExporter;
+import com.github.wrossmorrow.extproc.processors.CacheRequestProcessor;
+import com.github.wrossmorrow.extproc.processors.ResponseCache;
+import com.google.protobuf.ByteString;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class CacheRequestProcessorTest {
+
+  static HeaderValue header(String key, String value) {
+    return HeaderValue.newBuilder().setKey(key).setValue(value).build();
+  }
+
+  static RequestContext request(CacheRequestProcessor cache) {
+    HeaderMap headers =
+        HeaderMap.newBuilder()
+            .addHeaders(header(":method", "GET"))
+            .addHeaders(header(":authority", "example.com"))
+            .addHeaders(header(":path", "/a"))
+            .build();
+    RequestContext ctx = new RequestContext();
+    ctx.reset(RequestCase.REQUEST_HEADERS);
+    cache.processRequestHeaders(ctx, ctx.initializeRequest(headers));
+    return ctx;
+  }
+
+  @Test
+  void trailersFinishCapturingAResponse() {
+    CacheRequestProcessor cache =
+        new CacheRequestProcessor(
+            new ResponseCache(1 << 20, 1024), new String[0], 0, TimeUnit.SECONDS, 1024, false);
+    RequestContext ctx = request(cache);
+    assertFalse(ctx.isProcessingComplete());
+
+    ctx.reset(RequestCase.RESPONSE_HEADERS);
+    HeaderMap headers =
+        HeaderMap.newBuilder()
+            .addHeaders(header(":status", "200"))
+            .addHeaders(header("cache-control", "max-age=60"))
+            .build();
+    cache.processResponseHeaders(ctx, ctx.initializeResponse(headers));
+    ctx.reset(RequestCase.RESPONSE_BODY);
+    cache.processResponseBody(ctx, ByteString.copyFromUtf8("hello")); // not the end of the stream
+    assertEquals(cache.getCache().size(), 0);
+    ctx.reset(RequestCase.RESPONSE_TRAILERS);
+    cache.processResponseTrailers(ctx, Collections.emptyMap());
+    assertEquals(cache.getCache().size(), 1);
+
+    RequestContext hit = request(cache);
+    assertTrue(hit.isProcessingComplete());
+    assertEquals(
+        hit.getResponse(RequestCase.REQUEST_HEADERS).getImmediateResponse().getBody(), "hello");
+    String hits = "extproc_cache_lookups_total{processor=\"cache\",result=\"hit\"}";
+    assertTrue(PrometheusExporter.scrape(MetricsRegistry.getDefault()).contains(hits + " 1\n"));
+  }
+}
@@ -0,0 +1,72 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import build.buf.gen.envoy.config.core.v3.HeaderValue;
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class CaseInsensitiveHeaderMapTest {
+
+  @Test
+  void lookupsIgnoreCase() {
+    CaseInsensitiveHeaderMap headers = new CaseInsensitiveHeaderMap();
+    headers.put("Content-Type", "application/json");
+    assertEquals(headers.get("content-type"), "application/json");
+    assertEquals(headers.get("CONTENT-TYPE"), "application/json");
+    assertTrue(headers.containsKey("content-TYPE"));
+    assertEquals(headers.put("content-type", "text/plain"), "application/json");
+    assertEquals(headers.size(), 1);
+    assertEquals(headers.getOrDefault("x-missing", "default"), "default");
+  }
+
+  @Test
+  void rawValuesAreDecoded() {
+    CaseInsensitiveHeaderMap headers = new CaseInsensitiveHeaderMap();
+    headers.putHeaderValue(
+        HeaderValue.newBuilder()
+            .setKey("x-raw")
+            .setRawValue(ByteString.copyFromUtf8("raw value"))
+            .build());
+    headers.putHeaderValue(HeaderValue.newBuilder().setKey("x-value").setValue("value").build());
+    assertEquals(headers.get("X-Raw"), "raw value");
+    assertEquals(headers.get("x-value"), "value");
+  }
+
+  @Test
+  void iterationIsInInsertionOrder() {
+    CaseInsensitiveHeaderMap headers = new CaseInsensitiveHeaderMap();
+    headers.put("c", "1");
+    headers.put("a", "2");
+    headers.put("b", "3");
+    assertEquals(headers.remove("A"), "2");
+    headers.put("d", "4");
+    List<String> keys = new ArrayList<String>();
+    for (Map.Entry<String, String> e : headers.entrySet()) {
+      keys.add(e.getKey());
+    }
+    assertEquals(keys, Arrays.asList("c", "b", "d"));
+  }
+
+  @Test
+  void growsPastInitialCapacity() {
+    CaseInsensitiveHeaderMap headers = new CaseInsensitiveHeaderMap(4);
+    for (int i = 0; i < 100; i++) {
+      headers.put("x-header-" + i, Integer.toString(i));
+      if (i % 3 == 0) {
+        headers.remove("X-HEADER-" + i);
+      }
+    }
+    assertEquals(headers.size(), 66);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(headers.get("x-header-" + i), i % 3 == 0 ? null : Integer.toString(i));
+    }
+    headers.clear();
+    assertTrue(headers.isEmpty());
+    assertNull(headers.get("x-header-1"));
+  }
+}
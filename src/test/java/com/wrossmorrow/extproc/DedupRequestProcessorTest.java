@@ -0,0 +1,60 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import build.buf.gen.envoy.config.core.v3.HeaderMap;
+import build.buf.gen.envoy.config.core.v3.HeaderValue;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import com.github.wrossmorrow.extproc.processors.DedupRequestProcessor;
+import com.github.wrossmorrow.extproc.processors.LocalInflightRegistry;
+import org.junit.jupiter.api.Test;
+
+class DedupRequestProcessorTest {
+
+  static RequestContext request(DedupRequestProcessor dedup, String requestId) {
+    HeaderMap.Builder headers =
+        HeaderMap.newBuilder()
+            .addHeaders(HeaderValue.newBuilder().setKey(":method").setValue("GET"))
+            .addHeaders(HeaderValue.newBuilder().setKey(":path").setValue("/a"))
+            .addHeaders(
+                HeaderValue.newBuilder().setKey("x-extproc-request-digest").setValue("digest"));
+    if (requestId != null) {
+      headers.addHeaders(HeaderValue.newBuilder().setKey("x-request-id").setValue(requestId));
+    }
+    RequestContext ctx = new RequestContext();
+    ctx.reset(RequestCase.REQUEST_HEADERS);
+    dedup.processRequestHeaders(ctx, ctx.initializeRequest(headers.build()));
+    return ctx;
+  }
+
+  @Test
+  void requestsWithoutIdsOnlyReleaseTheirOwnClaims() {
+    DedupRequestProcessor dedup = new DedupRequestProcessor(new LocalInflightRegistry());
+    RequestContext a = request(dedup, null);
+    assertFalse(a.isProcessingComplete());
+    RequestContext b = request(dedup, null);
+    assertTrue(b.isProcessingComplete());
+    assertEquals(
+        b.getResponse(RequestCase.REQUEST_HEADERS).getImmediateResponse().getBody(),
+        "{\"message\":\"Duplicate request already in flight\"}");
+
+    b.close();
+    RequestContext c = request(dedup, null); // a still holds the claim
+    assertTrue(c.isProcessingComplete());
+    a.close();
+    RequestContext d = request(dedup, null);
+    assertFalse(d.isProcessingComplete());
+    a.close(); // closing again does nothing, so d keeps its claim
+    assertTrue(request(dedup, null).isProcessingComplete());
+  }
+
+  @Test
+  void duplicatesReportTheRequestIdHoldingTheClaim() {
+    DedupRequestProcessor dedup = new DedupRequestProcessor(new LocalInflightRegistry());
+    request(dedup, "first");
+    RequestContext duplicate = request(dedup, "second");
+    assertEquals(
+        duplicate.getResponse(RequestCase.REQUEST_HEADERS).getImmediateResponse().getBody(),
+        "{\"message\":\"Duplicate request already in flight\",\"requestId\":\"first\"}");
+  }
+}
@@ -0,0 +1,36 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class DurationHeaderTest {
+
+  @Test
+  void appendsAndReplacesExactNames() {
+    StringBuilder out = new StringBuilder();
+    assertEquals(DurationHeader.update(out, "", "timer", 5L).toString(), "timer=5");
+    assertEquals(
+        DurationHeader.update(out, "timer2=1,timer=2", "timer", 5L).toString(),
+        "timer2=1,timer=5");
+    assertEquals(
+        DurationHeader.update(out, "timer2=1, other=2", "timer", 5L).toString(),
+        "timer2=1, other=2,timer=5");
+    assertEquals(DurationHeader.update(out, "x,,timer=1", "timer", 5L).toString(), "x,timer=5");
+  }
+
+  @Test
+  void updatesChainsInOnePass() {
+    StringBuilder out = new StringBuilder();
+    String[] names = {"trivial", "noop"};
+    long[] nanos = {10L, 20L};
+    String value = DurationHeader.update(out, "edge=1", names, nanos).toString();
+    assertEquals(value, "edge=1,trivial=10,noop=20");
+
+    nanos[0] = 30L;
+    value = DurationHeader.update(out, value, names, nanos).toString();
+    assertEquals(value, "edge=1,trivial=30,noop=20");
+    assertEquals(DurationHeader.get(value, "noop"), "20");
+    assertNull(DurationHeader.get(value, "no"));
+  }
+}
@@ -2,8 +2,15 @@ package com.github.wrossmorrow.extproc;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
 import com.github.wrossmorrow.extproc.processors.NoOpRequestProcessor;
+import com.github.wrossmorrow.extproc.processors.TimerRequestProcessor;
+import io.grpc.stub.StreamObserver;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.Test;
 
 class ServerTest {
@@ -17,4 +24,73 @@ class ServerTest {
     assertNotNull(server);
     server.stop();
   }
+
+  @Test
+  void serverHostsSeveralProcessors() throws IOException, InterruptedException {
+    ExternalProcessorServer server =
+        new ExternalProcessorServer()
+            .builder(0)
+            .addRequestProcessor(new NoOpRequestProcessor())
+            .addRequestProcessor(new TimerRequestProcessor())
+            .setDefaultRoute("timer");
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> server.addRequestProcessor(new NoOpRequestProcessor()));
+    assertEquals(server.routes.keySet().toString(), "[noop, timer]");
+    assertSame(server.defaultRoute, server.routes.get("timer"));
+    server.start();
+    server.stop();
+  }
+
+  @Test
+  void routesByName() {
+    ExternalProcessor noop = new ExternalProcessor(new NoOpRequestProcessor(), null);
+    ExternalProcessor timer = new ExternalProcessor(new TimerRequestProcessor(), null);
+    Map<String, ExternalProcessor> routes = new HashMap<String, ExternalProcessor>();
+    routes.put("noop", noop);
+    routes.put("timer", timer);
+    RoutingExternalProcessor router = new RoutingExternalProcessor(routes, noop);
+    assertSame(router.route("timer"), timer);
+    assertSame(router.route(null), noop);
+    assertNull(router.route("missing"));
+    assertNotNull(router.serviceDefinition());
+  }
+
+  @Test
+  void drainWaitsForStreamsThenAborts() throws Exception {
+    ExternalProcessorServer server =
+        new ExternalProcessorServer().builder(0).addRequestProcessor(new NoOpRequestProcessor());
+    server.start();
+    ExternalProcessor service = server.routes.get("noop");
+    StreamObserver<ProcessingRequest> finishing = service.process(new NullObserver());
+    StreamObserver<ProcessingRequest> hanging = service.process(new NullObserver());
+    assertEquals(server.activeStreams(), 2);
+
+    Thread finisher =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(50);
+              } catch (InterruptedException e) {
+                return;
+              }
+              finishing.onCompleted();
+            });
+    finisher.start();
+    ExternalProcessorServer.DrainResult result = server.drain(500, TimeUnit.MILLISECONDS);
+    finisher.join();
+    assertEquals(result.drained, 1);
+    assertEquals(result.aborted, 1);
+
+    hanging.onCompleted();
+    assertEquals(server.activeStreams(), 0);
+  }
+
+  static class NullObserver implements StreamObserver<ProcessingResponse> {
+    public void onNext(ProcessingResponse response) {}
+
+    public void onError(Throwable t) {}
+
+    public void onCompleted() {}
+  }
 }
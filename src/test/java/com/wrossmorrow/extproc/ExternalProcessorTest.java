@@ -0,0 +1,247 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import build.buf.gen.envoy.config.core.v3.HeaderMap;
+import build.buf.gen.envoy.config.core.v3.HeaderValue;
+import build.buf.gen.envoy.service.ext_proc.v3.HttpBody;
+import build.buf.gen.envoy.service.ext_proc.v3.HttpHeaders;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.junit.jupiter.api.Test;
+
+class ExternalProcessorTest {
+
+  static class RecordingObserver implements StreamObserver<ProcessingResponse> {
+    List<ProcessingResponse> responses =
+        Collections.synchronizedList(new ArrayList<ProcessingResponse>());
+    volatile Throwable error;
+    volatile boolean completed;
+
+    public void onNext(ProcessingResponse response) {
+      responses.add(response);
+    }
+
+    public void onError(Throwable t) {
+      error = t;
+    }
+
+    public void onCompleted() {
+      completed = true;
+    }
+  }
+
+  static class DeferredAsyncProcessor implements AsyncRequestProcessor {
+    CompletableFuture<Void> headers = new CompletableFuture<Void>();
+    ProcessingOptions options = new ProcessingOptions();
+    volatile boolean deadlineExceeded;
+    volatile boolean closedDuringPhase;
+    volatile boolean closeHookRan;
+
+    public String getName() {
+      return "deferred";
+    }
+
+    public ProcessingOptions getOptions() {
+      return options;
+    }
+
+    public void setHealthManager(RequestProcessorHealthManager health) {}
+
+    public void shutdown() {}
+
+    public CompletionStage<Void> processRequestHeaders(
+        RequestContext ctx, Map<String, String> headers) {
+      ctx.onClose(() -> closeHookRan = true);
+      return this.headers.thenRun(
+          () -> {
+            closedDuringPhase = ctx.isClosed();
+            deadlineExceeded = ctx.isDeadlineExceeded();
+            ctx.addHeader("x-async", "true");
+          });
+    }
+
+    public CompletionStage<Void> processRequestBody(RequestContext ctx, ByteString body) {
+      if (body.toStringUtf8().equals("fail")) {
+        CompletableFuture<Void> failed = new CompletableFuture<Void>();
+        failed.completeExceptionally(new RuntimeException("failed body"));
+        return failed;
+      }
+      return CompletableFuture.completedFuture(null);
+    }
+
+    public CompletionStage<Void> processRequestTrailers(
+        RequestContext ctx, Map<String, String> trailers) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    public CompletionStage<Void> processResponseHeaders(
+        RequestContext ctx, Map<String, String> headers) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    public CompletionStage<Void> processResponseBody(RequestContext ctx, ByteString body) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    public CompletionStage<Void> processResponseTrailers(
+        RequestContext ctx, Map<String, String> trailers) {
+      return CompletableFuture.completedFuture(null);
+    }
+  }
+
+  static ProcessingRequest requestHeaders() {
+    HeaderMap headers =
+        HeaderMap.newBuilder()
+            .addHeaders(HeaderValue.newBuilder().setKey(":method").setValue("GET"))
+            .addHeaders(HeaderValue.newBuilder().setKey(":path").setValue("/hello"))
+            .build();
+    return ProcessingRequest.newBuilder()
+        .setRequestHeaders(HttpHeaders.newBuilder().setHeaders(headers))
+        .build();
+  }
+
+  static ProcessingRequest requestBody(String body) {
+    return ProcessingRequest.newBuilder()
+        .setRequestBody(
+            HttpBody.newBuilder().setBody(ByteString.copyFromUtf8(body)).setEndOfStream(true))
+        .build();
+  }
+
+  static void awaitResponses(RecordingObserver observer, int count) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000L;
+    while (observer.responses.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5L);
+    }
+  }
+
+  @Test
+  void asyncPhasesRespondInOrder() {
+    DeferredAsyncProcessor processor = new DeferredAsyncProcessor();
+    ExternalProcessor service = new ExternalProcessor(processor, null);
+    RecordingObserver observer = new RecordingObserver();
+    StreamObserver<ProcessingRequest> stream = service.process(observer);
+
+    stream.onNext(requestHeaders());
+    stream.onNext(requestBody("ok"));
+    assertEquals(observer.responses.size(), 0);
+
+    processor.headers.complete(null);
+    assertEquals(observer.responses.size(), 2);
+    assertTrue(observer.responses.get(0).hasRequestHeaders());
+    assertTrue(observer.responses.get(1).hasRequestBody());
+    assertEquals(
+        observer
+            .responses
+            .get(0)
+            .getRequestHeaders()
+            .getResponse()
+            .getHeaderMutation()
+            .getSetHeadersCount(),
+        1);
+
+    stream.onCompleted();
+    assertTrue(observer.completed);
+    assertNull(observer.error);
+  }
+
+  @Test
+  void asyncFailuresAreInternalErrors() {
+    DeferredAsyncProcessor processor = new DeferredAsyncProcessor();
+    processor.headers.complete(null);
+    ExternalProcessor service = new ExternalProcessor(processor, null);
+    RecordingObserver observer = new RecordingObserver();
+    StreamObserver<ProcessingRequest> stream = service.process(observer);
+
+    stream.onNext(requestHeaders());
+    stream.onNext(requestBody("fail"));
+    stream.onNext(requestBody("ok"));
+    assertEquals(observer.responses.size(), 1);
+    assertTrue(observer.error instanceof StatusRuntimeException);
+    StatusRuntimeException sre = (StatusRuntimeException) observer.error;
+    assertEquals(sre.getStatus().getCode(), Status.INTERNAL.getCode());
+    assertEquals(sre.getStatus().getDescription(), "failed body");
+  }
+
+  @Test
+  void cancelledStreamsCloseOnlyOnceTheRunningPhaseIsDone() {
+    DeferredAsyncProcessor processor = new DeferredAsyncProcessor();
+    ExternalProcessor service = new ExternalProcessor(processor, null);
+    RecordingObserver observer = new RecordingObserver();
+    StreamObserver<ProcessingRequest> stream = service.process(observer);
+
+    stream.onNext(requestHeaders());
+    stream.onError(Status.CANCELLED.asRuntimeException());
+    assertFalse(processor.closeHookRan);
+
+    processor.headers.complete(null);
+    assertFalse(processor.closedDuringPhase);
+    assertTrue(processor.closeHookRan);
+    assertEquals(observer.responses.size(), 0);
+  }
+
+  @Test
+  void overrunningPhasesContinueUnchanged() throws InterruptedException {
+    DeferredAsyncProcessor processor = new DeferredAsyncProcessor();
+    processor.options.phaseTimeoutMillis = 20L;
+    ExternalProcessor service = new ExternalProcessor(processor, null);
+    RecordingObserver observer = new RecordingObserver();
+    StreamObserver<ProcessingRequest> stream = service.process(observer);
+
+    stream.onNext(requestHeaders());
+    awaitResponses(observer, 1);
+    assertEquals(observer.responses.size(), 1);
+    assertTrue(observer.responses.get(0).hasRequestHeaders());
+    assertEquals(
+        observer
+            .responses
+            .get(0)
+            .getRequestHeaders()
+            .getResponse()
+            .getHeaderMutation()
+            .getSetHeadersCount(),
+        0);
+
+    // the processor finishing late sees the deadline passed, and its response is dropped
+    processor.headers.complete(null);
+    assertTrue(processor.deadlineExceeded);
+    stream.onNext(requestBody("ok"));
+    assertEquals(observer.responses.size(), 2);
+    assertTrue(observer.responses.get(1).hasRequestBody());
+
+    stream.onCompleted();
+    assertTrue(observer.completed);
+    assertNull(observer.error);
+  }
+
+  @Test
+  void overrunningPhasesCanRespondImmediately() throws InterruptedException {
+    DeferredAsyncProcessor processor = new DeferredAsyncProcessor();
+    processor.options.phaseTimeoutMillis = 20L;
+    processor.options.timeoutStatus = 504;
+    ExternalProcessor service = new ExternalProcessor(processor, null);
+    RecordingObserver observer = new RecordingObserver();
+    StreamObserver<ProcessingRequest> stream = service.process(observer);
+
+    stream.onNext(requestHeaders());
+    awaitResponses(observer, 1);
+    assertEquals(observer.responses.size(), 1);
+    assertTrue(observer.responses.get(0).hasImmediateResponse());
+    assertEquals(observer.responses.get(0).getImmediateResponse().getStatus().getCodeValue(), 504);
+
+    processor.headers.complete(null);
+    assertEquals(observer.responses.size(), 1);
+    assertTrue(observer.completed);
+    assertNull(observer.error);
+  }
+}
@@ -0,0 +1,60 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class MpscRingBufferTest {
+
+  @Test
+  void offersFailWhenFull() {
+    MpscRingBuffer<Integer> queue = new MpscRingBuffer<Integer>(3);
+    assertEquals(queue.capacity(), 4);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(queue.offer(i));
+    }
+    assertFalse(queue.offer(4));
+    assertEquals(queue.poll(), Integer.valueOf(0));
+    assertTrue(queue.offer(4));
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(queue.poll(), Integer.valueOf(i));
+    }
+    assertNull(queue.poll());
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  void keepsEachProducersOrder() throws InterruptedException {
+    final MpscRingBuffer<Long> queue = new MpscRingBuffer<Long>(64);
+    final int producers = 4;
+    final long each = 20000;
+    for (int p = 0; p < producers; p++) {
+      final long base = p * each;
+      Thread producer =
+          new Thread(
+              () -> {
+                for (long i = 0; i < each; i++) {
+                  while (!queue.offer(base + i)) {
+                    Thread.yield();
+                  }
+                }
+              });
+      producer.setDaemon(true);
+      producer.start();
+    }
+    long[] last = {-1, -1, -1, -1};
+    long received = 0;
+    while (received < producers * each) {
+      Long value = queue.poll();
+      if (value == null) {
+        Thread.yield();
+        continue;
+      }
+      int p = (int) (value / each);
+      assertEquals(value % each, last[p] + 1);
+      last[p] = value % each;
+      received++;
+    }
+    assertNull(queue.poll());
+  }
+}
@@ -0,0 +1,67 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import build.buf.gen.envoy.config.core.v3.HeaderMap;
+import build.buf.gen.envoy.config.core.v3.HeaderValue;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import com.github.wrossmorrow.extproc.metrics.MetricsRegistry;
+import com.github.wrossmorrow.extproc.metrics.PrometheusExporter;
+import com.github.wrossmorrow.extproc.processors.RateLimitRequestProcessor;
+import com.github.wrossmorrow.extproc.processors.RateLimiter;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RateLimitRequestProcessorTest {
+
+  static RequestContext request(RateLimitRequestProcessor limit, String forwardedFor) {
+    HeaderMap.Builder headers =
+        HeaderMap.newBuilder()
+            .addHeaders(HeaderValue.newBuilder().setKey(":method").setValue("GET"))
+            .addHeaders(HeaderValue.newBuilder().setKey(":path").setValue("/a"));
+    if (forwardedFor != null) {
+      headers.addHeaders(
+          HeaderValue.newBuilder().setKey("x-forwarded-for").setValue(forwardedFor));
+    }
+    RequestContext ctx = new RequestContext();
+    ctx.reset(RequestCase.REQUEST_HEADERS);
+    limit.processRequestHeaders(ctx, ctx.initializeRequest(headers.build()));
+    return ctx;
+  }
+
+  static RateLimitRequestProcessor processor(boolean shareUnkeyed) {
+    return new RateLimitRequestProcessor(
+        new RateLimiter(1, 1, 60, TimeUnit.SECONDS, 100),
+        RateLimitRequestProcessor.keyFromSpec("client-ip", 0),
+        shareUnkeyed);
+  }
+
+  @Test
+  void requestsWithoutAKeyAreNotLimited() {
+    RateLimitRequestProcessor limit = processor(false);
+    for (int i = 0; i < 3; i++) {
+      assertFalse(request(limit, null).isProcessingComplete());
+    }
+    assertEquals(limit.getUnkeyed(), 3L);
+    assertEquals(limit.getLimiter().size(), 0);
+
+    assertFalse(request(limit, "203.0.113.195").isProcessingComplete());
+    RequestContext limited = request(limit, "203.0.113.195");
+    assertTrue(limited.isProcessingComplete());
+    assertEquals(
+        limited.getResponse(RequestCase.REQUEST_HEADERS).getImmediateResponse().getBody(),
+        "{\"message\":\"Too many requests\"}");
+    String unkeyed = "extproc_ratelimit_requests_total{processor=\"ratelimit\",result=\"unkeyed\"}";
+    assertTrue(PrometheusExporter.scrape(MetricsRegistry.getDefault()).contains(unkeyed + " 3\n"));
+    limit.shutdown();
+  }
+
+  @Test
+  void requestsWithoutAKeyCanShareOne() {
+    RateLimitRequestProcessor limit = processor(true);
+    assertFalse(request(limit, null).isProcessingComplete());
+    assertTrue(request(limit, null).isProcessingComplete());
+    assertEquals(limit.getUnkeyed(), 2L);
+    limit.shutdown();
+  }
+}
@@ -0,0 +1,84 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import build.buf.gen.envoy.config.core.v3.HeaderMap;
+import build.buf.gen.envoy.config.core.v3.HeaderValue;
+import build.buf.gen.envoy.extensions.filters.http.ext_proc.v3.ProcessingMode;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import com.google.protobuf.ByteString;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class RequestContextPoolTest {
+
+  @Test
+  void releasedContextsAreReusedWithNoState() {
+    RequestContextPool pool = new RequestContextPool(4, false);
+    RequestContext ctx = pool.acquire();
+    assertEquals(pool.getCreated(), 1);
+
+    HeaderMap headers =
+        HeaderMap.newBuilder()
+            .addHeaders(HeaderValue.newBuilder().setKey(":path").setValue("/a?b=c"))
+            .addHeaders(HeaderValue.newBuilder().setKey(":method").setValue("POST"))
+            .addHeaders(HeaderValue.newBuilder().setKey("x-request-id").setValue("abc"))
+            .addHeaders(HeaderValue.newBuilder().setKey("x-custom").setValue("value"))
+            .build();
+    ctx.reset(RequestCase.REQUEST_HEADERS);
+    ctx.initializeRequest(headers);
+    ctx.getParams();
+    ctx.addHeader("x-added", "yes");
+    ctx.overrideRequestBodyMode(ProcessingMode.BodySendMode.STREAMED);
+    ctx.countBodyChunk(RequestCase.REQUEST_BODY, ByteString.copyFromUtf8("body"));
+    ctx.getRequestBodyBuffer().append(ByteString.copyFromUtf8("body"));
+    ctx.updateDuration(RequestCase.REQUEST_HEADERS, 100L);
+    ctx.cancelRequest(403);
+    AtomicInteger hooks = new AtomicInteger();
+    ctx.onClose(hooks::incrementAndGet);
+    assertTrue(ctx.close());
+    assertEquals(hooks.get(), 1);
+
+    pool.release(ctx);
+    assertEquals(pool.size(), 1);
+    RequestContext reused = pool.acquire();
+    assertSame(reused, ctx);
+    assertEquals(pool.getReused(), 1);
+    assertEquals(pool.size(), 0);
+
+    assertNull(reused.getPath());
+    assertNull(reused.getMethod());
+    assertNull(reused.getRequestId());
+    assertEquals(reused.getQueryString(), "");
+    assertTrue(reused.getParams().isEmpty());
+    assertTrue(reused.getRequestHeaders().isEmpty());
+    assertTrue(reused.getResponseHeaders().isEmpty());
+    assertFalse(reused.hasMutations());
+    assertNull(reused.immediateResponse);
+    assertNull(reused.getModeOverride());
+    assertEquals(reused.getRequestBodyChunks(), 0);
+    assertEquals(reused.getRequestBodyBuffer().size(), 0);
+    assertEquals(reused.getDurationNanos(), 0L);
+    assertFalse(reused.isProcessingComplete());
+    assertFalse(reused.isClosed());
+
+    reused.onClose(hooks::incrementAndGet);
+    assertTrue(reused.close());
+    assertEquals(hooks.get(), 2);
+  }
+
+  @Test
+  void poolIsBoundedAndIgnoresDoubleReleases() {
+    RequestContextPool pool = new RequestContextPool(1, false);
+    RequestContext first = pool.acquire();
+    RequestContext second = pool.acquire();
+    assertNotSame(first, second);
+
+    pool.release(first);
+    pool.release(first);
+    assertEquals(pool.size(), 1);
+    pool.release(second);
+    assertEquals(pool.size(), 1);
+    assertEquals(pool.getDropped(), 1);
+  }
+}
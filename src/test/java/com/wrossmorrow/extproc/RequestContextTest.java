@@ -4,12 +4,15 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import build.buf.gen.envoy.config.core.v3.HeaderMap;
 import build.buf.gen.envoy.config.core.v3.HeaderValue;
+import build.buf.gen.envoy.extensions.filters.http.ext_proc.v3.ProcessingMode;
+import build.buf.gen.envoy.service.ext_proc.v3.CommonResponse;
 import build.buf.gen.envoy.service.ext_proc.v3.HeaderMutation;
 import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
 import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
 import com.google.protobuf.ByteString;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Arrays;
 import org.junit.jupiter.api.Test;
 
 class ContextTest {
@@ -31,17 +34,52 @@ class ContextTest {
     assertTrue(ctx.started.isBefore(postCreate));
   }
 
+  @Test
+  void durationsAccumulate() {
+    RequestContext ctx = new RequestContext();
+    ctx.updateDuration(RequestCase.REQUEST_HEADERS, 100L);
+    ctx.updateDuration(RequestCase.REQUEST_BODY, 20L);
+    ctx.updateDuration(RequestCase.REQUEST_BODY, 30L);
+    assertEquals(ctx.getDurationNanos(), 150L);
+    assertEquals(ctx.getDuration().toNanos(), 150L);
+    assertEquals(ctx.phaseDurations[1], 50L);
+    assertTrue(ctx.getElapsedNanos() >= 0L);
+  }
+
+  @Test
+  void queryParamsAreDecodedIndependently() {
+    RequestContext ctx = new RequestContext();
+    ctx.parsePath("/search?q=a%26b%3Dc&tag=x&tag=y+z&flag&empty=");
+    assertEquals(ctx.getPath(), "/search");
+    assertNull(ctx.params);
+    assertEquals(ctx.getParam("q"), "a&b=c");
+    assertEquals(ctx.getParam("tag"), "x");
+    assertEquals(ctx.getParam("flag"), "");
+    assertNull(ctx.getParam("missing"));
+    assertNull(ctx.params);
+
+    assertEquals(ctx.getParams().get("q"), Arrays.asList("a&b=c"));
+    assertEquals(ctx.getParams().get("tag"), Arrays.asList("x", "y z"));
+    assertTrue(ctx.getParams().get("flag").isEmpty());
+    assertTrue(ctx.getParams().get("empty").isEmpty());
+    assertEquals(ctx.getQueryString(), "q=a&b=c&tag=x&tag=y z&flag&empty=");
+
+    ctx.parsePath("/plain");
+    assertEquals(ctx.getQueryString(), "");
+    assertTrue(ctx.getParams().isEmpty());
+  }
+
   @Test
   void addHeadersAddsHeaders() {
     RequestContext ctx = new RequestContext();
-    assertEquals(ctx.addHeaders.size(), 0);
+    assertEquals(ctx.headerMutation.getSetHeadersCount(), 0);
 
     ctx.addHeader("header1", "value");
     ctx.addHeader("header2", "value");
-    assertEquals(ctx.addHeaders.size(), 2);
+    assertEquals(ctx.headerMutation.getSetHeadersCount(), 2);
 
     ctx.addHeader("header3", "value");
-    assertEquals(ctx.addHeaders.size(), 3);
+    assertEquals(ctx.headerMutation.getSetHeadersCount(), 3);
 
     ProcessingResponse response = ctx.getResponse(RequestCase.REQUEST_HEADERS);
     HeaderMutation hm = response.getRequestHeaders().getResponse().getHeaderMutation();
@@ -67,13 +105,13 @@ class ContextTest {
   @Test
   void removeHeaderRemovesHeaders() {
     RequestContext ctx = new RequestContext();
-    assertEquals(ctx.removeHeaders.size(), 0);
+    assertEquals(ctx.headerMutation.getRemoveHeadersCount(), 0);
 
     ctx.removeHeader("header1");
-    assertEquals(ctx.removeHeaders.size(), 1);
+    assertEquals(ctx.headerMutation.getRemoveHeadersCount(), 1);
 
     ctx.removeHeader("header2");
-    assertEquals(ctx.removeHeaders.size(), 2);
+    assertEquals(ctx.headerMutation.getRemoveHeadersCount(), 2);
 
     ProcessingResponse response = ctx.getResponse(RequestCase.REQUEST_HEADERS);
     HeaderMutation hm = response.getRequestHeaders().getResponse().getHeaderMutation();
@@ -99,18 +137,56 @@ class ContextTest {
   @Test
   void resetClearsArrays() {
     RequestContext ctx = new RequestContext();
-    assertEquals(ctx.addHeaders.size(), 0);
-    assertEquals(ctx.removeHeaders.size(), 0);
+    assertEquals(ctx.headerMutation.getSetHeadersCount(), 0);
+    assertEquals(ctx.headerMutation.getRemoveHeadersCount(), 0);
 
     ctx.addHeader("header1", "value");
     ctx.addHeader("header2", "value");
     ctx.removeHeader("header3");
-    assertEquals(ctx.addHeaders.size(), 2);
-    assertEquals(ctx.removeHeaders.size(), 1);
+    assertEquals(ctx.headerMutation.getSetHeadersCount(), 2);
+    assertEquals(ctx.headerMutation.getRemoveHeadersCount(), 1);
+
+    ctx.reset(RequestCase.REQUEST_BODY);
+    assertEquals(ctx.headerMutation.getSetHeadersCount(), 0);
+    assertEquals(ctx.headerMutation.getRemoveHeadersCount(), 0);
+  }
+
+  @Test
+  void unchangedPhasesShareResponses() {
+    RequestContext ctx = new RequestContext();
+    ProcessingResponse response = ctx.getResponse(RequestCase.REQUEST_HEADERS);
+    assertSame(response, new RequestContext().getResponse(RequestCase.REQUEST_HEADERS));
+    assertEquals(
+        response.getRequestHeaders().getResponse().getStatus(),
+        CommonResponse.ResponseStatus.CONTINUE);
+
+    ctx.addHeader("header1", "value");
+    assertNotSame(response, ctx.getResponse(RequestCase.REQUEST_HEADERS));
 
     ctx.reset(RequestCase.REQUEST_BODY);
-    assertEquals(ctx.addHeaders.size(), 0);
-    assertEquals(ctx.removeHeaders.size(), 0);
+    assertSame(
+        ctx.getResponse(RequestCase.REQUEST_BODY),
+        new RequestContext().getResponse(RequestCase.REQUEST_BODY));
+    ctx.clearBodyChunk();
+    ProcessingResponse cleared = ctx.getResponse(RequestCase.REQUEST_BODY);
+    assertTrue(cleared.getRequestBody().getResponse().getBodyMutation().getClearBody());
+  }
+
+  @Test
+  void modeOverrideIsSentWithRequestHeaders() {
+    RequestContext ctx = new RequestContext();
+    assertFalse(ctx.getResponse(RequestCase.REQUEST_HEADERS).hasModeOverride());
+
+    ctx.overrideResponseBodyMode(ProcessingMode.BodySendMode.STREAMED);
+    ProcessingResponse response = ctx.getResponse(RequestCase.REQUEST_HEADERS);
+    assertTrue(response.hasModeOverride());
+    assertEquals(
+        response.getModeOverride().getResponseBodyMode(), ProcessingMode.BodySendMode.STREAMED);
+    assertEquals(
+        response.getModeOverride().getRequestBodyMode(), ProcessingMode.BodySendMode.NONE);
+
+    ctx.reset(RequestCase.REQUEST_BODY);
+    assertFalse(ctx.getResponse(RequestCase.REQUEST_BODY).hasModeOverride());
   }
 
   @Test
@@ -135,6 +211,17 @@ class ContextTest {
     assertEquals(body, ByteString.copyFromUtf8(replacedBody));
   }
 
+  @Test
+  void replaceBodyByteStringTest() {
+    ByteString replacedBody = ByteString.copyFromUtf8("body");
+    RequestContext ctx = new RequestContext();
+    ctx.replaceBodyChunk(replacedBody);
+    ProcessingResponse response = ctx.getResponse(RequestCase.REQUEST_BODY);
+    assertFalse(response.getRequestBody().getResponse().getBodyMutation().getClearBody());
+    ByteString body = response.getRequestBody().getResponse().getBodyMutation().getBody();
+    assertSame(body, replacedBody);
+  }
+
   @Test
   void clearBodyTest() {
     RequestContext ctx = new RequestContext();
@@ -0,0 +1,87 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import build.buf.gen.envoy.config.core.v3.HeaderMap;
+import build.buf.gen.envoy.config.core.v3.HeaderValue;
+import build.buf.gen.envoy.config.core.v3.HeaderValueOption;
+import build.buf.gen.envoy.service.ext_proc.v3.HttpHeaders;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingResponse;
+import com.github.wrossmorrow.extproc.processors.EchoRequestProcessor;
+import com.github.wrossmorrow.extproc.processors.NoOpRequestProcessor;
+import com.github.wrossmorrow.extproc.processors.TrivialRequestProcessor;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class RequestProcessorChainTest {
+
+  static ProcessingRequest requestHeaders(String path) {
+    HeaderMap headers =
+        HeaderMap.newBuilder()
+            .addHeaders(HeaderValue.newBuilder().setKey(":method").setValue("GET"))
+            .addHeaders(HeaderValue.newBuilder().setKey(":path").setValue(path))
+            .build();
+    return ProcessingRequest.newBuilder()
+        .setRequestHeaders(HttpHeaders.newBuilder().setHeaders(headers).setEndOfStream(true))
+        .build();
+  }
+
+  @Test
+  void chainedMutationsAreMergedAndTimed() {
+    ProcessingOptions options = new ProcessingOptions();
+    options.upstreamDurationHeader = true;
+    RequestProcessorChain chain =
+        new RequestProcessorChain(
+            Arrays.asList(new TrivialRequestProcessor(), new NoOpRequestProcessor()), options);
+    assertEquals(chain.getName(), "trivial+noop");
+
+    ExternalProcessor service = new ExternalProcessor(chain, null);
+    RequestContext ctx = new RequestContext();
+    ProcessingResponse response = service.processPhase(requestHeaders("/hello"), ctx);
+
+    String duration = null;
+    int seen = 0;
+    for (HeaderValueOption hvo :
+        response.getRequestHeaders().getResponse().getHeaderMutation().getSetHeadersList()) {
+      if (hvo.getHeader().getKey().equals("x-extproc-duration-ns")) {
+        duration = hvo.getHeader().getValue();
+      } else if (hvo.getHeader().getKey().equals("x-extproc-request-seen")) {
+        seen++;
+      }
+    }
+    assertEquals(seen, 1);
+    assertNotNull(duration);
+    assertTrue(duration.matches("trivial=\\d+,noop=\\d+"), duration);
+  }
+
+  @Test
+  void cancellingStopsTheChain() {
+    RequestProcessorChain chain =
+        new RequestProcessorChain(new EchoRequestProcessor(), new TrivialRequestProcessor());
+    ExternalProcessor service = new ExternalProcessor(chain, null);
+    RequestContext ctx = new RequestContext();
+    ProcessingResponse response = service.processPhase(requestHeaders("/echo"), ctx);
+
+    assertTrue(response.hasImmediateResponse());
+    assertEquals(response.getImmediateResponse().getStatus().getCodeValue(), 200);
+    assertEquals(response.getImmediateResponse().getHeaders().getSetHeadersCount(), 0);
+    assertEquals(ctx.processorDurations[1], 0L);
+  }
+
+  @Test
+  void modeOverridesAreMerged() {
+    RequestProcessorChain chain =
+        new RequestProcessorChain(new EchoRequestProcessor(), new NoOpRequestProcessor());
+    ExternalProcessor service = new ExternalProcessor(chain, null);
+    ProcessingResponse response =
+        service.processPhase(requestHeaders("/hello"), new RequestContext());
+    assertEquals(response.getModeOverride(), ProcessingOptions.HEADERS_ONLY);
+
+    // trivial wants whatever envoy sends, so echo can't turn bodies off
+    chain = new RequestProcessorChain(new EchoRequestProcessor(), new TrivialRequestProcessor());
+    service = new ExternalProcessor(chain, null);
+    response = service.processPhase(requestHeaders("/hello"), new RequestContext());
+    assertFalse(response.hasModeOverride());
+  }
+}
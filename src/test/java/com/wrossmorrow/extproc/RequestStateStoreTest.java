@@ -0,0 +1,64 @@
+package com.github.wrossmorrow.extproc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RequestStateStoreTest {
+
+  @Test
+  void closingTheContextRemovesState() {
+    RequestStateStore<String> store = new RequestStateStore<String>();
+    RequestContext ctx = new RequestContext();
+    store.put(ctx, "state");
+    assertEquals(store.get(ctx), "state");
+    assertEquals(store.size(), 1);
+
+    ctx.close();
+    assertNull(store.get(ctx));
+    assertEquals(store.size(), 0);
+    assertEquals(store.getRemovals(), 1);
+  }
+
+  @Test
+  void stateExpires() throws InterruptedException {
+    RequestStateStore<String> store = new RequestStateStore<String>(10, 1, TimeUnit.MILLISECONDS);
+    RequestContext ctx = new RequestContext();
+    store.put(ctx, "state");
+    Thread.sleep(5);
+    assertNull(store.get(ctx));
+    assertEquals(store.getExpirations(), 1);
+  }
+
+  @Test
+  void fullStoreRejects() {
+    RequestStateStore<String> store = new RequestStateStore<String>(2, 1, TimeUnit.MINUTES);
+    store.put(new RequestContext(), "one");
+    store.put(new RequestContext(), "two");
+    assertThrows(IllegalStateException.class, () -> store.put(new RequestContext(), "three"));
+    assertEquals(store.getRejections(), 1);
+    assertEquals(store.getOccupancy(), 1.0);
+  }
+
+  @Test
+  void fullStoreSweepsExpiredStatePeriodically() throws InterruptedException {
+    RequestStateStore<String> store = new RequestStateStore<String>(2, 1, TimeUnit.MILLISECONDS);
+    store.put(new RequestContext(), "one");
+    store.put(new RequestContext(), "two");
+    Thread.sleep(150);
+    store.put(new RequestContext(), "three");
+    assertEquals(store.getExpirations(), 2);
+    assertEquals(store.size(), 1);
+  }
+
+  @Test
+  void computeIfAbsentReusesState() {
+    RequestStateStore<StringBuilder> store = new RequestStateStore<StringBuilder>();
+    RequestContext ctx = new RequestContext();
+    StringBuilder first = store.computeIfAbsent(ctx, () -> new StringBuilder());
+    StringBuilder second = store.computeIfAbsent(ctx, () -> new StringBuilder());
+    assertSame(first, second);
+    assertEquals(store.getInserts(), 1);
+  }
+}
@@ -0,0 +1,65 @@
+package com.github.wrossmorrow.extproc.metrics;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest.RequestCase;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+  @Test
+  void bucketsAreContiguous() {
+    for (int i = 1; i < LatencyHistogram.BUCKETS - 16; i++) {
+      assertEquals(
+          LatencyHistogram.bucketLowerBound(i), LatencyHistogram.bucketUpperBound(i - 1) + 1);
+      assertEquals(LatencyHistogram.bucketIndex(LatencyHistogram.bucketLowerBound(i)), i);
+      assertEquals(LatencyHistogram.bucketIndex(LatencyHistogram.bucketUpperBound(i)), i);
+    }
+    assertTrue(LatencyHistogram.bucketIndex(Long.MAX_VALUE) < LatencyHistogram.BUCKETS);
+  }
+
+  @Test
+  void quantilesAreWithinBucketResolution() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (long v = 1; v <= 100_000; v++) {
+      h.record(v * 1000);
+    }
+    assertEquals(h.getCount(), 100_000);
+    assertEquals(h.getSum(), 1000L * 100_000 * 100_001 / 2);
+
+    double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+    long[] values = h.getValuesAtQuantiles(quantiles);
+    for (int i = 0; i < quantiles.length; i++) {
+      double exact = quantiles[i] * 100_000 * 1000;
+      assertTrue(values[i] >= exact, "quantile " + quantiles[i]);
+      assertTrue(values[i] <= exact * 1.07, "quantile " + quantiles[i]);
+    }
+    assertTrue(h.getMax() >= 100_000_000L);
+
+    h.reset();
+    assertEquals(h.getCount(), 0);
+    assertEquals(h.getValueAtQuantile(0.99), 0);
+  }
+
+  @Test
+  void scrapeIncludesRecordedPhases() {
+    MetricsRegistry registry = new MetricsRegistry();
+    ProcessorMetrics metrics = registry.forProcessor("test");
+    metrics.streamOpened();
+    metrics.recordPhase(RequestCase.REQUEST_HEADERS, 2_000_000);
+    metrics.recordBodyBytes(RequestCase.REQUEST_BODY, 42);
+    metrics.streamCompleted();
+
+    String text = PrometheusExporter.scrape(registry);
+    assertTrue(text.contains("extproc_streams_opened_total{processor=\"test\"} 1\n"));
+    assertTrue(
+        text.contains(
+            "extproc_streams_closed_total{processor=\"test\",outcome=\"completed\"} 1\n"));
+    assertTrue(text.contains("extproc_streams_in_flight{processor=\"test\"} 0\n"));
+    assertTrue(
+        text.contains("extproc_body_bytes_total{processor=\"test\",direction=\"request\"} 42\n"));
+    String count = "extproc_phase_duration_seconds_count";
+    assertTrue(text.contains(count + "{processor=\"test\",phase=\"request_headers\"} 1\n"));
+    assertFalse(text.contains("phase=\"response_body\""));
+  }
+}
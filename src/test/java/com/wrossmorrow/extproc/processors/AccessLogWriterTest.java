@@ -0,0 +1,75 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class AccessLogWriterTest {
+
+  static AccessLogWriter.Entry entry(String path) {
+    AccessLogWriter.Entry entry = new AccessLogWriter.Entry();
+    entry.started = 0L;
+    entry.requestId = "abc";
+    entry.method = "POST";
+    entry.path = path;
+    entry.status = 200;
+    entry.requestHeaders = new String[] {"curl/8.0", null};
+    entry.requestBodyBytes = 11;
+    entry.requestBody = "hello world".getBytes(StandardCharsets.UTF_8);
+    entry.requestBodyLength = 5;
+    return entry;
+  }
+
+  @Test
+  void formatsJsonLines() {
+    AccessLogWriter writer =
+        new AccessLogWriter(
+            Channels.newChannel(new ByteArrayOutputStream()),
+            false,
+            new String[] {"user-agent", "x-forwarded-for"},
+            new String[0],
+            16);
+    StringBuilder line = new StringBuilder();
+    writer.format(entry("/a?q=\"x\"\n"), line);
+    assertEquals(
+        line.toString(),
+        "{\"time\":\"1970-01-01T00:00:00Z\",\"requestId\":\"abc\",\"method\":\"POST\","
+            + "\"path\":\"/a?q=\\\"x\\\"\\n\",\"status\":200,\"elapsedNanos\":0,"
+            + "\"processingNanos\":0,\"requestBodyBytes\":11,\"responseBodyBytes\":0,"
+            + "\"requestHeaders\":{\"user-agent\":\"curl/8.0\"},"
+            + "\"requestBody\":\"hello\",\"requestBodyTruncated\":true}\n");
+  }
+
+  @Test
+  void writesEverythingQueuedBeforeClosing() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    AccessLogWriter writer =
+        new AccessLogWriter(Channels.newChannel(out), true, new String[0], new String[0], 1024);
+    for (int i = 0; i < 1000; i++) {
+      writer.offer(entry("/" + i));
+    }
+    writer.close();
+    String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    assertEquals(lines.length, 1000);
+    assertTrue(lines[999].contains("\"path\":\"/999\""));
+    assertEquals(writer.getWritten(), 1000L);
+    assertEquals(writer.getDropped(), 0L);
+  }
+
+  @Test
+  void countsEntriesOfferedAfterClosingAsDropped() throws Exception {
+    AccessLogWriter writer =
+        new AccessLogWriter(
+            Channels.newChannel(new ByteArrayOutputStream()),
+            true,
+            new String[0],
+            new String[0],
+            16);
+    writer.close();
+    writer.offer(entry("/"));
+    assertEquals(writer.getDropped(), 1L);
+  }
+}
@@ -0,0 +1,48 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class BodyHasherTest {
+
+  static String xxh64(String text, int chunkSize) {
+    byte[] data = text.getBytes(StandardCharsets.UTF_8);
+    BodyHasher hasher = BodyHasher.forAlgorithm(BodyHasher.XXH64);
+    for (int i = 0; i < data.length; i += chunkSize) {
+      hasher.update(ByteBuffer.wrap(data, i, Math.min(chunkSize, data.length - i)));
+    }
+    return BodyHasher.toHex(hasher.digest());
+  }
+
+  @Test
+  void xxh64MatchesReferenceValues() {
+    assertEquals(xxh64("", 1), "ef46db3751d8e999");
+    assertEquals(xxh64("abc", 1), "44bc2cf5ad770999");
+    assertEquals(xxh64("Nobody inspects the spammish repetition", 39), "fbcea83c8a378bf1");
+  }
+
+  @Test
+  void xxh64IsIndependentOfChunking() {
+    String text = "Nobody inspects the spammish repetition";
+    for (int chunkSize = 1; chunkSize < 40; chunkSize++) {
+      assertEquals(xxh64(text, chunkSize), "fbcea83c8a378bf1");
+    }
+  }
+
+  @Test
+  void peekDoesNotReset() {
+    BodyHasher hasher = BodyHasher.forAlgorithm("SHA-256");
+    hasher.update("abc");
+    String expected = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+    assertEquals(BodyHasher.toHex(hasher.peek()), expected);
+    assertEquals(BodyHasher.toHex(hasher.digest()), expected);
+  }
+
+  @Test
+  void unknownAlgorithmsFail() {
+    assertThrows(IllegalArgumentException.class, () -> BodyHasher.forAlgorithm("nope"));
+  }
+}
@@ -0,0 +1,34 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class LocalInflightRegistryTest {
+
+  @Test
+  void duplicatesAreRejectedUntilReleased() {
+    LocalInflightRegistry registry = new LocalInflightRegistry(1, TimeUnit.MINUTES, 1000);
+    assertNull(registry.acquire("digest", "first"));
+    assertEquals(registry.acquire("digest", "second"), "first");
+
+    registry.release("digest", "second"); // not the holder, so no effect
+    assertEquals(registry.acquire("digest", "third"), "first");
+
+    registry.release("digest", "first");
+    assertNull(registry.acquire("digest", "fourth"));
+    assertEquals(registry.getHits(), 2);
+    assertEquals(registry.getMisses(), 2);
+  }
+
+  @Test
+  void entriesExpire() throws InterruptedException {
+    LocalInflightRegistry registry = new LocalInflightRegistry(1, TimeUnit.MILLISECONDS, 1000);
+    assertNull(registry.acquire("digest", "first"));
+    Thread.sleep(5);
+    assertNull(registry.acquire("digest", "second"));
+    assertEquals(registry.getEvictions(), 1);
+    assertEquals(registry.size(), 1);
+  }
+}
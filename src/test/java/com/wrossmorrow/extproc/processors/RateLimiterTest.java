@@ -0,0 +1,60 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+
+  @Test
+  void allowsABurstThenRejectsUntilRefilled() throws Exception {
+    RateLimiter limiter = new RateLimiter(10, 5, 60, TimeUnit.SECONDS, 100);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(limiter.acquire("a"), 0L);
+    }
+    long wait = limiter.acquire("a");
+    assertTrue(wait > 0 && wait <= TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(limiter.acquire("b"), 0L); // keys are independent
+    TimeUnit.NANOSECONDS.sleep(wait);
+    assertEquals(limiter.acquire("a"), 0L);
+    assertEquals(limiter.getRejected(), 1L);
+    limiter.close();
+  }
+
+  @Test
+  void failsOpenPastMaxKeys() {
+    RateLimiter limiter = new RateLimiter(1, 1, 60, TimeUnit.SECONDS, 1);
+    assertEquals(limiter.acquire("a"), 0L);
+    assertEquals(limiter.acquire("b"), 0L);
+    assertEquals(limiter.acquire("b"), 0L);
+    assertEquals(limiter.getOverflows(), 2L);
+    assertEquals(limiter.size(), 1);
+    limiter.close();
+  }
+
+  @Test
+  void evictsIdleKeys() throws Exception {
+    RateLimiter limiter = new RateLimiter(1000, 1, 1, TimeUnit.HOURS, 100);
+    limiter.acquire("a");
+    assertEquals(limiter.evictIdle(), 0);
+    limiter.close();
+    limiter = new RateLimiter(1000, 1, 1, TimeUnit.MILLISECONDS, 100);
+    limiter.acquire("a");
+    Thread.sleep(10);
+    limiter.evictIdle();
+    assertEquals(limiter.size(), 0);
+    limiter.close();
+  }
+
+  @Test
+  void extractsKeyAttributes() {
+    assertEquals(RateLimitRequestProcessor.pathPrefix("/api/v1/things", 1), "/api");
+    assertEquals(RateLimitRequestProcessor.pathPrefix("/api/v1/things", 2), "/api/v1");
+    assertEquals(RateLimitRequestProcessor.pathPrefix("/api", 3), "/api");
+    String xff = "203.0.113.195, 70.41.3.18, 150.172.238.178";
+    assertEquals(RateLimitRequestProcessor.clientAddress(xff, 0), "150.172.238.178");
+    assertEquals(RateLimitRequestProcessor.clientAddress(xff, 1), "70.41.3.18");
+    assertEquals(RateLimitRequestProcessor.clientAddress(xff, 5), "203.0.113.195");
+  }
+}
@@ -0,0 +1,86 @@
+package com.github.wrossmorrow.extproc.processors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.protobuf.ByteString;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ResponseCacheTest {
+
+  static final ByteString BODY = ByteString.copyFromUtf8("hello world");
+
+  static ResponseCache.CachedResponse response(long ttlSeconds, boolean offHeap) {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("content-type", "text/plain");
+    return new ResponseCache.CachedResponse(
+        200, headers, BODY, TimeUnit.SECONDS.toNanos(ttlSeconds), offHeap);
+  }
+
+  @Test
+  void servesWhatWasCached() {
+    ResponseCache cache = new ResponseCache(1 << 20);
+    assertNull(cache.get("a"));
+    cache.put("a", response(60, false));
+    ResponseCache.CachedResponse hit = cache.get("a");
+    assertEquals(hit.getStatus(), 200);
+    assertEquals(hit.getHeaders().get("content-type"), "text/plain");
+    assertEquals(hit.getBody(), BODY);
+    assertEquals(cache.getHits(), 1L);
+    assertEquals(cache.getMisses(), 1L);
+  }
+
+  @Test
+  void servesOffHeapBodies() {
+    ResponseCache cache = new ResponseCache(1 << 20);
+    cache.put("a", response(60, true));
+    assertEquals(cache.get("a").getBody(), BODY);
+    assertEquals(cache.get("a").getBody(), BODY);
+  }
+
+  @Test
+  void expiresEntries() {
+    ResponseCache cache = new ResponseCache(1 << 20);
+    cache.put("a", response(0, false));
+    assertNull(cache.get("a"));
+    assertEquals(cache.getExpirations(), 1L);
+    assertEquals(cache.size(), 0);
+  }
+
+  @Test
+  void staysWithinItsSizeAndKeepsReusedEntries() {
+    int weight = response(60, false).weight;
+    ResponseCache cache = new ResponseCache(1024L * weight);
+    cache.put("hot", response(60, false));
+    assertNotNull(cache.get("hot")); // promoted out of probation
+    for (int i = 0; i < 20_000; i++) {
+      cache.put("cold" + i, response(60, false));
+    }
+    assertTrue(cache.getBytes() <= 1024L * weight);
+    assertTrue(cache.getEvictions() > 0);
+    assertNotNull(cache.get("hot"));
+  }
+
+  @Test
+  void refusesResponsesBiggerThanASegment() {
+    ResponseCache cache = new ResponseCache(1);
+    cache.put("a", response(60, false));
+    assertNull(cache.get("a"));
+    assertEquals(cache.getRejections(), 1L);
+  }
+
+  @Test
+  void takesBodiesUpToTheMaxEntrySizeOnAnyNumberOfCores() {
+    ResponseCache cache = new ResponseCache(64L << 20, 1 << 20);
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("content-type", "application/octet-stream");
+    ByteString body = ByteString.copyFrom(new byte[1 << 20]);
+    cache.put(
+        "a",
+        new ResponseCache.CachedResponse(200, headers, body, TimeUnit.SECONDS.toNanos(60), false));
+    assertEquals(cache.getRejections(), 0L);
+    assertEquals(cache.get("a").getBody(), body);
+  }
+}
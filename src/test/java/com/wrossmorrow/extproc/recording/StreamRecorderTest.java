@@ -0,0 +1,73 @@
+package com.github.wrossmorrow.extproc.recording;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import build.buf.gen.envoy.service.ext_proc.v3.HttpBody;
+import build.buf.gen.envoy.service.ext_proc.v3.ProcessingRequest;
+import com.google.protobuf.ByteString;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StreamRecorderTest {
+
+  static ProcessingRequest body(int i) {
+    StringBuilder body = new StringBuilder();
+    while (body.length() < 100) {
+      body.append(i).append(' ');
+    }
+    return ProcessingRequest.newBuilder()
+        .setRequestBody(HttpBody.newBuilder().setBody(ByteString.copyFromUtf8(body.toString())))
+        .build();
+  }
+
+  @Test
+  void recordedStreamsReadBackInOrderAcrossFiles(@TempDir Path dir) throws Exception {
+    // small files, so the recording rotates every few records
+    StreamRecorder recorder = new StreamRecorder(dir, "test", 1.0, 512, 100, 64);
+    StreamRecorder.Stream a = recorder.open();
+    StreamRecorder.Stream b = recorder.open();
+    for (int i = 0; i < 10; i++) {
+      (i % 2 == 0 ? a : b).record(body(i));
+    }
+    a.end();
+    b.end();
+    recorder.close();
+    assertEquals(recorder.getRecorded(), 12);
+    assertEquals(recorder.getDropped(), 0);
+
+    List<Path> files = RecordingReader.expand(Collections.singletonList(dir));
+    assertTrue(files.size() > 1);
+    RecordingReader reader = new RecordingReader(Collections.singletonList(dir));
+    long offset = 0;
+    for (int i = 0; i < 10; i++) {
+      RecordingReader.Record record = reader.next();
+      assertFalse(record.isEnd());
+      assertEquals(record.stream, i % 2 == 0 ? 1L : 2L);
+      assertEquals(record.request, body(i));
+      assertTrue(record.offsetNanos >= offset);
+      offset = record.offsetNanos;
+    }
+    assertTrue(reader.next().isEnd());
+    assertTrue(reader.next().isEnd());
+    assertNull(reader.next());
+  }
+
+  @Test
+  void oldFilesAreDeletedAndUnsampledStreamsSkipped(@TempDir Path dir) throws Exception {
+    StreamRecorder recorder = new StreamRecorder(dir, "test", 1.0, 512, 2, 64);
+    StreamRecorder.Stream stream = recorder.open();
+    for (int i = 0; i < 20; i++) {
+      stream.record(body(i));
+    }
+    recorder.close();
+    assertEquals(Files.list(dir).count(), 2);
+
+    StreamRecorder none = new StreamRecorder(dir.resolve("none"), "none", 0.0, 512, 2, 64);
+    assertNull(none.open());
+    none.close();
+  }
+}